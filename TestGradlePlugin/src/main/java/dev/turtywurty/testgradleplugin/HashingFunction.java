@@ -80,11 +80,25 @@ public enum HashingFunction {
     }
 
     public String hash(Path path) {
-        try {
-            return hash(Files.readAllBytes(path));
+        return pad(toHexString(digest(path)));
+    }
+
+    /**
+     * Gets the raw digest of a file, reading it in chunks rather than all at once.
+     */
+    public byte[] digest(Path path) {
+        MessageDigest digest = getMessageDigest();
+        try (InputStream stream = Files.newInputStream(path)) {
+            byte[] buffer = new byte[16 * 1024];
+            int read;
+            while ((read = stream.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
         } catch (IOException exception) {
             throw new RuntimeException("Failed to read bytes from " + path + "!", exception);
         }
+
+        return digest.digest();
     }
 
     public String hash(byte[] data) {
@@ -3,110 +3,307 @@ package dev.turtywurty.testgradleplugin;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import dev.turtywurty.testgradleplugin.extensions.TestGradleExtension;
+import dev.turtywurty.testgradleplugin.services.CacheService;
+import dev.turtywurty.testgradleplugin.services.DownloadService;
+import dev.turtywurty.testgradleplugin.services.MetadataService;
 import dev.turtywurty.testgradleplugin.tasks.*;
+import dev.turtywurty.testgradleplugin.transforms.RemapModTransform;
+import org.gradle.api.NamedDomainObjectProvider;
 import org.gradle.api.Plugin;
 import org.gradle.api.Project;
-import org.gradle.api.provider.Property;
+import org.gradle.api.artifacts.DependencyScopeConfiguration;
+import org.gradle.api.artifacts.ResolvableConfiguration;
+import org.gradle.api.artifacts.dsl.DependencyHandler;
+import org.gradle.api.artifacts.type.ArtifactTypeDefinition;
+import org.gradle.api.attributes.Category;
+import org.gradle.api.attributes.LibraryElements;
+import org.gradle.api.attributes.Usage;
+import org.gradle.api.file.DirectoryProperty;
+import org.gradle.api.file.FileCollection;
+import org.gradle.api.file.RegularFile;
+import org.gradle.api.model.ObjectFactory;
+import org.gradle.api.plugins.JavaPlugin;
 import org.gradle.api.provider.Provider;
+import org.gradle.api.tasks.SourceSet;
+import org.gradle.api.tasks.SourceSetContainer;
 import org.gradle.api.tasks.TaskContainer;
+import org.gradle.api.tasks.TaskProvider;
+import org.gradle.api.tasks.bundling.Jar;
+import org.gradle.build.event.BuildEventsListenerRegistry;
 import org.jetbrains.annotations.NotNull;
 
+import javax.inject.Inject;
+
+import java.io.File;
+import java.util.List;
+
 public class TestGradlePlugin implements Plugin<Project> {
     public static final Gson GSON = new GsonBuilder().setPrettyPrinting().disableHtmlEscaping().create();
 
+    private final BuildEventsListenerRegistry buildEvents;
+
+    @Inject
+    public TestGradlePlugin(BuildEventsListenerRegistry buildEvents) {
+        this.buildEvents = buildEvents;
+    }
+
     @Override
     public void apply(@NotNull Project target) {
         target.getPlugins().apply("java");
 
         final TestGradleExtension extension = target.getExtensions().create("testGradle", TestGradleExtension.class);
-        final Property<String> minecraftVersion = extension.getMinecraftVersion().convention("1.20.4");
+        extension.getMinecraftVersion().convention("1.20.4");
+        extension.getForkDecompiler().convention(true);
+        extension.getDecompilerMaxHeapSize().convention("4G");
+        extension.getMaxConnectionsPerHost().convention(8);
+        extension.getMaxBytesPerSecond().convention(0L);
+        extension.getCacheSizeLimit().convention("10G");
+        extension.getCleanCacheOnBuildFinish().convention(true);
+        extension.getSharedCacheDirectory().convention(target.getProviders().gradleProperty("testGradle.sharedCacheDirectory")
+                .map(path -> target.getLayout().getProjectDirectory().dir(path)));
+        extension.getPublishToSharedCache().convention(false);
+        extension.getRemapAtRuntime().convention(false);
         final Provider<TestGradleExtension.Side> sideProvider = extension.getSideEnum();
 
-        System.out.println("Minecraft Version: " + minecraftVersion.get());
-        System.out.println("Side: " + sideProvider.get());
+        final DirectoryProperty cacheDirectory = target.getObjects().directoryProperty()
+                .fileValue(new File(target.getGradle().getGradleUserHomeDir(), "caches/testGradle"));
+
+        final Provider<MetadataService> metadataService = target.getGradle().getSharedServices()
+                .registerIfAbsent(MetadataService.NAME, MetadataService.class, spec -> {});
+        final Provider<DownloadService> downloadService = target.getGradle().getSharedServices()
+                .registerIfAbsent(DownloadService.NAME, DownloadService.class, spec -> {
+                    spec.getParameters().getMaxConnectionsPerHost().set(extension.getMaxConnectionsPerHost());
+                    spec.getParameters().getMaxBytesPerSecond().set(extension.getMaxBytesPerSecond());
+                    spec.getParameters().getCacheDirectory().set(cacheDirectory);
+                    spec.getParameters().getSharedCacheDirectory().set(extension.getSharedCacheDirectory());
+                    spec.getParameters().getPublishToSharedCache().set(extension.getPublishToSharedCache());
+                });
+        final Provider<CacheService> cacheService = target.getGradle().getSharedServices()
+                .registerIfAbsent(CacheService.NAME, CacheService.class, spec -> {
+                    spec.getParameters().getCacheDirectory().set(cacheDirectory);
+                    spec.getParameters().getRootDirectory().set(target.getRootDir());
+                    spec.getParameters().getMaxSize().set(extension.getCacheSizeLimit());
+                    spec.getParameters().getCleanOnBuildFinish().set(extension.getCleanCacheOnBuildFinish());
+                    // the repackaged jar is on the compile classpath, which no task of ours reports
+                    spec.getParameters().getProtectedEntries().add(extension.getMinecraftVersion().zip(sideProvider,
+                            (version, side) -> version + "/repackaged_" + side.getFileName() + ".jar"));
+                });
+        this.buildEvents.onTaskCompletion(cacheService);
 
         final TaskContainer tasks = target.getTasks();
+        tasks.withType(TestGradleTask.class).configureEach(task -> {
+            task.setGroup("minecraft");
+            task.getMetadataService().set(metadataService);
+            task.usesService(metadataService);
+            task.getDownloadService().set(downloadService);
+            task.usesService(downloadService);
+            task.getCacheService().set(cacheService);
+            task.usesService(cacheService);
+            task.doLast("recordCacheAccess", executed -> ((TestGradleTask) executed).getCacheService().get()
+                    .recordTask(executed.getPath(), executed.getOutputs().getFiles().getFiles()));
+            task.getMinecraftVersion().convention(extension.getMinecraftVersion());
+            task.getSide().convention(sideProvider);
+            task.getCacheDirectory().convention(cacheDirectory);
+            task.getSharedCacheDirectory().convention(extension.getSharedCacheDirectory());
+            task.getPublishToSharedCache().convention(extension.getPublishToSharedCache());
+        });
+
+        TaskProvider<DownloadPistonMetaTask> downloadPistonMetaTask = tasks.register("downloadPistonMeta", DownloadPistonMetaTask.class, task -> {
+            task.setDescription("Downloads the Piston Meta version manifest and the specified version.");
+            task.getOffline().set(target.getGradle().getStartParameter().isOffline());
+        });
+
+        // inputs are wired to the outputs of the task producing them, which also carries the task dependency
+        final Provider<RegularFile> versionJson = downloadPistonMetaTask.flatMap(DownloadPistonMetaTask::getVersionJson);
+
+        TaskProvider<DownloadClientTask> downloadClientTask = tasks.register("downloadClient", DownloadClientTask.class, task -> {
+            task.setDescription("Downloads the Minecraft client jar.");
+            task.getVersionJson().set(versionJson);
+        });
+
+        TaskProvider<ExtractClientTask> extractClientTask = tasks.register("extractClient", ExtractClientTask.class, task -> {
+            task.setDescription("Extracts the Minecraft client jar.");
+            task.getClientJar().set(downloadClientTask.flatMap(DownloadClientTask::getClientJar));
+        });
+
+        TaskProvider<DownloadClientMappingsTask> downloadClientMappingsTask = tasks.register("downloadClientMappings", DownloadClientMappingsTask.class, task -> {
+            task.setDescription("Downloads the Minecraft client mappings.");
+            task.getVersionJson().set(versionJson);
+        });
+
+        TaskProvider<DownloadServerTask> downloadServerTask = tasks.register("downloadServer", DownloadServerTask.class, task -> {
+            task.setDescription("Downloads the Minecraft server jar.");
+            task.getVersionJson().set(versionJson);
+        });
+
+        TaskProvider<ExtractServerTask> extractServerTask = tasks.register("extractServer", ExtractServerTask.class, task -> {
+            task.setDescription("Extracts the Minecraft server jar.");
+            task.getServerJar().set(downloadServerTask.flatMap(DownloadServerTask::getServerJar));
+        });
+
+        TaskProvider<DownloadServerMappingsTask> downloadServerMappingsTask = tasks.register("downloadServerMappings", DownloadServerMappingsTask.class, task -> {
+            task.setDescription("Downloads the Minecraft server mappings.");
+            task.getVersionJson().set(versionJson);
+        });
+
+        TaskProvider<DownloadAssetsTask> downloadAssetsTask = tasks.register("downloadAssets", DownloadAssetsTask.class, task -> {
+            task.setDescription("Downloads the Minecraft assets.");
+            task.getVersionJson().set(versionJson);
+        });
+
+        TaskProvider<DownloadLibrariesTask> downloadLibrariesTask = tasks.register("downloadLibraries", DownloadLibrariesTask.class, task -> {
+            task.setDescription("Downloads the Minecraft libraries.");
+            task.getVersionJson().set(versionJson);
+        });
+
+        // the client and server branches only meet at the merge, so they can run at the same time
+        TaskProvider<RemapClassesTask> remapClientTask = tasks.register("remapClient", RemapClassesTask.class, task -> {
+            task.setDescription("Remaps the Minecraft client.");
+            task.getMappings().set(downloadClientMappingsTask.flatMap(DownloadClientMappingsTask::getClientMappings));
+            task.getMappingLayers().from(extension.getMappingLayers());
+            task.getAccessTransformers().from(extension.getAccessTransformers());
+            task.getInputDirectory().set(extractClientTask.flatMap(ExtractClientTask::getOutputDirectory));
+            task.getOutputDirectory().convention(task.getVersionDirectory().map(dir -> dir.dir("remapped_client")));
+        });
+
+        TaskProvider<RemapClassesTask> remapServerTask = tasks.register("remapServer", RemapClassesTask.class, task -> {
+            task.setDescription("Remaps the Minecraft server.");
+            task.getMappings().set(downloadServerMappingsTask.flatMap(DownloadServerMappingsTask::getServerMappings));
+            task.getMappingLayers().from(extension.getMappingLayers());
+            task.getAccessTransformers().from(extension.getAccessTransformers());
+            task.getInputDirectory().set(extractServerTask.flatMap(ExtractServerTask::getOutputDirectory));
+            task.getOutputDirectory().convention(task.getVersionDirectory().map(dir -> dir.dir("remapped_server")));
+        });
+
+        tasks.register("remapClasses", task -> {
+            task.setGroup("minecraft");
+            task.setDescription("Remaps the Minecraft client and server jars.");
+            task.dependsOn(sideProvider.map(side -> switch (side) {
+                case CLIENT -> List.of(remapClientTask);
+                case SERVER -> List.of(remapServerTask);
+                case BOTH -> List.of(remapClientTask, remapServerTask);
+            }));
+        });
+
+        TaskProvider<MergeTask> mergeTask = tasks.register("merge", MergeTask.class, task -> {
+            task.setDescription("Merges the remapped Minecraft client and server into one directory.");
+            task.getClientDirectory().set(remapClientTask.flatMap(RemapClassesTask::getOutputDirectory));
+            task.getServerDirectory().set(remapServerTask.flatMap(RemapClassesTask::getOutputDirectory));
+        });
+
+        TaskProvider<RepackageTask> repackageTask = tasks.register("repackage", RepackageTask.class, task -> {
+            task.setDescription("Repackages the Minecraft client and server into a jar.");
+            task.getInputDirectory().set(sideProvider.flatMap(side -> switch (side) {
+                case CLIENT -> remapClientTask.flatMap(RemapClassesTask::getOutputDirectory);
+                case SERVER -> remapServerTask.flatMap(RemapClassesTask::getOutputDirectory);
+                case BOTH -> mergeTask.flatMap(MergeTask::getJoinedDirectory);
+            }));
+        });
+
+        TaskProvider<DecompileTask> decompileTask = tasks.register("decompile", DecompileTask.class, task -> {
+            task.setDescription("Decompiles the Minecraft client and server jars.");
+            task.getInputJar().set(repackageTask.flatMap(RepackageTask::getOutputJar));
+            task.getFork().convention(extension.getForkDecompiler());
+            task.getMaxHeapSize().convention(extension.getDecompilerMaxHeapSize());
+            task.getLibraries().from(downloadLibrariesTask.flatMap(DownloadLibrariesTask::getLibrariesDirectory)
+                    .map(directory -> directory.getAsFileTree().matching(pattern -> pattern.include("**/*.jar"))));
+        });
+
+        tasks.register("sourcesStats", SourcesStatsTask.class, task -> {
+            task.setDescription("Gets the stats of the decompiled Minecraft client and server jars.");
+            task.getDecompiledDirectory().set(decompileTask.flatMap(DecompileTask::getOutputDirectory));
+        });
+
+        final Provider<RegularFile> repackagedJar = cacheDirectory.zip(
+                extension.getMinecraftVersion().zip(sideProvider, (version, side) -> version + "/repackaged_" + side.getFileName() + ".jar"),
+                (directory, jarPath) -> directory.file(jarPath));
+        // the agent loads the mod's own classes, the game's come from the client jar
+        final FileCollection modRuntimeClasspath = target.getExtensions().getByType(SourceSetContainer.class)
+                .getByName(SourceSet.MAIN_SOURCE_SET_NAME).getRuntimeClasspath()
+                .filter(file -> !file.equals(repackagedJar.get().getAsFile()));
+        final Provider<RegularFile> noFile = target.getProviders().provider(() -> null);
+
+        tasks.register("runClient", RunClientTask.class, task -> {
+            task.setDescription("Runs the Minecraft client.");
+            task.getVersionJson().set(versionJson);
+            task.getLibrariesJson().set(downloadLibrariesTask.flatMap(DownloadLibrariesTask::getLibrariesJson));
+            task.getClientJar().set(downloadClientTask.flatMap(DownloadClientTask::getClientJar));
+            task.getAssetsDirectory().set(downloadAssetsTask.flatMap(DownloadAssetsTask::getAssetsDirectory));
+            task.getRunDirectory().convention(target.getLayout().getProjectDirectory().dir("run"));
+            // the assets directory isn't fingerprinted, it's far too large for a task that never is up to date
+            task.dependsOn(downloadAssetsTask);
+            // the mod's names are the same on both sides, and it's the client that runs
+            task.getRemapAtRuntime().convention(extension.getRemapAtRuntime());
+            task.getMappings().set(task.getRemapAtRuntime().flatMap(enabled -> enabled
+                    ? downloadClientMappingsTask.flatMap(DownloadClientMappingsTask::getClientMappings) : noFile));
+            task.getMappingLayers().from(extension.getMappingLayers());
+            task.getModClasspath().from(task.getRemapAtRuntime().map(enabled -> enabled ? modRuntimeClasspath : List.of()));
+            task.dependsOn(task.getRemapAtRuntime().map(enabled -> enabled ? modRuntimeClasspath : List.of()));
+        });
+
+        // the mappings the names of the repackaged jar come from; the joined jar has the client's names
+        final Provider<RegularFile> sideMappings = sideProvider.flatMap(side -> side == TestGradleExtension.Side.SERVER
+                ? downloadServerMappingsTask.flatMap(DownloadServerMappingsTask::getServerMappings)
+                : downloadClientMappingsTask.flatMap(DownloadClientMappingsTask::getClientMappings));
+
+        // the mod is compiled against the names of the repackaged jar, but the game only knows the obfuscated ones
+        final TaskProvider<Jar> jarTask = tasks.named(JavaPlugin.JAR_TASK_NAME, Jar.class);
+        tasks.register("reobfJar", ReobfJarTask.class, task -> {
+            task.setDescription("Remaps the mod jar back to the obfuscated names of the game.");
+            task.getMappings().set(sideMappings);
+            task.getMappingLayers().from(extension.getMappingLayers());
+            task.getInputJar().set(jarTask.flatMap(Jar::getArchiveFile));
+            task.getOutputJar().convention(jarTask.flatMap(jar -> jar.getDestinationDirectory()
+                    .file(jar.getArchiveFileName().map(name -> name.replaceFirst("\\.jar$", "") + "-reobf.jar"))));
+        });
+
+        tasks.register("cleanCache", CleanCacheTask.class, task ->
+                task.setDescription("Evicts the least recently used entries of the TestGradle cache until it fits in the size limit."));
+
+        // add the repackaged jar to the classpath, without making compilation depend on the whole pipeline
+        target.getDependencies().add("implementation", target.files(repackagedJar));
+
+        registerModRemapping(target, extension, sideMappings, cacheDirectory);
+    }
+
+    /**
+     * Adds the {@code modImplementation} configuration, whose jars are remapped to the names of the repackaged jar
+     * before they are put on the classpath.
+     */
+    private static void registerModRemapping(Project target, TestGradleExtension extension, Provider<RegularFile> mappings, DirectoryProperty cacheDirectory) {
+        final DependencyHandler dependencies = target.getDependencies();
+        dependencies.getAttributesSchema().attribute(RemapModTransform.REMAPPED);
+        dependencies.getArtifactTypes().maybeCreate(ArtifactTypeDefinition.JAR_TYPE).getAttributes().attribute(RemapModTransform.REMAPPED, false);
+        dependencies.registerTransform(RemapModTransform.class, spec -> {
+            spec.getFrom().attribute(ArtifactTypeDefinition.ARTIFACT_TYPE_ATTRIBUTE, ArtifactTypeDefinition.JAR_TYPE)
+                    .attribute(RemapModTransform.REMAPPED, false);
+            spec.getTo().attribute(ArtifactTypeDefinition.ARTIFACT_TYPE_ATTRIBUTE, ArtifactTypeDefinition.JAR_TYPE)
+                    .attribute(RemapModTransform.REMAPPED, true);
+            spec.parameters(parameters -> {
+                parameters.getMappings().set(mappings);
+                parameters.getMappingLayers().from(extension.getMappingLayers());
+                parameters.getMappingLayerOrder().set(extension.getMappingLayers().getElements()
+                        .map(files -> files.stream().map(file -> file.getAsFile().getName()).toList()));
+                parameters.getStoreDirectory().set(cacheDirectory.dir("remapped_mods"));
+            });
+        });
+
+        final ObjectFactory objects = target.getObjects();
+        final NamedDomainObjectProvider<DependencyScopeConfiguration> modImplementation =
+                target.getConfigurations().dependencyScope("modImplementation");
+        final NamedDomainObjectProvider<ResolvableConfiguration> modClasspath =
+                target.getConfigurations().resolvable("modClasspath", configuration -> {
+                    configuration.extendsFrom(modImplementation.get());
+                    configuration.attributes(attributes -> {
+                        attributes.attribute(Usage.USAGE_ATTRIBUTE, objects.named(Usage.class, Usage.JAVA_RUNTIME));
+                        attributes.attribute(Category.CATEGORY_ATTRIBUTE, objects.named(Category.class, Category.LIBRARY));
+                        attributes.attribute(LibraryElements.LIBRARY_ELEMENTS_ATTRIBUTE, objects.named(LibraryElements.class, LibraryElements.JAR));
+                    });
+                });
 
-        DownloadPistonMetaTask downloadPistonMetaTask = tasks.create("downloadPistonMeta", DownloadPistonMetaTask.class);
-        downloadPistonMetaTask.setGroup("minecraft");
-        downloadPistonMetaTask.setDescription("Downloads the Piston Meta version manifest and the specified version.");
-
-        DownloadClientTask downloadClientTask = tasks.create("downloadClient", DownloadClientTask.class);
-        downloadClientTask.setGroup("minecraft");
-        downloadClientTask.setDescription("Downloads the Minecraft client jar.");
-        downloadClientTask.dependsOn(downloadPistonMetaTask);
-
-        ExtractClientTask extractClientTask = tasks.create("extractClient", ExtractClientTask.class);
-        extractClientTask.setGroup("minecraft");
-        extractClientTask.setDescription("Extracts the Minecraft client jar.");
-        extractClientTask.dependsOn(downloadClientTask);
-
-        DownloadClientMappingsTask downloadClientMappingsTask = tasks.create("downloadClientMappings", DownloadClientMappingsTask.class);
-        downloadClientMappingsTask.setGroup("minecraft");
-        downloadClientMappingsTask.setDescription("Downloads the Minecraft client mappings.");
-        downloadClientMappingsTask.dependsOn(downloadPistonMetaTask);
-
-        DownloadServerTask downloadServerTask = tasks.create("downloadServer", DownloadServerTask.class);
-        downloadServerTask.setGroup("minecraft");
-        downloadServerTask.setDescription("Downloads the Minecraft server jar.");
-        downloadServerTask.dependsOn(downloadPistonMetaTask);
-
-        ExtractServerTask extractServerTask = tasks.create("extractServer", ExtractServerTask.class);
-        extractServerTask.setGroup("minecraft");
-        extractServerTask.setDescription("Extracts the Minecraft server jar.");
-        extractServerTask.dependsOn(downloadServerTask);
-
-        DownloadServerMappingsTask downloadServerMappingsTask = tasks.create("downloadServerMappings", DownloadServerMappingsTask.class);
-        downloadServerMappingsTask.setGroup("minecraft");
-        downloadServerMappingsTask.setDescription("Downloads the Minecraft server mappings.");
-        downloadServerMappingsTask.dependsOn(downloadPistonMetaTask);
-
-        DownloadAssetsTask downloadAssetsTask = tasks.create("downloadAssets", DownloadAssetsTask.class);
-        downloadAssetsTask.setGroup("minecraft");
-        downloadAssetsTask.setDescription("Downloads the Minecraft assets.");
-        downloadAssetsTask.dependsOn(downloadPistonMetaTask);
-
-        DownloadLibrariesTask downloadLibrariesTask = tasks.create("downloadLibraries", DownloadLibrariesTask.class);
-        downloadLibrariesTask.setGroup("minecraft");
-        downloadLibrariesTask.setDescription("Downloads the Minecraft libraries.");
-        downloadLibrariesTask.dependsOn(downloadPistonMetaTask);
-
-        RemapClassesTask remapClassesTask = tasks.create("remapClasses", RemapClassesTask.class);
-        remapClassesTask.setGroup("minecraft");
-        remapClassesTask.setDescription("Remaps the Minecraft client and server jars.");
-        remapClassesTask.dependsOn(sideProvider.map(side -> switch (side) {
-            case CLIENT -> new Object[]{extractClientTask, downloadClientMappingsTask};
-            case SERVER -> new Object[]{extractServerTask, downloadServerMappingsTask};
-            case BOTH ->
-                    new Object[]{extractClientTask, extractServerTask, downloadClientMappingsTask, downloadServerMappingsTask};
-        }).getOrElse(new Object[0]));
-
-        MergeTask mergeTask = tasks.create("merge", MergeTask.class);
-        mergeTask.setGroup("minecraft");
-        mergeTask.setDescription("Merges the Minecraft client and server into one directory.");
-        mergeTask.dependsOn(remapClassesTask);
-
-        RepackageTask repackageTask = tasks.create("repackage", RepackageTask.class);
-        repackageTask.setGroup("minecraft");
-        repackageTask.setDescription("Repackages the Minecraft client and server into a jar.");
-        repackageTask.dependsOn(sideProvider.map(side -> switch (side) {
-            case CLIENT, SERVER -> new Object[]{remapClassesTask};
-            case BOTH -> new Object[]{remapClassesTask, mergeTask};
-        }).getOrElse(new Object[0]));
-
-        DecompileTask decompileTask = tasks.create("decompile", DecompileTask.class);
-        decompileTask.setGroup("minecraft");
-        decompileTask.setDescription("Decompiles the Minecraft client and server jars.");
-        decompileTask.dependsOn(repackageTask);
-
-        SourcesStatsTask sourcesStatsTask = tasks.create("sourcesStats", SourcesStatsTask.class);
-        sourcesStatsTask.setGroup("minecraft");
-        sourcesStatsTask.setDescription("Gets the stats of the decompiled Minecraft client and server jars.");
-        sourcesStatsTask.dependsOn(decompileTask);
-
-        RunClientTask runClientTask = tasks.create("runClient", RunClientTask.class);
-        runClientTask.setGroup("minecraft");
-        runClientTask.setDescription("Runs the Minecraft client.");
-        runClientTask.dependsOn(downloadClientTask, downloadAssetsTask, downloadLibrariesTask);
+        // the files of the view don't report the dependencies of the transform's parameters, so the mappings are added
+        dependencies.add(JavaPlugin.IMPLEMENTATION_CONFIGURATION_NAME, target.files(modClasspath.map(configuration -> configuration.getIncoming()
+                .artifactView(view -> view.attributes(attributes -> attributes.attribute(RemapModTransform.REMAPPED, true)))
+                .getFiles())).builtBy(mappings));
     }
 }
@@ -1,38 +1,232 @@
 package dev.turtywurty.testgradleplugin.asset;
 
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 
-import java.util.*;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HexFormat;
 
-public class AssetIndexHash {
-    private final Map<String, AssetObject> assets = new HashMap<>();
+/**
+ * An asset index, stored as columns instead of a map of objects: the SHA-1 of every asset as 20 raw bytes, the
+ * names as one UTF-8 pool with offsets, and the sizes as a {@code long[]}. Assets are addressed by their position in
+ * the index file.
+ * <p>
+ * The index is read with a streaming parser, so no json tree or per asset objects are ever created.
+ */
+public final class AssetIndexHash {
+    public static final int HASH_LENGTH = 20;
 
-    public AssetIndexHash(Map<String, AssetObject> assets) {
-        this.assets.putAll(assets);
+    private static final HexFormat HEX = HexFormat.of();
+
+    private final int count;
+    private final byte[] hashes;
+    private final long[] sizes;
+    private final byte[] names;
+    private final int[] nameOffsets;
+    private final BitSet duplicates;
+
+    private AssetIndexHash(int count, byte[] hashes, long[] sizes, byte[] names, int[] nameOffsets) {
+        this.count = count;
+        this.hashes = hashes;
+        this.sizes = sizes;
+        this.names = names;
+        this.nameOffsets = nameOffsets;
+        this.duplicates = findDuplicates(count, hashes);
     }
 
-    public AssetIndexHash() {}
+    public static AssetIndexHash read(Path path) {
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            return read(reader);
+        } catch (IOException exception) {
+            throw new RuntimeException("Failed to read asset index " + path + "!", exception);
+        }
+    }
+
+    public static AssetIndexHash read(Reader reader) throws IOException {
+        var builder = new Builder();
+
+        try (var json = new JsonReader(reader)) {
+            json.beginObject();
+            while (json.hasNext()) {
+                if (!json.nextName().equals("objects")) {
+                    // "virtual" and "map_to_resources" of the legacy indexes
+                    json.skipValue();
+                    continue;
+                }
+
+                json.beginObject();
+                while (json.hasNext()) {
+                    String name = json.nextName();
+                    String hash = null;
+                    long size = -1;
 
-    public static AssetIndexHash fromJson(JsonObject json) {
-        Map<String, AssetObject> assets = new HashMap<>();
+                    json.beginObject();
+                    while (json.hasNext()) {
+                        switch (json.nextName()) {
+                            case "hash" -> hash = json.nextString();
+                            case "size" -> size = json.nextLong();
+                            default -> json.skipValue();
+                        }
+                    }
+                    json.endObject();
 
-        JsonObject objects = json.getAsJsonObject("objects");
-        for (Map.Entry<String, JsonElement> assetEntry : objects.entrySet()) {
-            String assetPath = assetEntry.getKey();
-            JsonElement assetElement = assetEntry.getValue();
-            if(!assetElement.isJsonObject()) {
-                throw new RuntimeException("Asset element is not a json object! " + assetElement);
+                    if (hash == null || hash.length() != HASH_LENGTH * 2 || size < 0)
+                        throw new IOException("Invalid asset '%s' in asset index!".formatted(name));
+
+                    builder.add(name, hash, size);
+                }
+                json.endObject();
             }
+            json.endObject();
 
-            JsonObject assetObject = assetElement.getAsJsonObject();
-            assets.put(assetPath, AssetObject.fromJson(assetObject));
+            if (json.peek() != JsonToken.END_DOCUMENT)
+                throw new IOException("Unexpected content after the asset index!");
         }
 
-        return new AssetIndexHash(assets);
+        return builder.build();
+    }
+
+    public int size() {
+        return this.count;
+    }
+
+    public String getName(int index) {
+        int start = this.nameOffsets[index];
+        return new String(this.names, start, this.nameOffsets[index + 1] - start, StandardCharsets.UTF_8);
+    }
+
+    public String getHash(int index) {
+        return HEX.formatHex(this.hashes, index * HASH_LENGTH, (index + 1) * HASH_LENGTH);
     }
 
-    public Map<String, AssetObject> getAssets() {
-        return Collections.unmodifiableMap(assets);
+    public long getSize(int index) {
+        return this.sizes[index];
+    }
+
+    /**
+     * @return the path of the asset below the objects directory
+     */
+    public String getPath(int index) {
+        String hash = getHash(index);
+        return hash.substring(0, 2) + "/" + hash;
+    }
+
+    public boolean hashEquals(int index, byte[] digest) {
+        return digest.length == HASH_LENGTH &&
+                Arrays.equals(this.hashes, index * HASH_LENGTH, (index + 1) * HASH_LENGTH, digest, 0, HASH_LENGTH);
+    }
+
+    /**
+     * @return whether an earlier asset of the index has the same contents, and with that the same object file
+     */
+    public boolean isDuplicate(int index) {
+        return this.duplicates.get(index);
+    }
+
+    public int getDuplicateCount() {
+        return this.duplicates.cardinality();
+    }
+
+    public long getTotalSize() {
+        long total = 0;
+        for (int index = 0; index < this.count; index++) {
+            if (!isDuplicate(index)) {
+                total += this.sizes[index];
+            }
+        }
+
+        return total;
+    }
+
+    @Override
+    public String toString() {
+        return "AssetIndexHash[%d assets, %d unique, %d bytes]".formatted(this.count, this.count - getDuplicateCount(), getTotalSize());
+    }
+
+    /**
+     * Marks every asset whose hash was already seen, using an open addressing table of positions. The hashes are
+     * already uniformly distributed, so their first bytes work as the table hash.
+     */
+    private static BitSet findDuplicates(int count, byte[] hashes) {
+        var duplicates = new BitSet(count);
+        if (count == 0)
+            return duplicates;
+
+        int[] table = new int[Integer.highestOneBit(count) << 2];
+        Arrays.fill(table, -1);
+        int mask = table.length - 1;
+
+        for (int index = 0; index < count; index++) {
+            int offset = index * HASH_LENGTH;
+            int slot = ((hashes[offset] & 0xFF) << 24 | (hashes[offset + 1] & 0xFF) << 16 |
+                    (hashes[offset + 2] & 0xFF) << 8 | hashes[offset + 3] & 0xFF) & mask;
+
+            while (table[slot] != -1) {
+                int other = table[slot] * HASH_LENGTH;
+                if (Arrays.equals(hashes, offset, offset + HASH_LENGTH, hashes, other, other + HASH_LENGTH)) {
+                    duplicates.set(index);
+                    break;
+                }
+
+                slot = (slot + 1) & mask;
+            }
+
+            if (!duplicates.get(index)) {
+                table[slot] = index;
+            }
+        }
+
+        return duplicates;
+    }
+
+    private static final class Builder {
+        private int count;
+        private byte[] hashes = new byte[4096 * HASH_LENGTH];
+        private long[] sizes = new long[4096];
+        private byte[] names = new byte[4096 * 32];
+        private int[] nameOffsets = new int[4097];
+
+        private void add(String name, String hash, long size) throws IOException {
+            if (this.count == this.sizes.length) {
+                this.hashes = Arrays.copyOf(this.hashes, this.hashes.length * 2);
+                this.sizes = Arrays.copyOf(this.sizes, this.sizes.length * 2);
+                this.nameOffsets = Arrays.copyOf(this.nameOffsets, this.sizes.length + 1);
+            }
+
+            int offset = this.count * HASH_LENGTH;
+            for (int index = 0; index < HASH_LENGTH; index++) {
+                int high = Character.digit(hash.charAt(index * 2), 16);
+                int low = Character.digit(hash.charAt(index * 2 + 1), 16);
+                if (high < 0 || low < 0)
+                    throw new IOException("Invalid asset hash '%s' for '%s'!".formatted(hash, name));
+
+                this.hashes[offset + index] = (byte) (high << 4 | low);
+            }
+
+            byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+            int nameStart = this.nameOffsets[this.count];
+            if (nameStart + nameBytes.length > this.names.length) {
+                this.names = Arrays.copyOf(this.names, Math.max(this.names.length * 2, nameStart + nameBytes.length));
+            }
+
+            System.arraycopy(nameBytes, 0, this.names, nameStart, nameBytes.length);
+            this.sizes[this.count] = size;
+            this.nameOffsets[++this.count] = nameStart + nameBytes.length;
+        }
+
+        private AssetIndexHash build() {
+            return new AssetIndexHash(this.count,
+                    Arrays.copyOf(this.hashes, this.count * HASH_LENGTH),
+                    Arrays.copyOf(this.sizes, this.count),
+                    Arrays.copyOf(this.names, this.nameOffsets[this.count]),
+                    Arrays.copyOf(this.nameOffsets, this.count + 1));
+        }
     }
 }
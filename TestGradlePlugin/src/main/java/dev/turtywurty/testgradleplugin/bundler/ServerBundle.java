@@ -0,0 +1,180 @@
+package dev.turtywurty.testgradleplugin.bundler;
+
+import dev.turtywurty.testgradleplugin.HashingFunction;
+import dev.turtywurty.testgradleplugin.util.ArchiveExtractor;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Reads the bundler layout used by server jars since 1.18, where the real server jar and its libraries are nested in
+ * {@code META-INF/versions} and {@code META-INF/libraries} and listed in {@code versions.list} and
+ * {@code libraries.list}.
+ */
+public class ServerBundle implements AutoCloseable {
+    public static final String VERSIONS_LIST = "META-INF/versions.list";
+    public static final String LIBRARIES_LIST = "META-INF/libraries.list";
+
+    private final ZipFile zipFile;
+    private final List<Entry> versions, libraries;
+
+    private ServerBundle(ZipFile zipFile, List<Entry> versions, List<Entry> libraries) {
+        this.zipFile = zipFile;
+        this.versions = versions;
+        this.libraries = libraries;
+    }
+
+    /**
+     * @return the bundle, or {@code null} if the jar is a plain (pre-1.18) server jar
+     */
+    public static @Nullable ServerBundle open(Path serverJar) {
+        try {
+            var zipFile = new ZipFile(serverJar.toFile());
+            ZipEntry versionsEntry = zipFile.getEntry(VERSIONS_LIST);
+            if (versionsEntry == null) {
+                zipFile.close();
+                return null;
+            }
+
+            List<Entry> versions = readList(zipFile, versionsEntry);
+            ZipEntry librariesEntry = zipFile.getEntry(LIBRARIES_LIST);
+            List<Entry> libraries = librariesEntry == null ? List.of() : readList(zipFile, librariesEntry);
+            return new ServerBundle(zipFile, versions, libraries);
+        } catch (IOException exception) {
+            throw new IllegalStateException("Failed to read server bundle: " + serverJar, exception);
+        }
+    }
+
+    private static List<Entry> readList(ZipFile zipFile, ZipEntry entry) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        try (var reader = new BufferedReader(new InputStreamReader(zipFile.getInputStream(entry), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isBlank())
+                    continue;
+
+                // <sha256>\t<id>\t<path relative to the list's directory>
+                String[] split = line.split("\t");
+                if (split.length != 3)
+                    throw new IllegalStateException("Malformed line in '%s': %s".formatted(entry.getName(), line));
+
+                entries.add(new Entry(split[0], split[1], split[2]));
+            }
+        }
+
+        return entries;
+    }
+
+    public List<Entry> getVersions() {
+        return Collections.unmodifiableList(this.versions);
+    }
+
+    public List<Entry> getLibraries() {
+        return Collections.unmodifiableList(this.libraries);
+    }
+
+    public Entry findVersion(String version) {
+        for (Entry entry : this.versions) {
+            if (entry.id().equals(version))
+                return entry;
+        }
+
+        if (this.versions.size() == 1)
+            return this.versions.get(0);
+
+        throw new IllegalStateException("Server bundle does not contain version " + version + "!");
+    }
+
+    /**
+     * Streams the nested server jar straight out of the bundle into the output directory.
+     */
+    public ArchiveExtractor.Result extractServer(String version, Path outputDir) {
+        Entry entry = findVersion(version);
+        try (InputStream stream = openEntry("META-INF/versions/" + entry.path())) {
+            return ArchiveExtractor.extract(stream, outputDir);
+        } catch (IOException exception) {
+            throw new IllegalStateException("Failed to extract bundled server jar '%s'!".formatted(entry.path()), exception);
+        }
+    }
+
+    /**
+     * Copies the bundled libraries into a content addressed store ({@code <store>/<sha256[0..2]>/<sha256>/<file>}).
+     * Libraries that are already in the store are not copied again.
+     *
+     * @return the stored library jars, keyed by their maven coordinates
+     */
+    public Map<String, Path> extractLibraries(Path libraryStore) {
+        Map<String, Path> libraryJars = new LinkedHashMap<>();
+        byte[] buffer = new byte[64 * 1024];
+        for (Entry library : this.libraries) {
+            String hash = library.sha256().toLowerCase(Locale.ROOT);
+            String fileName = library.path().substring(library.path().lastIndexOf('/') + 1);
+            Path target = libraryStore.resolve(hash.substring(0, 2)).resolve(hash).resolve(fileName);
+            libraryJars.put(library.id(), target);
+            if (Files.exists(target))
+                continue;
+
+            try {
+                Files.createDirectories(target.getParent());
+                Path tempFile = Files.createTempFile(target.getParent(), fileName, ".tmp");
+                try {
+                    MessageDigest digest = HashingFunction.SHA256.getMessageDigest();
+                    try (InputStream stream = new DigestInputStream(openEntry("META-INF/libraries/" + library.path()), digest);
+                         OutputStream output = Files.newOutputStream(tempFile)) {
+                        int read;
+                        while ((read = stream.read(buffer)) != -1) {
+                            output.write(buffer, 0, read);
+                        }
+                    }
+
+                    String actualHash = HexFormat.of().formatHex(digest.digest());
+                    if (!actualHash.equals(hash))
+                        throw new IllegalStateException("Bundled library '%s' has hash %s, expected %s!"
+                                .formatted(library.id(), actualHash, hash));
+
+                    // the store is addressed by the hash, so another build storing the library as well doesn't matter
+                    Files.move(tempFile, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } finally {
+                    Files.deleteIfExists(tempFile);
+                }
+            } catch (IOException exception) {
+                throw new IllegalStateException("Failed to extract bundled library '%s'!".formatted(library.id()), exception);
+            }
+        }
+
+        return libraryJars;
+    }
+
+    private InputStream openEntry(String name) throws IOException {
+        ZipEntry entry = this.zipFile.getEntry(name);
+        if (entry == null)
+            throw new IllegalStateException("Server bundle is missing '%s'!".formatted(name));
+
+        return this.zipFile.getInputStream(entry);
+    }
+
+    @Override
+    public void close() {
+        try {
+            this.zipFile.close();
+        } catch (IOException exception) {
+            throw new IllegalStateException("Failed to close server bundle!", exception);
+        }
+    }
+
+    public record Entry(String sha256, String id, String path) {
+    }
+}
@@ -1,6 +1,5 @@
 package dev.turtywurty.testgradleplugin.decompiler;
 
-import org.gradle.api.Project;
 import org.jetbrains.java.decompiler.main.decompiler.BaseDecompiler;
 import org.jetbrains.java.decompiler.main.decompiler.PrintStreamLogger;
 import org.jetbrains.java.decompiler.main.extern.IFernflowerPreferences;
@@ -13,10 +12,6 @@ import java.util.HashMap;
 import java.util.Map;
 
 public class VineflowerDecompiler extends Decompiler {
-    public VineflowerDecompiler(Project project) {
-        super(project);
-    }
-
     public void decompile(Path file, Path outputDir, Collection<Path> libraries) {
         decompile(file, outputDir, new HashMap<>(), libraries);
     }
@@ -1,5 +1,7 @@
 package dev.turtywurty.testgradleplugin.extensions;
 
+import org.gradle.api.file.ConfigurableFileCollection;
+import org.gradle.api.file.DirectoryProperty;
 import org.gradle.api.provider.Property;
 import org.gradle.api.provider.Provider;
 
@@ -10,6 +12,57 @@ public abstract class TestGradleExtension {
 
     public abstract Property<String> getSide();
 
+    public abstract Property<Boolean> getForkDecompiler();
+
+    public abstract Property<String> getDecompilerMaxHeapSize();
+
+    public abstract Property<Integer> getMaxConnectionsPerHost();
+
+    public abstract Property<Long> getMaxBytesPerSecond();
+
+    /**
+     * The size the cache directory is kept under, such as {@code 20G}. Zero means no limit.
+     */
+    public abstract Property<String> getCacheSizeLimit();
+
+    /**
+     * Whether entries are evicted at the end of every build once the cache is over its limit. That only looks at the
+     * cache index; the {@code cleanCache} task scans the whole cache directory as well.
+     */
+    public abstract Property<Boolean> getCleanCacheOnBuildFinish();
+
+    /**
+     * A read only cache directory that is checked before anything is downloaded or produced, such as one baked into
+     * a CI image. Defaults to the {@code testGradle.sharedCacheDirectory} Gradle property.
+     */
+    public abstract DirectoryProperty getSharedCacheDirectory();
+
+    /**
+     * Whether whatever isn't found in the shared cache directory is copied into it once it's downloaded or produced.
+     */
+    public abstract Property<Boolean> getPublishToSharedCache();
+
+    /**
+     * Tiny mappings that are applied on top of the official mappings, in order, such as community names or the
+     * project's own overrides. Each layer maps from the namespace the one before it maps to, the first one from
+     * {@code official}.
+     */
+    public abstract ConfigurableFileCollection getMappingLayers();
+
+    /**
+     * Access transformers applied while Minecraft is remapped, written against the remapped names.
+     *
+     * @see dev.turtywurty.testgradleplugin.remap.AccessTransformer
+     */
+    public abstract ConfigurableFileCollection getAccessTransformers();
+
+    /**
+     * Whether {@code runClient} runs the mod on the obfuscated client, remapping the mod's classes as they load,
+     * instead of only running the game. The mod is still compiled against the repackaged jar, so that has to have
+     * been made once; after that, a launch only has to wait for the mod to compile.
+     */
+    public abstract Property<Boolean> getRemapAtRuntime();
+
     public Provider<Side> getSideEnum() {
         return getSide().map(str -> switch (str.toLowerCase()) {
             case "client" -> Side.CLIENT;
@@ -19,8 +72,29 @@ public abstract class TestGradleExtension {
     }
 
     public enum Side {
-        CLIENT,
-        SERVER,
-        BOTH
+        CLIENT("client"),
+        SERVER("server"),
+        BOTH("joined");
+
+        private final String fileName;
+
+        Side(String fileName) {
+            this.fileName = fileName;
+        }
+
+        /**
+         * @return the name used for this side in file names
+         */
+        public String getFileName() {
+            return this.fileName;
+        }
+
+        public boolean includesClient() {
+            return this == CLIENT || this == BOTH;
+        }
+
+        public boolean includesServer() {
+            return this == SERVER || this == BOTH;
+        }
     }
 }
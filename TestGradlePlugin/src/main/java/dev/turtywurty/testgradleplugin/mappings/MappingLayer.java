@@ -0,0 +1,67 @@
+package dev.turtywurty.testgradleplugin.mappings;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * One layer of a {@link MappingSet}: class names of one namespace mapped to the names of the next, such as the
+ * official names mapped to community names, or to a project's own overrides.
+ * <p>
+ * Layers are read from Tiny files, version 1 or 2, with names in dotted or internal form. A file with more than two
+ * namespaces maps its first namespace to its last.
+ *
+ * @param from    the namespace of the names the layer maps
+ * @param to      the namespace of the names they are mapped to
+ * @param classes the dotted class names of {@code from} mapped to those of {@code to}
+ */
+public record MappingLayer(String from, String to, Map<String, String> classes) {
+    public static MappingLayer read(Path path) {
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            String header = reader.readLine();
+            if (header == null)
+                throw new IllegalArgumentException("Mappings '%s' are empty!".formatted(path));
+
+            String[] headerParts = header.split("\t");
+            String classTag;
+            int firstNamespace;
+            if (headerParts.length >= 5 && headerParts[0].equals("tiny") && headerParts[1].equals("2")) {
+                classTag = "c";
+                firstNamespace = 3;
+            } else if (headerParts.length >= 3 && headerParts[0].equals("v1")) {
+                classTag = "CLASS";
+                firstNamespace = 1;
+            } else {
+                throw new IllegalArgumentException("Mappings '%s' are not in the Tiny format!".formatted(path));
+            }
+
+            int lastColumn = headerParts.length - firstNamespace;
+            Map<String, String> classes = new HashMap<>();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                // members and comments are indented in version 2; version 1 has its own tags for them
+                if (line.isEmpty() || line.charAt(0) == '\t' || line.charAt(0) == '#' || !line.startsWith(classTag + "\t"))
+                    continue;
+
+                String[] parts = line.split("\t", -1);
+                if (parts.length <= lastColumn)
+                    continue;
+
+                String from = parts[1];
+                String to = parts[lastColumn];
+                // an empty name means the class keeps its name in that namespace
+                if (!from.isEmpty() && !to.isEmpty()) {
+                    classes.put(from.replace('/', '.'), to.replace('/', '.'));
+                }
+            }
+
+            return new MappingLayer(headerParts[firstNamespace], headerParts[headerParts.length - 1], Map.copyOf(classes));
+        } catch (IOException exception) {
+            throw new IllegalStateException("Failed to read mappings '%s'!".formatted(path), exception);
+        }
+    }
+}
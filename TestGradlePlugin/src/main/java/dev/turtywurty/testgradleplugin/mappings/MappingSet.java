@@ -0,0 +1,199 @@
+package dev.turtywurty.testgradleplugin.mappings;
+
+import dev.turtywurty.testgradleplugin.HashingFunction;
+import dev.turtywurty.testgradleplugin.util.CacheLock;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * The official mappings with any number of {@link MappingLayer}s on top, flattened into a single table from the
+ * obfuscated names to the names of the last layer. Remapping with it costs the same no matter how many layers there
+ * are, since the classes only go through the remapper once.
+ * <p>
+ * Composing the layers means reading every one of them, so the flattened table is written next to the official
+ * mappings, named after the hash of the whole set, and read from there as long as none of the files change.
+ */
+public final class MappingSet {
+    private static final String CACHE_DIR_NAME = "composed_mappings";
+    private static final String NAMESPACES_PREFIX = "# namespaces\t";
+
+    private final String hash;
+    private final List<String> namespaces;
+    private final Map<String, String> classMappings;
+    private volatile Map<String, String> inverseClassMappings;
+
+    private MappingSet(String hash, List<String> namespaces, Map<String, String> classMappings) {
+        this.hash = hash;
+        this.namespaces = List.copyOf(namespaces);
+        this.classMappings = Map.copyOf(classMappings);
+    }
+
+    /**
+     * Identifies the set by the contents of its files and their order.
+     */
+    public static String hash(Path officialMappings, List<Path> layers) {
+        String[] parts = new String[layers.size() + 2];
+        parts[0] = "mappings";
+        parts[1] = HashingFunction.SHA1.hash(officialMappings);
+        for (int index = 0; index < layers.size(); index++) {
+            parts[index + 2] = HashingFunction.SHA1.hash(layers.get(index));
+        }
+
+        return Objects.requireNonNull(CacheLock.key(parts));
+    }
+
+    /**
+     * Reads the flattened set from the cache next to the official mappings, composing it first if it isn't there.
+     *
+     * @param hash     the hash of the set, see {@link #hash(Path, List)}
+     * @param official parses the official mappings, only called if the set has to be composed
+     */
+    public static MappingSet load(String hash, Path officialMappings, List<Path> layers, Function<Path, OfficialMappingsFile> official) {
+        Path cacheFile = officialMappings.toAbsolutePath().resolveSibling(CACHE_DIR_NAME).resolve(hash + ".txt");
+        MappingSet cached = read(hash, cacheFile);
+        if (cached != null)
+            return cached;
+
+        List<MappingLayer> mappingLayers = new ArrayList<>(layers.size());
+        for (Path layer : layers) {
+            mappingLayers.add(MappingLayer.read(layer));
+        }
+
+        MappingSet composed = compose(hash, official.apply(officialMappings), mappingLayers);
+        composed.write(cacheFile);
+        return composed;
+    }
+
+    public static MappingSet compose(String hash, OfficialMappingsFile official, List<MappingLayer> layers) {
+        List<String> namespaces = new ArrayList<>(List.of("obfuscated", "official"));
+        Map<String, String> composed = new HashMap<>(official.getClassMappings());
+        for (MappingLayer layer : layers) {
+            // a layer made for other names would silently map nothing, or the wrong classes
+            String previous = namespaces.get(namespaces.size() - 1);
+            if (!layer.from().equals(previous))
+                throw new IllegalArgumentException("Mapping layer %d maps from '%s', but the names before it are '%s'! Each layer has to map from the namespace the one before it maps to, starting with 'official'."
+                        .formatted(namespaces.size() - 1, layer.from(), previous));
+
+            Map<String, String> next = new HashMap<>(composed.size() + layer.classes().size());
+            for (Map.Entry<String, String> entry : composed.entrySet()) {
+                next.put(entry.getKey(), layer.classes().getOrDefault(entry.getValue(), entry.getValue()));
+            }
+
+            // classes the earlier layers don't mention keep their name up to this layer
+            Set<String> names = new HashSet<>(composed.values());
+            for (Map.Entry<String, String> entry : layer.classes().entrySet()) {
+                if (!names.contains(entry.getKey()) && !composed.containsKey(entry.getKey())) {
+                    next.put(entry.getKey(), entry.getValue());
+                }
+            }
+
+            composed = next;
+            namespaces.add(layer.to());
+        }
+
+        return new MappingSet(hash, namespaces, composed);
+    }
+
+    public String getHash() {
+        return this.hash;
+    }
+
+    /**
+     * @return the namespaces the names go through, from the obfuscated ones to the final ones
+     */
+    public List<String> getNamespaces() {
+        return this.namespaces;
+    }
+
+    /**
+     * @return the dotted obfuscated class names mapped to their final names
+     */
+    public Map<String, String> getClassMappings() {
+        return this.classMappings;
+    }
+
+    /**
+     * The table is built the first time it's needed and kept with the set, so it's only built once for as long as
+     * the set stays cached.
+     *
+     * @return the dotted final class names mapped to their obfuscated names
+     */
+    public Map<String, String> getInverseClassMappings() {
+        Map<String, String> inverse = this.inverseClassMappings;
+        if (inverse == null) {
+            Map<String, String> inverted = new HashMap<>(this.classMappings.size());
+            for (Map.Entry<String, String> entry : this.classMappings.entrySet()) {
+                if (inverted.putIfAbsent(entry.getValue(), entry.getKey()) != null)
+                    throw new IllegalStateException("Class '%s' is mapped from more than one class!".formatted(entry.getValue()));
+            }
+
+            inverse = Map.copyOf(inverted);
+            this.inverseClassMappings = inverse;
+        }
+
+        return inverse;
+    }
+
+    @Override
+    public String toString() {
+        return "MappingSet[%s, %d classes]".formatted(String.join(" -> ", this.namespaces), this.classMappings.size());
+    }
+
+    private static @Nullable MappingSet read(String hash, Path cacheFile) {
+        if (Files.notExists(cacheFile))
+            return null;
+
+        try (BufferedReader reader = Files.newBufferedReader(cacheFile, StandardCharsets.UTF_8)) {
+            String header = reader.readLine();
+            if (header == null || !header.startsWith(NAMESPACES_PREFIX))
+                return null;
+
+            List<String> namespaces = List.of(header.substring(NAMESPACES_PREFIX.length()).split("\t"));
+            Map<String, String> classMappings = new HashMap<>();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int separator = line.indexOf('\t');
+                if (separator > 0) {
+                    classMappings.put(line.substring(0, separator), line.substring(separator + 1));
+                }
+            }
+
+            return new MappingSet(hash, namespaces, classMappings);
+        } catch (IOException exception) {
+            // composed again
+            return null;
+        }
+    }
+
+    private void write(Path cacheFile) {
+        try {
+            Files.createDirectories(cacheFile.getParent());
+            // another build may be writing the same set
+            Path tempFile = Files.createTempFile(cacheFile.getParent(), cacheFile.getFileName().toString(), ".tmp");
+            try (BufferedWriter writer = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8)) {
+                writer.write(NAMESPACES_PREFIX + String.join("\t", this.namespaces));
+                writer.newLine();
+                for (Map.Entry<String, String> entry : new TreeMap<>(this.classMappings).entrySet()) {
+                    writer.write(entry.getKey());
+                    writer.write('\t');
+                    writer.write(entry.getValue());
+                    writer.newLine();
+                }
+            }
+
+            Files.move(tempFile, cacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException exception) {
+            // only a cache, the set is composed again next time
+            System.out.println("Failed to cache the composed mappings: " + exception.getMessage());
+        }
+    }
+}
@@ -5,83 +5,193 @@ import org.jetbrains.annotations.Nullable;
 import java.util.*;
 import java.util.function.Predicate;
 
+/**
+ * A tree of packages, classes and their members, stored as columns: every node is an {@code int} id into parallel
+ * arrays of its parent, first child, next sibling and names, and every string is stored once in a shared pool. The
+ * parameter lists of methods, which repeat a lot, are interned as well.
+ * <p>
+ * The {@link MappingNode}s handed out are views of a node id that are created when asked for, so the tree itself
+ * holds no objects per node. Loaded mappings take up a fraction of what a tree of node objects with a map of children
+ * each would, which matters as the daemon keeps the mappings of several versions around.
+ */
 public class MappingTree {
-    private final List<MappingNode> rootNodes = new ArrayList<>();
+    private static final int NONE = -1;
+
+    private static final byte PACKAGE = 0;
+    private static final byte CLASS = 1;
+    private static final byte METHOD = 2;
+    private static final byte FIELD = 3;
+
+    private int count;
+    private byte[] kinds = new byte[1024];
+    private int[] parents = new int[1024];
+    private int[] firstChildren = new int[1024];
+    private int[] lastChildren = new int[1024];
+    private int[] nextSiblings = new int[1024];
+    private int[] names = new int[1024];
+    private int[] obfuscatedNames = new int[1024];
+    // the type of fields and the return type of methods
+    private int[] types = new int[1024];
+    private int[] parameterLists = new int[1024];
+    private int[] fromLines = new int[1024];
+    private int[] toLines = new int[1024];
+
+    private int firstRoot = NONE;
+    private int lastRoot = NONE;
+    private int rootCount;
+
+    private final StringPool strings = new StringPool();
+    private final List<int[]> parameterTable = new ArrayList<>();
+    private final Map<ParameterList, Integer> parameterIds = new HashMap<>();
+
+    // packages by their parent and name, so that adding a class doesn't have to search for its package
+    private final Map<Long, Integer> packages = new HashMap<>();
 
     public List<MappingNode> getRootNodes() {
-        return List.copyOf(this.rootNodes);
+        List<MappingNode> roots = new ArrayList<>(this.rootCount);
+        for (int root = this.firstRoot; root != NONE; root = this.nextSiblings[root]) {
+            roots.add(node(root));
+        }
+
+        return roots;
+    }
+
+    /**
+     * @return the package with the given name below the parent, which is added if it doesn't exist yet
+     */
+    public MappingNode getOrAddPackage(String name, @Nullable MappingNode parent) {
+        int parentId = idOf(parent);
+        int nameId = this.strings.intern(name);
+        long key = (long) parentId << 32 | nameId & 0xFFFFFFFFL;
+
+        Integer existing = this.packages.get(key);
+        if (existing != null)
+            return node(existing);
+
+        int id = add(PACKAGE, parentId, nameId, NONE);
+        this.packages.put(key, id);
+        return node(id);
+    }
+
+    public ClassNode addClass(String name, String obfuscatedName, @Nullable MappingNode parent) {
+        return (ClassNode) node(add(CLASS, idOf(parent), this.strings.intern(name), this.strings.intern(obfuscatedName)));
+    }
+
+    public MethodNode addMethod(String name, String obfuscatedName, int fromLine, int toLine, String returnType, List<String> parameters, ClassNode parent) {
+        int id = add(METHOD, parent.id, this.strings.intern(name), this.strings.intern(obfuscatedName));
+        this.types[id] = this.strings.intern(returnType);
+        this.parameterLists[id] = internParameters(parameters);
+        this.fromLines[id] = fromLine;
+        this.toLines[id] = toLine;
+        return (MethodNode) node(id);
     }
 
-    public void addRootNode(MappingNode node) {
-        this.rootNodes.add(node);
+    public FieldNode addField(String name, String obfuscatedName, String type, ClassNode parent) {
+        int id = add(FIELD, parent.id, this.strings.intern(name), this.strings.intern(obfuscatedName));
+        this.types[id] = this.strings.intern(type);
+        return (FieldNode) node(id);
+    }
+
+    /**
+     * Shrinks the arrays to the nodes that were added and drops what is only needed while adding them. Nodes can
+     * still be added afterwards.
+     */
+    public void trim() {
+        this.kinds = Arrays.copyOf(this.kinds, this.count);
+        this.parents = Arrays.copyOf(this.parents, this.count);
+        this.firstChildren = Arrays.copyOf(this.firstChildren, this.count);
+        this.lastChildren = Arrays.copyOf(this.lastChildren, this.count);
+        this.nextSiblings = Arrays.copyOf(this.nextSiblings, this.count);
+        this.names = Arrays.copyOf(this.names, this.count);
+        this.obfuscatedNames = Arrays.copyOf(this.obfuscatedNames, this.count);
+        this.types = Arrays.copyOf(this.types, this.count);
+        this.parameterLists = Arrays.copyOf(this.parameterLists, this.count);
+        this.fromLines = Arrays.copyOf(this.fromLines, this.count);
+        this.toLines = Arrays.copyOf(this.toLines, this.count);
+        this.strings.trim();
+        this.parameterIds.clear();
+    }
+
+    public int getNodeCount() {
+        return this.count;
+    }
+
+    public int getStringCount() {
+        return this.strings.size();
     }
 
     public @Nullable MappingNode findNode(Collection<MappingNode> nodes, Predicate<MappingNode> predicate) {
-        Deque<MappingNode> stack = new ArrayDeque<>(nodes);
-        while (!stack.isEmpty()) {
-            MappingNode node = stack.pop();
-            if (predicate.test(node)) {
+        for (MappingNode node : nodes) {
+            if (predicate.test(node))
                 return node;
-            }
-
-            // the following line is commented out because it doesn't respect the package hierarchy
-            // stack.addAll(node.getChildren().values());
         }
+
         return null;
     }
 
+    /**
+     * Searches the given nodes and everything below them, breadth first.
+     */
     public @Nullable MappingNode findNodeFull(Collection<MappingNode> nodes, Predicate<MappingNode> predicate) {
-        Deque<MappingNode> stack = new ArrayDeque<>(nodes);
-        while (!stack.isEmpty()) {
-            MappingNode node = stack.pop();
-            if (predicate.test(node)) {
-                return node;
-            }
-
-            stack.addAll(node.getChildren().values());
+        var queue = new IntQueue(Math.max(16, nodes.size()));
+        for (MappingNode node : nodes) {
+            queue.add(node.id);
         }
-        return null;
+
+        return findNodeFull(queue, predicate);
     }
 
-    public MappingNode findNodeFull(Predicate<MappingNode> predicate) {
-        return findNodeFull(this.rootNodes, predicate);
+    public @Nullable MappingNode findNodeFull(Predicate<MappingNode> predicate) {
+        var queue = new IntQueue(Math.max(16, this.rootCount));
+        for (int root = this.firstRoot; root != NONE; root = this.nextSiblings[root]) {
+            queue.add(root);
+        }
+
+        return findNodeFull(queue, predicate);
     }
 
-    public MappingNode findNode(Predicate<MappingNode> predicate) {
-        return findNode(this.rootNodes, predicate);
+    public @Nullable MappingNode findNode(Predicate<MappingNode> predicate) {
+        return findNode(getRootNodes(), predicate);
     }
 
-    public MappingNode findNode() {
-        return findNode(this.rootNodes, mappingNode -> true);
+    public @Nullable MappingNode findNode() {
+        return this.firstRoot == NONE ? null : node(this.firstRoot);
     }
 
     public @Nullable MappingNode findNode(String name, Predicate<MappingNode> predicate) {
-        return findNode(this.rootNodes, predicate.and(mappingNode -> mappingNode.getName().equals(name)));
+        return findNode(getRootNodes(), predicate.and(mappingNode -> mappingNode.getName().equals(name)));
     }
 
     public @Nullable MappingNode findNode(String name) {
-        return findNode(name, mappingNode -> mappingNode.getName().equals(name));
+        return findNode(name, mappingNode -> true);
     }
 
+    /**
+     * @param depth the depth of the nodes, where the root nodes are at depth 1
+     */
     public List<MappingNode> findNodesAtDepth(int depth) {
-        if (depth <= 0) {
-            return this.rootNodes;
-        }
+        if (depth <= 1)
+            return getRootNodes();
 
-        List<MappingNode> nodes = new ArrayList<>();
-        Deque<MappingNode> stack = new ArrayDeque<>(this.rootNodes);
-        int currentDepth = 1;
+        var level = new IntQueue(16);
+        for (int root = this.firstRoot; root != NONE; root = this.nextSiblings[root]) {
+            level.add(root);
+        }
 
-        while (!stack.isEmpty() && currentDepth <= depth) {
-            int size = stack.size();
-            for (int i = 0; i < size; i++) {
-                MappingNode node = stack.pop();
-                stack.addAll(node.getChildren().values());
-                if (currentDepth == depth) {
-                    nodes.add(node);
+        for (int currentDepth = 1; currentDepth < depth && !level.isEmpty(); currentDepth++) {
+            var next = new IntQueue(Math.max(16, level.size() * 2));
+            while (!level.isEmpty()) {
+                for (int child = this.firstChildren[level.poll()]; child != NONE; child = this.nextSiblings[child]) {
+                    next.add(child);
                 }
             }
-            currentDepth++;
+
+            level = next;
+        }
+
+        List<MappingNode> nodes = new ArrayList<>(level.size());
+        while (!level.isEmpty()) {
+            nodes.add(node(level.poll()));
         }
 
         return nodes;
@@ -90,63 +200,199 @@ public class MappingTree {
     public int getMaxDepth(int depth, Collection<MappingNode> nodes) {
         int maxDepth = depth;
         for (MappingNode node : nodes) {
-            int nodeDepth = getMaxDepth(depth + 1, node.getChildren().values());
-            if (nodeDepth > maxDepth) {
-                maxDepth = nodeDepth;
-            }
+            maxDepth = Math.max(maxDepth, getMaxDepth(node.id, depth + 1));
         }
 
         return maxDepth;
     }
 
     public int getMaxDepth() {
-        return getMaxDepth(0, this.rootNodes);
+        return getMaxDepth(0, getRootNodes());
     }
 
     public void print() {
-        for (MappingNode rootNode : this.rootNodes) {
+        for (MappingNode rootNode : getRootNodes()) {
             rootNode.print(0);
         }
     }
 
     public String findPath(MappingNode currentParent) {
-        if (currentParent == null) {
+        if (currentParent == null)
             return "";
-        }
 
         var path = new StringBuilder(currentParent.getName());
-        while (currentParent.getParent() != null) {
-            currentParent = currentParent.getParent();
-            path.insert(0, currentParent.getName() + ".");
+        for (int parent = this.parents[currentParent.id]; parent != NONE; parent = this.parents[parent]) {
+            path.insert(0, '.').insert(0, name(parent));
         }
 
         return path.toString();
     }
 
+    private @Nullable MappingNode findNodeFull(IntQueue queue, Predicate<MappingNode> predicate) {
+        while (!queue.isEmpty()) {
+            int id = queue.poll();
+            MappingNode node = node(id);
+            if (predicate.test(node))
+                return node;
+
+            for (int child = this.firstChildren[id]; child != NONE; child = this.nextSiblings[child]) {
+                queue.add(child);
+            }
+        }
+
+        return null;
+    }
+
+    private int getMaxDepth(int id, int depth) {
+        int maxDepth = depth;
+        for (int child = this.firstChildren[id]; child != NONE; child = this.nextSiblings[child]) {
+            maxDepth = Math.max(maxDepth, getMaxDepth(child, depth + 1));
+        }
+
+        return maxDepth;
+    }
+
+    private int add(byte kind, int parent, int name, int obfuscatedName) {
+        if (this.count == this.kinds.length) {
+            grow(Math.max(1024, this.count * 2));
+        }
+
+        int id = this.count++;
+        this.kinds[id] = kind;
+        this.parents[id] = parent;
+        this.firstChildren[id] = NONE;
+        this.lastChildren[id] = NONE;
+        this.nextSiblings[id] = NONE;
+        this.names[id] = name;
+        this.obfuscatedNames[id] = obfuscatedName;
+        this.types[id] = NONE;
+        this.parameterLists[id] = NONE;
+        this.fromLines[id] = -1;
+        this.toLines[id] = -1;
+
+        // appended, so children keep the order of the mappings file
+        if (parent == NONE) {
+            if (this.lastRoot == NONE) {
+                this.firstRoot = id;
+            } else {
+                this.nextSiblings[this.lastRoot] = id;
+            }
+
+            this.lastRoot = id;
+            this.rootCount++;
+        } else {
+            if (this.lastChildren[parent] == NONE) {
+                this.firstChildren[parent] = id;
+            } else {
+                this.nextSiblings[this.lastChildren[parent]] = id;
+            }
+
+            this.lastChildren[parent] = id;
+        }
+
+        return id;
+    }
+
+    private void grow(int capacity) {
+        this.kinds = Arrays.copyOf(this.kinds, capacity);
+        this.parents = Arrays.copyOf(this.parents, capacity);
+        this.firstChildren = Arrays.copyOf(this.firstChildren, capacity);
+        this.lastChildren = Arrays.copyOf(this.lastChildren, capacity);
+        this.nextSiblings = Arrays.copyOf(this.nextSiblings, capacity);
+        this.names = Arrays.copyOf(this.names, capacity);
+        this.obfuscatedNames = Arrays.copyOf(this.obfuscatedNames, capacity);
+        this.types = Arrays.copyOf(this.types, capacity);
+        this.parameterLists = Arrays.copyOf(this.parameterLists, capacity);
+        this.fromLines = Arrays.copyOf(this.fromLines, capacity);
+        this.toLines = Arrays.copyOf(this.toLines, capacity);
+    }
+
+    private int internParameters(List<String> parameters) {
+        int[] ids = new int[parameters.size()];
+        for (int index = 0; index < ids.length; index++) {
+            ids[index] = this.strings.intern(parameters.get(index));
+        }
+
+        var key = new ParameterList(ids);
+        Integer existing = this.parameterIds.get(key);
+        if (existing != null)
+            return existing;
+
+        // the ids were dropped by trim(), so look through the table instead
+        if (this.parameterIds.isEmpty() && !this.parameterTable.isEmpty()) {
+            for (int index = 0; index < this.parameterTable.size(); index++) {
+                this.parameterIds.put(new ParameterList(this.parameterTable.get(index)), index);
+            }
+
+            existing = this.parameterIds.get(key);
+            if (existing != null)
+                return existing;
+        }
+
+        int id = this.parameterTable.size();
+        this.parameterTable.add(ids);
+        this.parameterIds.put(key, id);
+        return id;
+    }
+
+    private static int idOf(@Nullable MappingNode node) {
+        return node == null ? NONE : node.id;
+    }
+
+    private String name(int id) {
+        return this.strings.get(this.names[id]);
+    }
+
+    private MappingNode node(int id) {
+        return switch (this.kinds[id]) {
+            case CLASS -> new ClassNode(this, id);
+            case METHOD -> new MethodNode(this, id);
+            case FIELD -> new FieldNode(this, id);
+            default -> new MappingNode(this, id);
+        };
+    }
+
+    /**
+     * A view of a node of the tree. Views of the same node are equal.
+     */
     public static class MappingNode {
-        protected final String name;
-        protected final MappingNode parent;
-        protected final Map<String, MappingNode> children = new HashMap<>();
+        protected final MappingTree tree;
+        protected final int id;
 
-        public MappingNode(String name, MappingNode parent) {
-            this.name = name;
-            this.parent = parent;
+        protected MappingNode(MappingTree tree, int id) {
+            this.tree = tree;
+            this.id = id;
         }
 
         public String getName() {
-            return this.name;
+            return this.tree.name(this.id);
         }
 
-        public MappingNode getParent() {
-            return this.parent;
+        public @Nullable MappingNode getParent() {
+            int parent = this.tree.parents[this.id];
+            return parent == NONE ? null : this.tree.node(parent);
         }
 
+        /**
+         * @return the children by name; of overloaded methods, only the last one is included
+         */
         public Map<String, MappingNode> getChildren() {
-            return Map.copyOf(this.children);
+            Map<String, MappingNode> children = new LinkedHashMap<>();
+            for (int child = this.tree.firstChildren[this.id]; child != NONE; child = this.tree.nextSiblings[child]) {
+                children.put(this.tree.name(child), this.tree.node(child));
+            }
+
+            return Collections.unmodifiableMap(children);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof MappingNode node && node.tree == this.tree && node.id == this.id;
         }
 
-        public void addChild(MappingNode node) {
-            this.children.put(node.getName(), node);
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(this.tree) * 31 + this.id;
         }
 
         @Override
@@ -155,95 +401,175 @@ public class MappingTree {
         }
 
         public String getPrintText() {
-            return this.name;
+            return getName();
         }
 
         public void print(int depth) {
-            for (int i = 0; i < depth; i++) {
-                System.out.print("  ");
-            }
-
-            System.out.println(getPrintText());
-            for (MappingNode child : this.children.values()) {
-                child.print(depth + 1);
+            System.out.println("  ".repeat(Math.max(0, depth)) + getPrintText());
+            for (int child = this.tree.firstChildren[this.id]; child != NONE; child = this.tree.nextSiblings[child]) {
+                this.tree.node(child).print(depth + 1);
             }
         }
     }
 
     public static class ObfuscatedNode extends MappingNode {
-        protected final String obfuscatedName;
-
-        public ObfuscatedNode(String name, String obfuscatedName, MappingNode parent) {
-            super(name, parent);
-            this.obfuscatedName = obfuscatedName;
+        protected ObfuscatedNode(MappingTree tree, int id) {
+            super(tree, id);
         }
 
         public String getObfuscatedName() {
-            return this.obfuscatedName;
+            return this.tree.strings.get(this.tree.obfuscatedNames[this.id]);
         }
 
         @Override
         public String getPrintText() {
-            return this.obfuscatedName + " -> " + super.getPrintText();
+            return getObfuscatedName() + " -> " + super.getPrintText();
         }
     }
 
     public static class ClassNode extends ObfuscatedNode {
-        public ClassNode(String name, String obfuscatedName, MappingNode parent) {
-            super(name, obfuscatedName, parent);
+        protected ClassNode(MappingTree tree, int id) {
+            super(tree, id);
         }
     }
 
     public static class MethodNode extends ObfuscatedNode {
-        protected final int fromLine, toLine;
-        protected final String returnType;
-        protected final List<String> parameters;
-
-        public MethodNode(String name, String obfuscatedName, int fromLine, int toLine, String returnType, List<String> parameters, MappingNode parent) {
-            super(name, obfuscatedName, parent);
-            this.fromLine = fromLine;
-            this.toLine = toLine;
-            this.returnType = returnType;
-            this.parameters = parameters;
+        protected MethodNode(MappingTree tree, int id) {
+            super(tree, id);
         }
 
         public int getFromLine() {
-            return this.fromLine;
+            return this.tree.fromLines[this.id];
         }
 
         public int getToLine() {
-            return this.toLine;
+            return this.tree.toLines[this.id];
         }
 
         public String getReturnType() {
-            return this.returnType;
+            return this.tree.strings.get(this.tree.types[this.id]);
         }
 
         public List<String> getParameters() {
-            return List.copyOf(this.parameters);
+            int[] parameters = this.tree.parameterTable.get(this.tree.parameterLists[this.id]);
+            String[] values = new String[parameters.length];
+            for (int index = 0; index < parameters.length; index++) {
+                values[index] = this.tree.strings.get(parameters[index]);
+            }
+
+            return List.of(values);
         }
 
         @Override
         public String getPrintText() {
-            return super.getPrintText() + " (" + this.returnType + " " + String.join(", ", this.parameters) + ")";
+            return super.getPrintText() + " (" + getReturnType() + " " + String.join(", ", getParameters()) + ")";
         }
     }
 
     public static class FieldNode extends ObfuscatedNode {
-        protected final String type;
-
-        public FieldNode(String name, String obfuscatedName, String type, MappingNode parent) {
-            super(name, obfuscatedName, parent);
-            this.type = type;
+        protected FieldNode(MappingTree tree, int id) {
+            super(tree, id);
         }
 
         public String getType() {
-            return this.type;
+            return this.tree.strings.get(this.tree.types[this.id]);
         }
 
         @Override
         public String getPrintText() {
-            return super.getPrintText() + " (" + this.type + ")";
+            return super.getPrintText() + " (" + getType() + ")";
+        }
+    }
+
+    /**
+     * Every distinct string of the tree, stored once and addressed by its position.
+     */
+    private static final class StringPool {
+        private String[] values = new String[1024];
+        private int size;
+        private final Map<String, Integer> ids = new HashMap<>();
+
+        private int intern(String value) {
+            if (this.ids.isEmpty() && this.size > 0) {
+                // dropped by trim()
+                for (int index = 0; index < this.size; index++) {
+                    this.ids.put(this.values[index], index);
+                }
+            }
+
+            Integer existing = this.ids.get(value);
+            if (existing != null)
+                return existing;
+
+            if (this.size == this.values.length) {
+                this.values = Arrays.copyOf(this.values, Math.max(16, this.size * 2));
+            }
+
+            this.values[this.size] = value;
+            this.ids.put(value, this.size);
+            return this.size++;
+        }
+
+        private String get(int id) {
+            return this.values[id];
+        }
+
+        private int size() {
+            return this.size;
+        }
+
+        private void trim() {
+            this.values = Arrays.copyOf(this.values, this.size);
+            this.ids.clear();
+        }
+    }
+
+    private record ParameterList(int[] ids) {
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof ParameterList list && Arrays.equals(this.ids, list.ids);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(this.ids);
+        }
+    }
+
+    private static final class IntQueue {
+        private int[] values;
+        private int head, tail;
+
+        private IntQueue(int capacity) {
+            this.values = new int[capacity];
+        }
+
+        private void add(int value) {
+            if (this.tail == this.values.length) {
+                if (this.head > 0) {
+                    System.arraycopy(this.values, this.head, this.values, 0, this.tail - this.head);
+                    this.tail -= this.head;
+                    this.head = 0;
+                }
+
+                if (this.tail == this.values.length) {
+                    this.values = Arrays.copyOf(this.values, this.values.length * 2);
+                }
+            }
+
+            this.values[this.tail++] = value;
+        }
+
+        private int poll() {
+            return this.values[this.head++];
+        }
+
+        private int size() {
+            return this.tail - this.head;
+        }
+
+        private boolean isEmpty() {
+            return this.head == this.tail;
         }
     }
 }
@@ -15,44 +15,22 @@ public class OfficialMappingsFile implements MappingFile {
         this.mappingTree = parseMappings(path);
     }
 
-    private static MappingTree.MappingNode parseClass(String line, MappingTree mappingTree) {
+    private static MappingTree.ClassNode parseClass(String line, MappingTree mappingTree) {
         String[] parts = line.split(" -> ");
         String classPath = parts[0];
         String obfuscatedName = parts[1];
 
         String[] packageSplit = classPath.split("\\.");
-        List<String> packages = new ArrayList<>(Arrays.asList(packageSplit).subList(0, packageSplit.length - 1));
-
         MappingTree.MappingNode previousPackage = null;
-        for (String aPackage : packages) {
-            MappingTree.MappingNode node = mappingTree.findNode(
-                    previousPackage != null ? previousPackage.getChildren().values() : mappingTree.getRootNodes(),
-                    mappingNode -> mappingNode.getName().equals(aPackage) && !(mappingNode instanceof MappingTree.ObfuscatedNode));
-
-            if (node == null) {
-                node = new MappingTree.MappingNode(aPackage, previousPackage);
-                if (previousPackage == null) {
-                    mappingTree.addRootNode(node);
-                } else {
-                    previousPackage.addChild(node);
-                }
-            }
-
-            previousPackage = node;
+        for (int index = 0; index < packageSplit.length - 1; index++) {
+            previousPackage = mappingTree.getOrAddPackage(packageSplit[index], previousPackage);
         }
 
         String className = packageSplit[packageSplit.length - 1];
-        var classNode = new MappingTree.ClassNode(className, obfuscatedName, previousPackage);
-        if (previousPackage == null) {
-            mappingTree.addRootNode(classNode);
-        } else {
-            previousPackage.addChild(classNode);
-        }
-
-        return classNode;
+        return mappingTree.addClass(className, obfuscatedName, previousPackage);
     }
 
-    private static MappingTree.ObfuscatedNode parseMethodOrField(MappingTree.ClassNode parent, String line) {
+    private static MappingTree.ObfuscatedNode parseMethodOrField(MappingTree mappingTree, MappingTree.ClassNode parent, String line) {
         String[] split = line.split(" -> ");
         String signature = split[0].trim();
         String obfuscatedName = split[1].trim();
@@ -64,7 +42,7 @@ public class OfficialMappingsFile implements MappingFile {
             String returnType = parts[0];
             String name = parts[1];
 
-            return new MappingTree.FieldNode(name, obfuscatedName, returnType, parent);
+            return mappingTree.addField(name, obfuscatedName, returnType, parent);
         } else {
             // method
             String[] infoSplit = parts[0].split(":");
@@ -90,7 +68,7 @@ public class OfficialMappingsFile implements MappingFile {
                     .map(String::trim) // trim params
                     .toList();
 
-            return new MappingTree.MethodNode(name, obfuscatedName, fromLine, toLine, returnType, params, parent);
+            return mappingTree.addMethod(name, obfuscatedName, fromLine, toLine, returnType, params, parent);
         }
     }
 
@@ -144,7 +122,7 @@ public class OfficialMappingsFile implements MappingFile {
 
         try (var linesStream = Files.lines(path)) {
             List<String> lines = linesStream.toList();
-            MappingTree.MappingNode currentParent = null;
+            MappingTree.ClassNode currentParent = null;
 
             long startRead = System.nanoTime();
             final int totalLines = lines.size();
@@ -157,11 +135,9 @@ public class OfficialMappingsFile implements MappingFile {
                     line = line.replace(":", "").trim();
                     currentParent = parseClass(line, mappingTree);
                     String parentPath = mappingTree.findPath(currentParent);
-                    classMappings.put(((MappingTree.ClassNode) currentParent).getObfuscatedName(), parentPath);
-                } else if (currentParent instanceof MappingTree.ClassNode classParent && line.contains("->")) {
-                    MappingTree.ObfuscatedNode node = parseMethodOrField(classParent, line);
-                    currentParent.addChild(node);
-
+                    classMappings.put(currentParent.getObfuscatedName(), parentPath);
+                } else if (currentParent != null && line.contains("->")) {
+                    MappingTree.ObfuscatedNode node = parseMethodOrField(mappingTree, currentParent, line);
                     if (node instanceof MappingTree.MethodNode) {
                         methodMappings.put(node.getObfuscatedName(), node.getName());
                     } else if (node instanceof MappingTree.FieldNode) {
@@ -170,9 +146,12 @@ public class OfficialMappingsFile implements MappingFile {
                 }
             }
 
-            System.out.printf("Parsed %d lines in %dms%n",
+            mappingTree.trim();
+            System.out.printf("Parsed %d lines in %dms (%d nodes, %d distinct strings)%n",
                     totalLines,
-                    (System.nanoTime() - startRead) / 1_000_000);
+                    (System.nanoTime() - startRead) / 1_000_000,
+                    mappingTree.getNodeCount(),
+                    mappingTree.getStringCount());
         } catch (IOException exception) {
             throw new RuntimeException("Failed to read file!", exception);
         }
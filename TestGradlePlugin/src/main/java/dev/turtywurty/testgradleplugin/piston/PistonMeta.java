@@ -1,75 +1,216 @@
 package dev.turtywurty.testgradleplugin.piston;
 
-import com.google.gson.JsonArray;
-import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 import dev.turtywurty.testgradleplugin.TestGradlePlugin;
+import org.jetbrains.annotations.Nullable;
 
-import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.Reader;
+import java.net.HttpURLConnection;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 public class PistonMeta {
     public static final String META_URL = "https://piston-meta.mojang.com/mc/game/version_manifest_v2.json";
     private final PistonMetaLatestVersion latest;
-    private final List<PistonMetaVersion> versions = new ArrayList<>();
+    private final Map<String, PistonMetaVersion> versions = new LinkedHashMap<>();
 
     public PistonMeta(Path metaPath) {
-        try {
-            String json = Files.readString(metaPath);
-            System.out.println("Piston meta json: " + json);
-            JsonObject object = TestGradlePlugin.GSON.fromJson(json, JsonObject.class);
-            if (object.has("latest")) {
-                JsonObject latest = object.getAsJsonObject("latest");
-                this.latest = TestGradlePlugin.GSON.fromJson(latest, PistonMetaLatestVersion.class);
-            } else {
-                this.latest = null;
+        PistonMetaLatestVersion latest = null;
+        try (JsonReader reader = new JsonReader(Files.newBufferedReader(metaPath, StandardCharsets.UTF_8))) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "latest" -> latest = TestGradlePlugin.GSON.fromJson(reader, PistonMetaLatestVersion.class);
+                    case "versions" -> {
+                        reader.beginArray();
+                        while (reader.hasNext()) {
+                            PistonMetaVersion version = readVersion(reader);
+                            this.versions.put(version.id(), version);
+                        }
+
+                        reader.endArray();
+                    }
+                    default -> reader.skipValue();
+                }
             }
 
-            if (object.has("versions")) {
-                JsonArray versions = object.getAsJsonArray("versions");
-                for (JsonElement version : versions) {
-                    this.versions.add(TestGradlePlugin.GSON.fromJson(version, PistonMetaVersion.class));
+            reader.endObject();
+        } catch (IOException exception) {
+            throw new RuntimeException("Failed to load piston meta!", exception);
+        }
+
+        this.latest = latest;
+    }
+
+    /**
+     * Streams through the manifest until the given version is found, without reading the rest of it.
+     */
+    public static @Nullable PistonMetaVersion findVersion(Path metaPath, String version) {
+        try (JsonReader reader = new JsonReader(Files.newBufferedReader(metaPath, StandardCharsets.UTF_8))) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (!reader.nextName().equals("versions")) {
+                    reader.skipValue();
+                    continue;
                 }
+
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    PistonMetaVersion metaVersion = readVersion(reader);
+                    if (metaVersion.id().equals(version))
+                        return metaVersion;
+                }
+
+                return null;
             }
+
+            return null;
         } catch (IOException exception) {
             throw new RuntimeException("Failed to load piston meta!", exception);
         }
     }
 
-    public static void download(Path path) {
-        try (InputStream stream = new URI(META_URL).toURL().openStream()) {
-            String json = new String(stream.readAllBytes());
-            Files.createDirectories(path.getParent());
-            Files.writeString(path, json);
+    private static PistonMetaVersion readVersion(JsonReader reader) throws IOException {
+        String id = null, type = null, url = null, time = null, releaseTime = null, sha1 = null;
+        int complianceLevel = 0;
 
-            System.out.println("Piston meta downloaded to: " + path);
-        } catch (IOException | URISyntaxException exception) {
-            throw new RuntimeException("Failed to download piston meta!", exception);
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.nextNull();
+                continue;
+            }
+
+            switch (name) {
+                case "id" -> id = reader.nextString();
+                case "type" -> type = reader.nextString();
+                case "url" -> url = reader.nextString();
+                case "time" -> time = reader.nextString();
+                case "releaseTime" -> releaseTime = reader.nextString();
+                case "sha1" -> sha1 = reader.nextString();
+                case "complianceLevel" -> complianceLevel = reader.nextInt();
+                default -> reader.skipValue();
+            }
+        }
+
+        reader.endObject();
+        return new PistonMetaVersion(id, type, url, time, releaseTime, sha1, complianceLevel);
+    }
+
+    /**
+     * Whether the manifest at the given path was downloaded, or confirmed to be current, within the given duration.
+     */
+    public static boolean checkedWithin(Path path, Duration duration) {
+        try {
+            return Files.exists(path) && Files.getLastModifiedTime(validatorsPath(path)).toInstant()
+                    .isAfter(Instant.now().minus(duration));
+        } catch (IOException exception) {
+            return false;
         }
     }
 
-    public PistonMetaVersion findVersion(String version) {
-        for (PistonMetaVersion metaVersion : this.versions) {
-            if (metaVersion.id().equals(version)) {
-                return metaVersion;
+    private static Path validatorsPath(Path path) {
+        return path.resolveSibling(path.getFileName() + ".validators");
+    }
+
+    /**
+     * Downloads the version manifest, unless the copy at the given path is still current. The {@code ETag} and
+     * {@code Last-Modified} headers of the last download are kept next to the manifest and sent back as
+     * {@code If-None-Match} and {@code If-Modified-Since}. If there already is a manifest, failing to reach the server
+     * only means that one is used.
+     *
+     * @return whether a new manifest was downloaded
+     */
+    public static boolean download(Path path) {
+        Path validatorsPath = validatorsPath(path);
+        try {
+            var connection = (HttpURLConnection) new URI(META_URL).toURL().openConnection();
+            connection.setConnectTimeout(10_000);
+            connection.setReadTimeout(30_000);
+            if (Files.exists(path) && Files.exists(validatorsPath)) {
+                JsonObject validators;
+                try (Reader reader = Files.newBufferedReader(validatorsPath, StandardCharsets.UTF_8)) {
+                    validators = TestGradlePlugin.GSON.fromJson(reader, JsonObject.class);
+                }
+
+                if (validators != null && validators.has("etag"))
+                    connection.setRequestProperty("If-None-Match", validators.get("etag").getAsString());
+                if (validators != null && validators.has("lastModified"))
+                    connection.setRequestProperty("If-Modified-Since", validators.get("lastModified").getAsString());
+            }
+
+            int responseCode = connection.getResponseCode();
+            if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                connection.disconnect();
+                // the validators' timestamp is when the manifest was last checked
+                Files.setLastModifiedTime(validatorsPath, FileTime.from(Instant.now()));
+                System.out.println("Piston meta is up to date.");
+                return false;
             }
+
+            if (responseCode != HttpURLConnection.HTTP_OK)
+                throw new IOException("Unexpected response code " + responseCode + " from " + META_URL);
+
+            Files.createDirectories(path.getParent());
+            Path tempFile = Files.createTempFile(path.getParent(), path.getFileName().toString(), ".tmp");
+            try {
+                try (InputStream stream = connection.getInputStream()) {
+                    Files.copy(stream, tempFile, StandardCopyOption.REPLACE_EXISTING);
+                }
+
+                Files.move(tempFile, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tempFile);
+            }
+
+            var validators = new JsonObject();
+            String etag = connection.getHeaderField("ETag");
+            if (etag != null)
+                validators.addProperty("etag", etag);
+
+            String lastModified = connection.getHeaderField("Last-Modified");
+            if (lastModified != null)
+                validators.addProperty("lastModified", lastModified);
+
+            Files.writeString(validatorsPath, validators.toString(), StandardCharsets.UTF_8);
+
+            System.out.println("Piston meta downloaded to: " + path);
+            return true;
+        } catch (IOException | URISyntaxException exception) {
+            if (Files.notExists(path))
+                throw new RuntimeException("Failed to download piston meta!", exception);
+
+            // every task depends on this one, so being offline for a moment mustn't fail the build
+            System.out.println("Failed to check for a newer piston meta, using the cached one: " + exception);
+            return false;
         }
+    }
 
-        return null;
+    public @Nullable PistonMetaVersion findVersion(String version) {
+        return this.versions.get(version);
     }
 
     public PistonMetaLatestVersion latest() {
         return this.latest;
     }
 
-    public List<PistonMetaVersion> versions() {
-        return this.versions;
+    public Collection<PistonMetaVersion> versions() {
+        return Collections.unmodifiableCollection(this.versions.values());
     }
 }
@@ -0,0 +1,283 @@
+package dev.turtywurty.testgradleplugin.remap;
+
+import dev.turtywurty.testgradleplugin.HashingFunction;
+import dev.turtywurty.testgradleplugin.util.CacheLock;
+import org.jetbrains.annotations.Nullable;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Changes the access of classes and their members while they are remapped, so that mods can reach what Minecraft
+ * keeps private. Rules are written against the remapped names, one per line:
+ * <pre>
+ * # makes the class public
+ * public net.minecraft.world.level.Level
+ * # makes the field protected and removes its final modifier
+ * protected-f net.minecraft.world.level.Level random
+ * public net.minecraft.world.level.Level tick(Ljava/util/function/BooleanSupplier;)V
+ * # every field, or every method of the class
+ * public net.minecraft.world.level.Level *
+ * public net.minecraft.world.level.Level *()
+ * </pre>
+ * The access is {@code public}, {@code protected}, {@code default} or {@code private}, optionally followed by
+ * {@code -f} or {@code +f} to remove or add the final modifier. Access is only ever widened, and when several rules
+ * target the same class or member, the widest access wins and removing final wins over adding it.
+ * <p>
+ * Rules are indexed by their class, so classes without any rules don't pay anything for them.
+ */
+public final class AccessTransformer {
+    public static final AccessTransformer EMPTY = new AccessTransformer(Map.of());
+
+    private static final int VISIBILITY = Opcodes.ACC_PUBLIC | Opcodes.ACC_PROTECTED | Opcodes.ACC_PRIVATE;
+
+    private final Map<String, ClassRules> classes;
+
+    private AccessTransformer(Map<String, ClassRules> classes) {
+        this.classes = classes;
+    }
+
+    /**
+     * Identifies the rules by the contents of their files, in any order.
+     */
+    public static String hash(List<Path> files) {
+        List<String> parts = new ArrayList<>();
+        parts.add("access");
+        files.stream().map(HashingFunction.SHA1::hash).sorted().forEach(parts::add);
+        return Objects.requireNonNull(CacheLock.key(parts.toArray(String[]::new)));
+    }
+
+    public static AccessTransformer read(List<Path> files) {
+        if (files.isEmpty())
+            return EMPTY;
+
+        Map<String, ClassRules> classes = new HashMap<>();
+        for (Path file : files) {
+            try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                String line;
+                int lineNumber = 0;
+                while ((line = reader.readLine()) != null) {
+                    lineNumber++;
+                    int comment = line.indexOf('#');
+                    if (comment >= 0) {
+                        line = line.substring(0, comment);
+                    }
+
+                    line = line.trim();
+                    if (line.isEmpty())
+                        continue;
+
+                    String[] parts = line.split("\\s+");
+                    if (parts.length < 2 || parts.length > 3)
+                        throw new IllegalArgumentException("Invalid access transformer at %s:%d: %s".formatted(file.getFileName(), lineNumber, line));
+
+                    Rule rule = Rule.parse(parts[0]);
+                    if (rule == null)
+                        throw new IllegalArgumentException("Invalid access '%s' at %s:%d".formatted(parts[0], file.getFileName(), lineNumber));
+
+                    ClassRules rules = classes.computeIfAbsent(parts[1].replace('.', '/'), ignored -> new ClassRules());
+                    if (parts.length == 2) {
+                        rules.classRule = Rule.merge(rules.classRule, rule);
+                    } else {
+                        rules.addMember(parts[2], rule);
+                    }
+                }
+            } catch (IOException exception) {
+                throw new IllegalStateException("Failed to read access transformer '%s'!".formatted(file), exception);
+            }
+        }
+
+        return new AccessTransformer(Map.copyOf(classes));
+    }
+
+    public boolean isEmpty() {
+        return this.classes.isEmpty();
+    }
+
+    /**
+     * @param internalName the remapped internal name of the class
+     */
+    public boolean hasRules(String internalName) {
+        return this.classes.containsKey(internalName);
+    }
+
+    /**
+     * Wraps the visitor that receives the remapped class, for classes that {@link #hasRules(String) have rules}.
+     */
+    public ClassVisitor visitor(ClassVisitor next) {
+        return new TransformingVisitor(next);
+    }
+
+    @Override
+    public String toString() {
+        return "AccessTransformer[%d classes]".formatted(this.classes.size());
+    }
+
+    private static final class ClassRules {
+        private @Nullable Rule classRule;
+        private @Nullable Rule allFields;
+        private @Nullable Rule allMethods;
+        private final Map<String, Rule> fields = new HashMap<>();
+        // by name followed by descriptor
+        private final Map<String, Rule> methods = new HashMap<>();
+
+        private void addMember(String member, Rule rule) {
+            if (member.equals("*")) {
+                this.allFields = Rule.merge(this.allFields, rule);
+            } else if (member.equals("*()")) {
+                this.allMethods = Rule.merge(this.allMethods, rule);
+            } else if (member.indexOf('(') >= 0) {
+                this.methods.merge(member, rule, Rule::merge);
+            } else {
+                this.fields.merge(member, rule, Rule::merge);
+            }
+        }
+
+        private @Nullable Rule field(String name) {
+            return Rule.merge(this.allFields, this.fields.get(name));
+        }
+
+        private @Nullable Rule method(String name, String descriptor) {
+            return Rule.merge(this.allMethods, this.methods.get(name + descriptor));
+        }
+    }
+
+    /**
+     * @param visibility the access flag of the visibility, or {@code 0} for package private
+     * @param finality   {@code -1} to remove the final modifier, {@code 1} to add it, {@code 0} to leave it
+     */
+    private record Rule(int visibility, int finality) {
+        private static @Nullable Rule parse(String access) {
+            int finality = 0;
+            if (access.endsWith("-f")) {
+                finality = -1;
+                access = access.substring(0, access.length() - 2);
+            } else if (access.endsWith("+f")) {
+                finality = 1;
+                access = access.substring(0, access.length() - 2);
+            }
+
+            return switch (access) {
+                case "public" -> new Rule(Opcodes.ACC_PUBLIC, finality);
+                case "protected" -> new Rule(Opcodes.ACC_PROTECTED, finality);
+                case "default" -> new Rule(0, finality);
+                case "private" -> new Rule(Opcodes.ACC_PRIVATE, finality);
+                default -> null;
+            };
+        }
+
+        private static @Nullable Rule merge(@Nullable Rule first, @Nullable Rule second) {
+            if (first == null)
+                return second;
+            if (second == null)
+                return first;
+
+            int visibility = rank(first.visibility) >= rank(second.visibility) ? first.visibility : second.visibility;
+            return new Rule(visibility, Math.min(first.finality, second.finality));
+        }
+
+        private static int rank(int visibility) {
+            return switch (visibility) {
+                case Opcodes.ACC_PUBLIC -> 3;
+                case Opcodes.ACC_PROTECTED -> 2;
+                case Opcodes.ACC_PRIVATE -> 0;
+                default -> 1;
+            };
+        }
+
+        private int apply(int access) {
+            int current = access & VISIBILITY;
+            if (rank(this.visibility) > rank(current)) {
+                access = access & ~VISIBILITY | this.visibility;
+            }
+
+            if (this.finality < 0) {
+                access &= ~Opcodes.ACC_FINAL;
+            } else if (this.finality > 0) {
+                access |= Opcodes.ACC_FINAL;
+            }
+
+            return access;
+        }
+
+        private boolean opensPrivate() {
+            return this.visibility != Opcodes.ACC_PRIVATE;
+        }
+    }
+
+    private final class TransformingVisitor extends ClassVisitor {
+        private String className;
+        private @Nullable ClassRules rules;
+        private boolean isInterface;
+
+        private TransformingVisitor(ClassVisitor next) {
+            super(Opcodes.ASM9, next);
+        }
+
+        @Override
+        public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+            this.className = name;
+            this.rules = classes.get(name);
+            this.isInterface = (access & Opcodes.ACC_INTERFACE) != 0;
+            if (this.rules != null && this.rules.classRule != null) {
+                access = this.rules.classRule.apply(access);
+            }
+
+            super.visit(version, access, name, signature, superName, interfaces);
+        }
+
+        @Override
+        public void visitInnerClass(String name, String outerName, String innerName, int access) {
+            // the inner class attribute has to agree with the class itself, or javac keeps using the old access
+            ClassRules innerRules = classes.get(name);
+            if (innerRules != null && innerRules.classRule != null) {
+                access = innerRules.classRule.apply(access);
+            }
+
+            super.visitInnerClass(name, outerName, innerName, access);
+        }
+
+        @Override
+        public FieldVisitor visitField(int access, String name, String descriptor, String signature, Object value) {
+            Rule rule = this.rules == null ? null : this.rules.field(name);
+            return super.visitField(rule == null ? access : rule.apply(access), name, descriptor, signature, value);
+        }
+
+        @Override
+        public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+            Rule rule = this.rules == null ? null : this.rules.method(name, descriptor);
+            MethodVisitor visitor = super.visitMethod(rule == null ? access : rule.apply(access), name, descriptor, signature, exceptions);
+            return this.rules == null || visitor == null ? visitor : new InvokeSpecialVisitor(visitor);
+        }
+
+        /**
+         * Private methods of the class itself are called with invokespecial, which has to become a virtual call
+         * once they aren't private anymore.
+         */
+        private final class InvokeSpecialVisitor extends MethodVisitor {
+            private InvokeSpecialVisitor(MethodVisitor next) {
+                super(Opcodes.ASM9, next);
+            }
+
+            @Override
+            public void visitMethodInsn(int opcode, String owner, String name, String descriptor, boolean isInterface) {
+                if (opcode == Opcodes.INVOKESPECIAL && owner.equals(className) && !name.equals("<init>")) {
+                    Rule rule = rules.method(name, descriptor);
+                    if (rule != null && rule.opensPrivate()) {
+                        opcode = TransformingVisitor.this.isInterface ? Opcodes.INVOKEINTERFACE : Opcodes.INVOKEVIRTUAL;
+                    }
+                }
+
+                super.visitMethodInsn(opcode, owner, name, descriptor, isInterface);
+            }
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package dev.turtywurty.testgradleplugin.remap;
+
+import org.objectweb.asm.commons.Remapper;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remaps class names from the obfuscated names of a mappings file to the named ones. Instances are shared by all the
+ * threads of a remap: the names are copied into an immutable table of internal names when the remapper is created,
+ * and descriptors and signatures are remembered once they've been mapped, so a reference that was seen before costs a
+ * single lookup.
+ */
+public class ClassReferenceRemapper extends Remapper {
+    // internal names, only of the classes whose name actually changes
+    private final Map<String, String> internalNames;
+
+    private final Map<String, String> descriptors = new ConcurrentHashMap<>();
+    private final Map<String, String> methodDescriptors = new ConcurrentHashMap<>();
+    private final Map<String, String> typeSignatures = new ConcurrentHashMap<>();
+    private final Map<String, String> signatures = new ConcurrentHashMap<>();
+
+    /**
+     * @param classMappings the obfuscated class names mapped to the named ones, either with dots or slashes
+     */
+    public ClassReferenceRemapper(Map<String, String> classMappings) {
+        Map<String, String> internalNames = new HashMap<>(classMappings.size());
+        classMappings.forEach((obfuscated, named) -> {
+            String from = obfuscated.replace('.', '/');
+            String to = named.replace('.', '/');
+            if (!from.equals(to)) {
+                internalNames.put(from, to);
+            }
+        });
+
+        this.internalNames = Map.copyOf(internalNames);
+    }
+
+    @Override
+    public String map(String internalName) {
+        String mapped = this.internalNames.get(internalName);
+        return mapped != null ? mapped : internalName;
+    }
+
+    /**
+     * @return whether the class keeps its name
+     */
+    public boolean isUnmapped(String internalName) {
+        return !this.internalNames.containsKey(internalName);
+    }
+
+    /**
+     * @return the internal names of every class whose name changes
+     */
+    public Set<String> getMappedNames() {
+        return this.internalNames.keySet();
+    }
+
+    @Override
+    public String mapType(String internalName) {
+        if (internalName == null || internalName.isEmpty())
+            return internalName;
+
+        // the internal name of an array is its descriptor
+        return internalName.charAt(0) == '[' ? mapDesc(internalName) : map(internalName);
+    }
+
+    @Override
+    public String mapDesc(String descriptor) {
+        String mapped = this.descriptors.get(descriptor);
+        return mapped != null ? mapped : remember(this.descriptors, descriptor, super.mapDesc(descriptor));
+    }
+
+    @Override
+    public String mapMethodDesc(String methodDescriptor) {
+        String mapped = this.methodDescriptors.get(methodDescriptor);
+        return mapped != null ? mapped : remember(this.methodDescriptors, methodDescriptor, super.mapMethodDesc(methodDescriptor));
+    }
+
+    @Override
+    public String mapSignature(String signature, boolean typeSignature) {
+        if (signature == null)
+            return null;
+
+        Map<String, String> cache = typeSignature ? this.typeSignatures : this.signatures;
+        String mapped = cache.get(signature);
+        return mapped != null ? mapped : remember(cache, signature, super.mapSignature(signature, typeSignature));
+    }
+
+    /**
+     * Stores a mapped value without computeIfAbsent, since mapping a descriptor maps the descriptors inside of it
+     * through the same cache. Unchanged values are stored as the original string, so nothing new is kept for them.
+     */
+    private static String remember(Map<String, String> cache, String value, String mapped) {
+        String stored = mapped.equals(value) ? value : mapped;
+        String previous = cache.putIfAbsent(value, stored);
+        return previous != null ? previous : stored;
+    }
+}
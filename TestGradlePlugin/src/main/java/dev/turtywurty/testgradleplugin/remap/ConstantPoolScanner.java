@@ -0,0 +1,161 @@
+package dev.turtywurty.testgradleplugin.remap;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decides whether a class has to be remapped by reading nothing but its constant pool. Every class name a class
+ * refers to, whether in a class constant, a descriptor or a signature, is a UTF-8 entry of the pool, so a class none
+ * of whose entries mention a mapped class comes out of the remapper unchanged and can be copied as it is.
+ * <p>
+ * The check is conservative: a string constant that merely looks like a mapped name makes the class go through the
+ * remapper, which is harmless.
+ */
+final class ConstantPoolScanner {
+    private static final int MAGIC = 0xCAFEBABE;
+
+    private static final int UTF8 = 1;
+    private static final int INTEGER = 3;
+    private static final int FLOAT = 4;
+    private static final int LONG = 5;
+    private static final int DOUBLE = 6;
+    private static final int CLASS = 7;
+    private static final int STRING = 8;
+    private static final int FIELD_REF = 9;
+    private static final int METHOD_REF = 10;
+    private static final int INTERFACE_METHOD_REF = 11;
+    private static final int NAME_AND_TYPE = 12;
+    private static final int METHOD_HANDLE = 15;
+    private static final int METHOD_TYPE = 16;
+    private static final int DYNAMIC = 17;
+    private static final int INVOKE_DYNAMIC = 18;
+    private static final int MODULE = 19;
+    private static final int PACKAGE = 20;
+
+    private final Set<String> mappedNames;
+    private final int shortestName;
+
+    // descriptors and signatures repeat across classes ("Ljava/lang/Object;", "()V"...), so their answer is kept
+    private final Map<String, Boolean> descriptorCache = new ConcurrentHashMap<>();
+    private final AtomicInteger cacheHits = new AtomicInteger();
+
+    ConstantPoolScanner(ClassReferenceRemapper remapper) {
+        this.mappedNames = remapper.getMappedNames();
+
+        int shortest = Integer.MAX_VALUE;
+        for (String internalName : this.mappedNames) {
+            shortest = Math.min(shortest, internalName.length());
+        }
+
+        this.shortestName = shortest;
+    }
+
+    /**
+     * @return whether the class mentions a mapped class, or the class file couldn't be read, in which case the
+     * remapper should deal with it
+     */
+    boolean needsRemapping(byte[] classFile) {
+        if (this.mappedNames.isEmpty())
+            return false;
+
+        try {
+            if (readInt(classFile, 0) != MAGIC)
+                return true;
+
+            int count = readUnsignedShort(classFile, 8);
+            int offset = 10;
+            for (int index = 1; index < count; index++) {
+                int tag = classFile[offset] & 0xFF;
+                switch (tag) {
+                    case UTF8 -> {
+                        int length = readUnsignedShort(classFile, offset + 1);
+                        if (mentionsMappedName(classFile, offset + 3, length))
+                            return true;
+
+                        offset += 3 + length;
+                    }
+                    case CLASS, STRING, METHOD_TYPE, MODULE, PACKAGE -> offset += 3;
+                    case METHOD_HANDLE -> offset += 4;
+                    case INTEGER, FLOAT, FIELD_REF, METHOD_REF, INTERFACE_METHOD_REF, NAME_AND_TYPE, DYNAMIC,
+                         INVOKE_DYNAMIC -> offset += 5;
+                    case LONG, DOUBLE -> {
+                        offset += 9;
+                        // takes up two entries
+                        index++;
+                    }
+                    default -> {
+                        return true;
+                    }
+                }
+            }
+
+            return false;
+        } catch (ArrayIndexOutOfBoundsException exception) {
+            return true;
+        }
+    }
+
+    int getCacheHits() {
+        return this.cacheHits.get();
+    }
+
+    private boolean mentionsMappedName(byte[] classFile, int start, int length) {
+        if (length < this.shortestName)
+            return false;
+
+        // class names are ASCII, so anything else can only turn into characters that don't match any of them
+        String value = new String(classFile, start, length, StandardCharsets.ISO_8859_1);
+        if (this.mappedNames.contains(value))
+            return true;
+
+        // only descriptors and signatures can contain a name that isn't the whole entry
+        if (value.indexOf(';') < 0)
+            return false;
+
+        Boolean cached = this.descriptorCache.get(value);
+        if (cached != null) {
+            this.cacheHits.incrementAndGet();
+            return cached;
+        }
+
+        boolean mentions = scanDescriptor(value);
+        this.descriptorCache.put(value, mentions);
+        return mentions;
+    }
+
+    /**
+     * Checks every {@code L<name>;} of a descriptor or signature, where a signature may also end a name with type
+     * arguments or an inner class.
+     */
+    private boolean scanDescriptor(String descriptor) {
+        int index = descriptor.indexOf('L');
+        while (index >= 0) {
+            int end = index + 1;
+            while (end < descriptor.length()) {
+                char character = descriptor.charAt(end);
+                if (character == ';' || character == '<' || character == '.')
+                    break;
+
+                end++;
+            }
+
+            if (end - index - 1 >= this.shortestName && this.mappedNames.contains(descriptor.substring(index + 1, end)))
+                return true;
+
+            index = descriptor.indexOf('L', index + 1);
+        }
+
+        return false;
+    }
+
+    private static int readUnsignedShort(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xFF) << 8 | bytes[offset + 1] & 0xFF;
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xFF) << 24 | (bytes[offset + 1] & 0xFF) << 16 | (bytes[offset + 2] & 0xFF) << 8 | bytes[offset + 3] & 0xFF;
+    }
+}
@@ -0,0 +1,157 @@
+package dev.turtywurty.testgradleplugin.remap;
+
+import org.jetbrains.annotations.Nullable;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.commons.ClassRemapper;
+import org.objectweb.asm.commons.Remapper;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * Remaps every class of an extracted jar into another directory, moving each class to the path of its mapped name.
+ * Everything that isn't a class is copied over as is. The input directory is never modified.
+ * <p>
+ * Most classes of a jar, like the bundled libraries, don't refer to any mapped class at all. Their constant pool is
+ * checked first and they are copied byte for byte; only the others are read and written by ASM.
+ * <p>
+ * An {@link AccessTransformer} runs in the same pass, right behind the remapper, so it sees the remapped names. The
+ * classes it has rules for are always rewritten.
+ */
+public class DirectoryRemapper {
+    public static Result remap(Path inputDir, Path outputDir, Map<String, String> classMappings) {
+        return remap(inputDir, outputDir, classMappings, Runtime.getRuntime().availableProcessors());
+    }
+
+    public static Result remap(Path inputDir, Path outputDir, Map<String, String> classMappings, int threads) {
+        return remap(inputDir, outputDir, classMappings, AccessTransformer.EMPTY, threads);
+    }
+
+    public static Result remap(Path inputDir, Path outputDir, Map<String, String> classMappings, AccessTransformer accessTransformer) {
+        return remap(inputDir, outputDir, classMappings, accessTransformer, Runtime.getRuntime().availableProcessors());
+    }
+
+    public static Result remap(Path inputDir, Path outputDir, Map<String, String> classMappings, AccessTransformer accessTransformer, int threads) {
+        long start = System.nanoTime();
+
+        List<Path> files;
+        try (Stream<Path> paths = Files.walk(inputDir)) {
+            files = paths.filter(Files::isRegularFile).toList();
+        } catch (IOException exception) {
+            throw new IllegalStateException("Failed to list files in '%s'!".formatted(inputDir), exception);
+        }
+
+        var remapper = new ClassReferenceRemapper(classMappings);
+        var scanner = new ConstantPoolScanner(remapper);
+        var rewritten = new AtomicInteger();
+        var unchanged = new AtomicInteger();
+        var unmapped = new AtomicInteger();
+        var copied = new AtomicInteger();
+        var transformed = new AtomicInteger();
+
+        // the files are split into chunks by the parallel stream, each remapped on one of the pool's threads
+        try (var forkJoinPool = new ForkJoinPool(Math.max(1, threads))) {
+            forkJoinPool.submit(() -> files.parallelStream().forEach(file -> {
+                String relativePath = inputDir.relativize(file).toString().replace('\\', '/');
+                if (!relativePath.endsWith(".class")) {
+                    copy(file, outputDir.resolve(relativePath));
+                    copied.incrementAndGet();
+                    return;
+                }
+
+                String internalName = relativePath.substring(0, relativePath.length() - ".class".length());
+                if (remapper.isUnmapped(internalName)) {
+                    unmapped.incrementAndGet();
+                }
+
+                String mappedName = remapper.map(internalName);
+                boolean transform = accessTransformer.hasRules(mappedName);
+                if (transform) {
+                    transformed.incrementAndGet();
+                }
+
+                if (remapClass(file, outputDir.resolve(mappedName + ".class"), remapper, scanner, transform ? accessTransformer : null)) {
+                    rewritten.incrementAndGet();
+                } else {
+                    unchanged.incrementAndGet();
+                }
+            })).get();
+        } catch (ExecutionException exception) {
+            throw new IllegalStateException("Failed to remap '%s'!".formatted(inputDir), exception.getCause());
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Got interrupted!", exception);
+        }
+
+        return new Result(rewritten.get(), unchanged.get(), unmapped.get(), transformed.get(), copied.get(), scanner.getCacheHits(), System.nanoTime() - start);
+    }
+
+    /**
+     * @param accessTransformer the transformer, only given if it has rules for the class
+     * @return whether the class was rewritten, rather than copied because it doesn't refer to any mapped class
+     */
+    private static boolean remapClass(Path path, Path newPath, Remapper remapper, ConstantPoolScanner scanner, @Nullable AccessTransformer accessTransformer) {
+        try {
+            byte[] bytes = Files.readAllBytes(path);
+            boolean rewrite = accessTransformer != null || scanner.needsRemapping(bytes);
+            if (rewrite) {
+                // handing the reader to the writer copies its constant pool as it is, instead of encoding every
+                // entry again; neither remapping nor the access transformer changes the stack, so the max stack and
+                // locals stay valid as well
+                var classReader = new ClassReader(bytes);
+                var classWriter = new ClassWriter(classReader, 0);
+                ClassVisitor visitor = accessTransformer != null ? accessTransformer.visitor(classWriter) : classWriter;
+                classReader.accept(new ClassRemapper(visitor, remapper), 0);
+                bytes = classWriter.toByteArray();
+            }
+
+            Files.createDirectories(newPath.getParent());
+            Files.write(newPath, bytes);
+            return rewrite;
+        } catch (IOException exception) {
+            throw new IllegalStateException("Failed to remap class '%s'!".formatted(path), exception);
+        }
+    }
+
+    private static void copy(Path path, Path newPath) {
+        try {
+            Files.createDirectories(newPath.getParent());
+            Files.copy(path, newPath);
+        } catch (IOException exception) {
+            throw new IllegalStateException("Failed to copy file '%s'!".formatted(path), exception);
+        }
+    }
+
+    /**
+     * @param rewritten the classes that went through the remapper
+     * @param unchanged the classes that were copied because they don't refer to any mapped class
+     * @param unmapped the classes without a mapping of their own, whether rewritten or not
+     * @param transformed the classes the access transformer had rules for
+     * @param copied the files that aren't classes
+     * @param cacheHits the descriptors whose check was answered from the cache
+     */
+    public record Result(int rewritten, int unchanged, int unmapped, int transformed, int copied, int cacheHits, long nanos) {
+        public int classes() {
+            return rewritten + unchanged;
+        }
+
+        public double seconds() {
+            return nanos / 1_000_000_000D;
+        }
+
+        @Override
+        public String toString() {
+            return "%d classes (%d rewritten, %d copied unchanged, %d without mappings, %d access transformed) and %d other files in %.2fs, %d descriptor cache hits"
+                    .formatted(classes(), rewritten, unchanged, unmapped, transformed, copied, seconds(), cacheHits);
+        }
+    }
+}
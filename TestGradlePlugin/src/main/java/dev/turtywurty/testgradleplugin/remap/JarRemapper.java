@@ -0,0 +1,266 @@
+package dev.turtywurty.testgradleplugin.remap;
+
+import dev.turtywurty.testgradleplugin.util.ArchiveExtractor;
+import dev.turtywurty.testgradleplugin.util.FileUtil;
+import org.jetbrains.annotations.Nullable;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.commons.ClassRemapper;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.stream.IntStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Remaps the classes of a jar into another jar, keeping the order and timestamps of its entries.
+ * <p>
+ * When given a work directory, the remapped classes are kept there, along with the CRC and size of the entries they
+ * were remapped from. The next time the same jar is remapped with the same mappings, only the classes whose entry changed go
+ * through ASM again; the central directory of the jar is enough to tell, so the others aren't even inflated.
+ */
+public class JarRemapper {
+    private static final String STATE_FILE = "state.txt";
+    private static final String CLASSES_DIR = "classes";
+
+    /**
+     * Remaps the whole jar, without keeping anything for the next time.
+     */
+    public static Result remap(Path inputJar, Path outputJar, Map<String, String> classMappings) {
+        return remap(inputJar, outputJar, classMappings, null, null, Runtime.getRuntime().availableProcessors());
+    }
+
+    public static Result remap(Path inputJar, Path outputJar, Map<String, String> classMappings, String mappingsKey, Path workDir) {
+        return remap(inputJar, outputJar, classMappings, mappingsKey, workDir, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param mappingsKey identifies the mappings, the work directory is only reused while it stays the same
+     * @param workDir     where the remapped classes are kept between runs, or {@code null} to remap everything
+     */
+    public static Result remap(Path inputJar, Path outputJar, Map<String, String> classMappings, @Nullable String mappingsKey, @Nullable Path workDir, int threads) {
+        long start = System.nanoTime();
+        boolean incremental = workDir != null && mappingsKey != null;
+        Path classesDir = incremental ? workDir.resolve(CLASSES_DIR) : null;
+        Path stateFile = incremental ? workDir.resolve(STATE_FILE) : null;
+        Map<String, String> previous = incremental ? readState(stateFile, mappingsKey) : new HashMap<>();
+        if (incremental) {
+            if (previous.isEmpty()) {
+                FileUtil.deleteDirectory(classesDir);
+            }
+
+            // the classes are overwritten as they are remapped, so a run that doesn't finish mustn't leave the old state
+            try {
+                Files.deleteIfExists(stateFile);
+            } catch (IOException exception) {
+                throw new IllegalStateException("Failed to delete '%s'!".formatted(stateFile), exception);
+            }
+        }
+
+        var remapper = new ClassReferenceRemapper(classMappings);
+        var scanner = new ConstantPoolScanner(remapper);
+        var rewritten = new AtomicInteger();
+        var unchanged = new AtomicInteger();
+        var reused = new AtomicInteger();
+        Map<String, String> state = new ConcurrentHashMap<>();
+
+        Path tempJar = outputJar.resolveSibling(outputJar.getFileName() + ".tmp");
+        try (var zipFile = new ZipFile(inputJar.toFile())) {
+            List<? extends ZipEntry> entries = zipFile.stream().filter(entry -> !entry.isDirectory()).toList();
+            String[] names = new String[entries.size()];
+            byte[][] contents = new byte[entries.size()][];
+
+            try (var forkJoinPool = new ForkJoinPool(Math.max(1, threads))) {
+                forkJoinPool.submit(() -> IntStream.range(0, entries.size()).parallel().forEach(index -> {
+                    ZipEntry entry = entries.get(index);
+                    String name = entry.getName();
+                    if (!name.endsWith(".class")) {
+                        names[index] = name;
+                        contents[index] = read(zipFile, entry);
+                        return;
+                    }
+
+                    String internalName = name.substring(0, name.length() - ".class".length());
+                    names[index] = remapper.map(internalName) + ".class";
+
+                    String fingerprint = entry.getCrc() + ":" + entry.getSize();
+                    Path cached = incremental ? ArchiveExtractor.resolveEntry(classesDir, name) : null;
+                    if (fingerprint.equals(previous.get(name))) {
+                        byte[] bytes = readCached(cached);
+                        if (bytes != null) {
+                            contents[index] = bytes;
+                            state.put(name, fingerprint);
+                            reused.incrementAndGet();
+                            return;
+                        }
+                    }
+
+                    byte[] bytes = read(zipFile, entry);
+                    if (scanner.needsRemapping(bytes)) {
+                        var classReader = new ClassReader(bytes);
+                        var classWriter = new ClassWriter(classReader, 0);
+                        classReader.accept(new ClassRemapper(classWriter, remapper), 0);
+                        bytes = classWriter.toByteArray();
+                        rewritten.incrementAndGet();
+                    } else {
+                        unchanged.incrementAndGet();
+                    }
+
+                    contents[index] = bytes;
+                    if (incremental) {
+                        writeCached(cached, bytes);
+                        state.put(name, fingerprint);
+                    }
+                })).get();
+            } catch (ExecutionException exception) {
+                throw new IllegalStateException("Failed to remap '%s'!".formatted(inputJar), exception.getCause());
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Got interrupted!", exception);
+            }
+
+            Files.createDirectories(outputJar.toAbsolutePath().getParent());
+            try (var jos = new JarOutputStream(Files.newOutputStream(tempJar))) {
+                for (int index = 0; index < entries.size(); index++) {
+                    var entry = new JarEntry(names[index]);
+                    entry.setTime(entries.get(index).getTime());
+                    jos.putNextEntry(entry);
+                    jos.write(contents[index]);
+                    jos.closeEntry();
+                }
+            }
+
+            Files.move(tempJar, outputJar, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException exception) {
+            throw new IllegalStateException("Failed to remap '%s'!".formatted(inputJar), exception);
+        } finally {
+            try {
+                Files.deleteIfExists(tempJar);
+            } catch (IOException ignored) {
+            }
+        }
+
+        if (incremental) {
+            // classes that were removed from the jar are forgotten along with their entry
+            previous.keySet().removeAll(state.keySet());
+            for (String removed : previous.keySet()) {
+                try {
+                    Files.deleteIfExists(classesDir.resolve(removed));
+                } catch (IOException ignored) {
+                }
+            }
+
+            writeState(stateFile, mappingsKey, state);
+        }
+        return new Result(rewritten.get(), unchanged.get(), reused.get(), System.nanoTime() - start);
+    }
+
+    private static byte[] read(ZipFile zipFile, ZipEntry entry) {
+        try (InputStream input = zipFile.getInputStream(entry)) {
+            return input.readAllBytes();
+        } catch (IOException exception) {
+            throw new IllegalStateException("Failed to read '%s'!".formatted(entry.getName()), exception);
+        }
+    }
+
+    /**
+     * @return the class remapped last time, or {@code null} if it can't be read
+     */
+    private static byte[] readCached(Path path) {
+        try {
+            return Files.readAllBytes(path);
+        } catch (IOException exception) {
+            // remapped again
+            return null;
+        }
+    }
+
+    private static void writeCached(Path path, byte[] bytes) {
+        try {
+            Files.createDirectories(path.getParent());
+            Files.write(path, bytes);
+        } catch (IOException exception) {
+            throw new IllegalStateException("Failed to write '%s'!".formatted(path), exception);
+        }
+    }
+
+    /**
+     * @return the fingerprints of the entries remapped last time, or nothing if that was with other mappings
+     */
+    private static Map<String, String> readState(Path stateFile, String mappingsKey) {
+        Map<String, String> state = new HashMap<>();
+        if (Files.notExists(stateFile))
+            return state;
+
+        try (BufferedReader reader = Files.newBufferedReader(stateFile, StandardCharsets.UTF_8)) {
+            if (!mappingsKey.equals(reader.readLine()))
+                return state;
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int separator = line.indexOf('\t');
+                if (separator > 0) {
+                    state.put(line.substring(0, separator), line.substring(separator + 1));
+                }
+            }
+        } catch (IOException exception) {
+            state.clear();
+        }
+
+        return state;
+    }
+
+    private static void writeState(Path stateFile, String mappingsKey, Map<String, String> state) {
+        try {
+            Files.createDirectories(stateFile.getParent());
+            try (BufferedWriter writer = Files.newBufferedWriter(stateFile, StandardCharsets.UTF_8)) {
+                writer.write(mappingsKey);
+                writer.newLine();
+                for (Map.Entry<String, String> entry : new TreeMap<>(state).entrySet()) {
+                    writer.write(entry.getKey());
+                    writer.write('\t');
+                    writer.write(entry.getValue());
+                    writer.newLine();
+                }
+            }
+        } catch (IOException exception) {
+            // everything is remapped again next time
+            System.out.println("Failed to save the remap state: " + exception.getMessage());
+        }
+    }
+
+    /**
+     * @param rewritten the classes that went through the remapper
+     * @param unchanged the classes that were checked and copied because they don't refer to any mapped class
+     * @param reused    the classes that didn't change since the last run and were taken from the work directory
+     */
+    public record Result(int rewritten, int unchanged, int reused, long nanos) {
+        public int classes() {
+            return rewritten + unchanged + reused;
+        }
+
+        public double seconds() {
+            return nanos / 1_000_000_000D;
+        }
+
+        @Override
+        public String toString() {
+            return "%d classes (%d rewritten, %d copied unchanged, %d reused from the last run) in %.2fs"
+                    .formatted(classes(), rewritten, unchanged, reused, seconds());
+        }
+    }
+}
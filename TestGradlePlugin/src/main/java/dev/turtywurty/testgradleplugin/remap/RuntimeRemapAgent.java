@@ -0,0 +1,243 @@
+package dev.turtywurty.testgradleplugin.remap;
+
+import dev.turtywurty.testgradleplugin.HashingFunction;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.commons.ClassRemapper;
+import org.objectweb.asm.commons.Remapper;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.Instrumentation;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.CodeSource;
+import java.security.ProtectionDomain;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.jar.Attributes;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+/**
+ * A Java agent that lets the mod run on the obfuscated client without remapping the client first. The game's classes
+ * are loaded as they are; instead, the classes of the mod and its dependencies are remapped back to the obfuscated
+ * names as they are defined, the same way {@link JarRemapper} does it for the reobfuscated jar.
+ * <p>
+ * Only classes loaded from the mod's classpath are looked at, and only those that refer to a mapped class are
+ * rewritten. Rewritten classes are kept in a cache directory named after the hash of their bytes, so the next launch
+ * reads them from there unless the class changed.
+ * <p>
+ * The agent is started from a jar that holds nothing but a manifest, with the plugin and ASM on its class path, and
+ * is configured by a properties file given as its argument.
+ */
+public final class RuntimeRemapAgent implements ClassFileTransformer {
+    public static final String MAPPINGS_PROPERTY = "mappings";
+    public static final String CACHE_PROPERTY = "cache";
+    public static final String CLASSPATH_PROPERTY = "classpath";
+    /**
+     * Whether the agent says what it does, which runClient turns on when Gradle runs with {@code --info}.
+     */
+    public static final String DEBUG_PROPERTY = "debug";
+
+    private final ClassReferenceRemapper remapper;
+    private final ConstantPoolScanner scanner;
+    private final Path cacheDir;
+    private final Set<Path> classpath;
+    private final Map<URL, Boolean> codeSources = new ConcurrentHashMap<>();
+
+    private final AtomicInteger remapped = new AtomicInteger();
+    private final AtomicInteger cached = new AtomicInteger();
+    private final AtomicInteger unchanged = new AtomicInteger();
+
+    private RuntimeRemapAgent(Map<String, String> classMappings, Path cacheDir, Set<Path> classpath) {
+        this.remapper = new ClassReferenceRemapper(classMappings);
+        this.scanner = new ConstantPoolScanner(this.remapper);
+        this.cacheDir = cacheDir;
+        this.classpath = classpath;
+    }
+
+    public static void premain(String arguments, Instrumentation instrumentation) {
+        Properties properties = new Properties();
+        try (BufferedReader reader = Files.newBufferedReader(Path.of(arguments), StandardCharsets.UTF_8)) {
+            properties.load(reader);
+        } catch (IOException exception) {
+            throw new IllegalStateException("Failed to read the agent configuration '%s'!".formatted(arguments), exception);
+        }
+
+        Set<Path> classpath = new HashSet<>();
+        for (String entry : properties.getProperty(CLASSPATH_PROPERTY, "").split(File.pathSeparator)) {
+            if (!entry.isEmpty()) {
+                classpath.add(Path.of(entry).toAbsolutePath().normalize());
+            }
+        }
+
+        Map<String, String> classMappings = readTable(Path.of(properties.getProperty(MAPPINGS_PROPERTY)));
+        var agent = new RuntimeRemapAgent(classMappings, Path.of(properties.getProperty(CACHE_PROPERTY)), classpath);
+        instrumentation.addTransformer(agent);
+        if (Boolean.parseBoolean(properties.getProperty(DEBUG_PROPERTY))) {
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> System.out.println(agent), "TestGradle remap agent"));
+            System.out.println("Remapping the classes of " + classpath.size() + " classpath entries while they load, with " + classMappings.size() + " mapped classes");
+        }
+    }
+
+    @Override
+    public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined, ProtectionDomain protectionDomain, byte[] classFile) {
+        // classes of the JDK, the libraries and the game itself are left alone
+        if (loader == null || className == null || !isOnClasspath(protectionDomain))
+            return null;
+
+        try {
+            String hash = HashingFunction.SHA1.hash(classFile);
+            Path cached = this.cacheDir.resolve(hash.substring(0, 2)).resolve(hash + ".class");
+            if (Files.exists(cached)) {
+                this.cached.incrementAndGet();
+                return Files.readAllBytes(cached);
+            }
+
+            if (!this.scanner.needsRemapping(classFile)) {
+                this.unchanged.incrementAndGet();
+                return null;
+            }
+
+            byte[] bytes = remap(classFile, this.remapper);
+            store(cached, bytes);
+            this.remapped.incrementAndGet();
+            return bytes;
+        } catch (Throwable throwable) {
+            // exceptions thrown by a transformer are swallowed by the JVM, so at least say what happened
+            System.err.println("Failed to remap " + className + ": " + throwable);
+            return null;
+        }
+    }
+
+    private boolean isOnClasspath(ProtectionDomain protectionDomain) {
+        CodeSource codeSource = protectionDomain == null ? null : protectionDomain.getCodeSource();
+        URL location = codeSource == null ? null : codeSource.getLocation();
+        if (location == null)
+            return false;
+
+        return this.codeSources.computeIfAbsent(location, url -> {
+            try {
+                return this.classpath.contains(Path.of(url.toURI()).toAbsolutePath().normalize());
+            } catch (URISyntaxException | IllegalArgumentException exception) {
+                return false;
+            }
+        });
+    }
+
+    private static byte[] remap(byte[] classFile, Remapper remapper) {
+        var classReader = new ClassReader(classFile);
+        var classWriter = new ClassWriter(classReader, 0);
+        classReader.accept(new ClassRemapper(classWriter, remapper), 0);
+        return classWriter.toByteArray();
+    }
+
+    private static void store(Path cached, byte[] bytes) {
+        try {
+            Files.createDirectories(cached.getParent());
+            Path tempFile = Files.createTempFile(cached.getParent(), cached.getFileName().toString(), ".tmp");
+            Files.write(tempFile, bytes);
+            Files.move(tempFile, cached, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException exception) {
+            // remapped again next time
+            System.err.println("Failed to cache " + cached.getFileName() + ": " + exception.getMessage());
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Remapped %d classes while they loaded, took %d from the cache and left %d unchanged"
+                .formatted(this.remapped.get(), this.cached.get(), this.unchanged.get());
+    }
+
+    /**
+     * Writes the table the agent remaps with: internal names, one pair per line, only of the classes whose name
+     * changes. It's written once for each set of mappings.
+     *
+     * @param classMappings the dotted names the mod uses mapped to the obfuscated ones
+     */
+    public static void writeTable(Path tableFile, Map<String, String> classMappings) {
+        if (Files.exists(tableFile))
+            return;
+
+        try {
+            Files.createDirectories(tableFile.getParent());
+            Path tempFile = Files.createTempFile(tableFile.getParent(), tableFile.getFileName().toString(), ".tmp");
+            try (BufferedWriter writer = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8)) {
+                for (Map.Entry<String, String> entry : new TreeMap<>(classMappings).entrySet()) {
+                    if (entry.getKey().equals(entry.getValue()))
+                        continue;
+
+                    writer.write(entry.getKey().replace('.', '/'));
+                    writer.write('\t');
+                    writer.write(entry.getValue().replace('.', '/'));
+                    writer.newLine();
+                }
+            }
+
+            Files.move(tempFile, tableFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException exception) {
+            throw new IllegalStateException("Failed to write the remap table '%s'!".formatted(tableFile), exception);
+        }
+    }
+
+    private static Map<String, String> readTable(Path tableFile) {
+        Map<String, String> classMappings = new HashMap<>();
+        try (BufferedReader reader = Files.newBufferedReader(tableFile, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int separator = line.indexOf('\t');
+                if (separator > 0) {
+                    classMappings.put(line.substring(0, separator), line.substring(separator + 1));
+                }
+            }
+        } catch (IOException exception) {
+            throw new IllegalStateException("Failed to read the remap table '%s'!".formatted(tableFile), exception);
+        }
+
+        return classMappings;
+    }
+
+    /**
+     * Writes the jar the agent is started from. It only holds a manifest, whose class path points at the jars the
+     * agent's classes are loaded from: the plugin's and ASM's.
+     */
+    public static void writeAgentJar(Path agentJar) {
+        Set<String> classPath = new LinkedHashSet<>();
+        for (Class<?> type : List.of(RuntimeRemapAgent.class, ClassReader.class, ClassRemapper.class)) {
+            CodeSource codeSource = type.getProtectionDomain().getCodeSource();
+            if (codeSource == null)
+                throw new IllegalStateException("Can't find the jar of " + type.getName() + "!");
+
+            try {
+                classPath.add(Path.of(codeSource.getLocation().toURI()).toUri().toString());
+            } catch (URISyntaxException exception) {
+                throw new IllegalStateException("Can't find the jar of " + type.getName() + "!", exception);
+            }
+        }
+
+        var manifest = new Manifest();
+        Attributes attributes = manifest.getMainAttributes();
+        attributes.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        attributes.put(new Attributes.Name("Premain-Class"), RuntimeRemapAgent.class.getName());
+        attributes.put(Attributes.Name.CLASS_PATH, String.join(" ", classPath));
+
+        try {
+            Files.createDirectories(agentJar.toAbsolutePath().getParent());
+            try (var jos = new JarOutputStream(Files.newOutputStream(agentJar), manifest)) {
+                jos.flush();
+            }
+        } catch (IOException exception) {
+            throw new IllegalStateException("Failed to write the agent jar '%s'!".formatted(agentJar), exception);
+        }
+    }
+}
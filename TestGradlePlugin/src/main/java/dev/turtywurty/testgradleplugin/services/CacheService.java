@@ -0,0 +1,623 @@
+package dev.turtywurty.testgradleplugin.services;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import dev.turtywurty.testgradleplugin.TestGradlePlugin;
+import dev.turtywurty.testgradleplugin.util.CacheLock;
+import dev.turtywurty.testgradleplugin.util.FileUtil;
+import org.gradle.api.file.DirectoryProperty;
+import org.gradle.api.provider.Property;
+import org.gradle.api.provider.SetProperty;
+import org.gradle.api.services.BuildService;
+import org.gradle.api.services.BuildServiceParameters;
+import org.gradle.tooling.events.FinishEvent;
+import org.gradle.tooling.events.OperationCompletionListener;
+import org.gradle.tooling.events.task.TaskFinishEvent;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * Keeps the cache directory within a size budget. Every entry of a version directory (a jar, the extracted client,
+ * the decompiled sources, ...) and of the stores shared between versions (see {@link #STORES}) has its last access
+ * recorded in {@value #INDEX_FILE_NAME}, and when the cache grows past {@link Parameters#getMaxSize()} entries are
+ * deleted until it fits again:
+ * <ol>
+ *     <li>cheap intermediates (extracted and remapped classes) before downloads, and downloads before outputs that
+ *     take long to make again (decompiled sources)</li>
+ *     <li>the least recently used first</li>
+ * </ol>
+ * Entries the current build used are never deleted.
+ * <p>
+ * Tasks that are up to date don't execute, so they can't report what they use themselves. Instead, the entries a
+ * task produced are remembered the last time it executed, and are touched again whenever the task finishes in a
+ * later build.
+ * <p>
+ * At the end of a build only the index is updated, and only the entries that were written to are measured again.
+ * The whole cache directory is only scanned by {@link #clean()}, or when there is no index yet.
+ */
+public abstract class CacheService implements BuildService<CacheService.Parameters>, OperationCompletionListener, AutoCloseable {
+    public static final String NAME = "testGradleCache";
+    public static final String INDEX_FILE_NAME = "cache-index.json";
+    private static final String VERSION_FILE_NAME = "version.json";
+
+    /**
+     * The stores shared between versions, with the depth of their entries: the libraries bundled with the server
+     * ({@code <sha256[0..2]>/<sha256>}), the remapped mods ({@code <sha1[0..2]>/<sha1>/<mappings>}) and the classes
+     * remapped at runtime ({@code <mappings>}). Whatever is evicted from them is made again when it's needed.
+     */
+    private static final Map<String, Integer> STORES = Map.of(
+            "bundled_libraries", 3,
+            "remapped_mods", 4,
+            "runtime_remap", 2);
+
+    private final Map<String, Long> accessed = new ConcurrentHashMap<>();
+    private final Set<String> written = ConcurrentHashMap.newKeySet();
+    private final Map<String, List<String>> taskEntries = new ConcurrentHashMap<>();
+    private final Set<String> executedTasks = ConcurrentHashMap.newKeySet();
+    private final Object indexLock = new Object();
+    private boolean tasksLoaded;
+
+    /**
+     * Records the outputs of a task that just executed.
+     */
+    public void recordTask(String taskPath, Collection<File> outputs) {
+        Path cacheDir = getCacheDir();
+        List<String> taskEntries = new ArrayList<>();
+        for (File output : outputs) {
+            String entry = toEntry(cacheDir, output.toPath());
+            if (entry != null && !taskEntries.contains(entry)) {
+                taskEntries.add(entry);
+            }
+        }
+
+        String taskKey = taskKey(taskPath);
+        this.taskEntries.put(taskKey, taskEntries);
+        this.executedTasks.add(taskKey);
+        this.written.addAll(taskEntries);
+        touch(taskEntries);
+    }
+
+    /**
+     * Records that the build used and possibly wrote to the entries the paths belong to, for what isn't the output of
+     * a task, like the stores.
+     */
+    public void recordAccess(Collection<Path> paths) {
+        Path cacheDir = getCacheDir();
+        List<String> entries = new ArrayList<>();
+        for (Path path : paths) {
+            String entry = toEntry(cacheDir, path);
+            if (entry != null) {
+                entries.add(entry);
+            }
+        }
+
+        this.written.addAll(entries);
+        touch(entries);
+    }
+
+    @Override
+    public void onFinish(FinishEvent event) {
+        if (!(event instanceof TaskFinishEvent taskEvent))
+            return;
+
+        String taskKey = taskKey(taskEvent.getDescriptor().getTaskPath());
+        List<String> taskEntries = this.taskEntries.get(taskKey);
+        if (taskEntries == null) {
+            synchronized (this.indexLock) {
+                loadTasks();
+                taskEntries = this.taskEntries.get(taskKey);
+            }
+        }
+
+        if (taskEntries != null) {
+            touch(taskEntries);
+        }
+    }
+
+    /**
+     * Scans the whole cache directory and deletes entries until the cache fits in the budget.
+     *
+     * @return the number of bytes that were freed
+     */
+    public long clean() {
+        return update(true, true);
+    }
+
+    @Override
+    public void close() {
+        try {
+            boolean clean = getParameters().getCleanOnBuildFinish().getOrElse(false);
+            if (clean || !this.accessed.isEmpty()) {
+                update(false, clean);
+            }
+        } catch (RuntimeException exception) {
+            // cleaning up must never fail the build
+            System.err.println("Failed to update the TestGradle cache index: " + exception.getMessage());
+        }
+    }
+
+    /**
+     * Merges what this build recorded into the index, and evicts entries if asked to. Other builds sharing the cache
+     * directory do the same, so the index is locked, and read again under the lock, for the whole update.
+     *
+     * @param scan  whether to look for entries that aren't in the index yet, which walks the cache directory
+     * @param evict whether to delete entries until the cache fits in the budget
+     * @return the number of bytes that were freed
+     */
+    private long update(boolean scan, boolean evict) {
+        Path cacheDir = getCacheDir();
+        Path indexFile = cacheDir.resolve(INDEX_FILE_NAME);
+        synchronized (this.indexLock) {
+            CacheLock lock = CacheLock.acquire(indexFile);
+            try {
+                Map<String, EntryRecord> entries = new HashMap<>();
+                Map<String, List<String>> tasks = new HashMap<>();
+                boolean indexed = readIndex(indexFile, entries, tasks);
+                mergeAccessed(cacheDir, entries);
+                for (String task : this.executedTasks) {
+                    tasks.put(task, this.taskEntries.get(task));
+                }
+
+                if (scan || !indexed) {
+                    scan(cacheDir, entries);
+                } else {
+                    entries.keySet().removeIf(entry -> Files.notExists(cacheDir.resolve(entry)));
+                }
+
+                long freed = evict ? evict(cacheDir, entries) : 0;
+                writeIndex(indexFile, entries, tasks);
+                return freed;
+            } finally {
+                lock.close();
+            }
+        }
+    }
+
+    /**
+     * Deletes entries until the cache fits in the budget, skipping everything this build used.
+     *
+     * @return the number of bytes that were freed
+     */
+    private long evict(Path cacheDir, Map<String, EntryRecord> entries) {
+        long maxSize = parseSize(getParameters().getMaxSize().getOrElse("0"));
+        long total = entries.values().stream().mapToLong(EntryRecord::size).sum();
+        System.out.printf("TestGradle cache: %d entries, %s of %s%n", entries.size(), formatSize(total),
+                maxSize <= 0 ? "unlimited" : formatSize(maxSize));
+        if (maxSize <= 0 || total <= maxSize)
+            return 0;
+
+        Set<String> protectedEntries = getParameters().getProtectedEntries().getOrElse(Set.of());
+        List<Map.Entry<String, EntryRecord>> candidates = new ArrayList<>();
+        for (Map.Entry<String, EntryRecord> entry : entries.entrySet()) {
+            if (!this.accessed.containsKey(entry.getKey()) && !protectedEntries.contains(entry.getKey())) {
+                candidates.add(entry);
+            }
+        }
+
+        candidates.sort(Comparator.<Map.Entry<String, EntryRecord>, Tier>comparing(entry -> Tier.of(entry.getKey()))
+                .thenComparingLong(entry -> entry.getValue().lastAccess()));
+
+        long freed = 0;
+        List<String> evicted = new ArrayList<>();
+        for (Map.Entry<String, EntryRecord> candidate : candidates) {
+            if (total - freed <= maxSize)
+                break;
+
+            String entry = candidate.getKey();
+            if (!delete(cacheDir, entry))
+                continue;
+
+            System.out.println("Evicted " + entry + " (" + formatSize(candidate.getValue().size()) + ")");
+            evicted.add(entry);
+            freed += candidate.getValue().size();
+        }
+
+        evicted.forEach(entries::remove);
+        for (Path version : listVersionDirectories(cacheDir)) {
+            deleteIfUnused(version);
+        }
+
+        System.out.println("TestGradle cache: freed " + formatSize(freed));
+        if (total - freed > maxSize) {
+            System.out.println("TestGradle cache: still " + formatSize(total - freed) + ", the rest is used by this build or by another one");
+        }
+
+        return freed;
+    }
+
+    private void touch(Collection<String> entries) {
+        long now = System.currentTimeMillis();
+        for (String entry : entries) {
+            this.accessed.put(entry, now);
+        }
+    }
+
+    private Path getCacheDir() {
+        return getParameters().getCacheDirectory().get().getAsFile().toPath();
+    }
+
+    private String taskKey(String taskPath) {
+        return getParameters().getRootDirectory().get().getAsFile().getAbsolutePath() + taskPath;
+    }
+
+    /**
+     * Loads the entries of the tasks once, for the tasks that are up to date in this build. The index is replaced
+     * atomically, so it can be read without the lock.
+     */
+    private void loadTasks() {
+        if (this.tasksLoaded)
+            return;
+
+        this.tasksLoaded = true;
+        Map<String, List<String>> tasks = new HashMap<>();
+        readIndex(getCacheDir().resolve(INDEX_FILE_NAME), new HashMap<>(), tasks);
+        tasks.forEach(this.taskEntries::putIfAbsent);
+    }
+
+    /**
+     * @return whether there was an index to read
+     */
+    private static boolean readIndex(Path indexFile, Map<String, EntryRecord> entries, Map<String, List<String>> tasks) {
+        if (Files.notExists(indexFile))
+            return false;
+
+        try {
+            JsonObject json = TestGradlePlugin.GSON.fromJson(Files.readString(indexFile), JsonObject.class);
+            JsonObject entriesJson = json.getAsJsonObject("entries");
+            if (entriesJson != null) {
+                for (Map.Entry<String, JsonElement> entry : entriesJson.entrySet()) {
+                    JsonObject record = entry.getValue().getAsJsonObject();
+                    entries.put(entry.getKey(), new EntryRecord(record.get("lastAccess").getAsLong(), record.get("size").getAsLong()));
+                }
+            }
+
+            JsonObject tasksJson = json.getAsJsonObject("tasks");
+            if (tasksJson != null) {
+                for (Map.Entry<String, JsonElement> task : tasksJson.entrySet()) {
+                    List<String> taskEntries = new ArrayList<>();
+                    task.getValue().getAsJsonArray().forEach(element -> taskEntries.add(element.getAsString()));
+                    tasks.put(task.getKey(), taskEntries);
+                }
+            }
+
+            return true;
+        } catch (IOException | JsonParseException | IllegalStateException | NullPointerException exception) {
+            System.err.println("Ignoring unreadable cache index " + indexFile + ": " + exception.getMessage());
+            entries.clear();
+            tasks.clear();
+            return false;
+        }
+    }
+
+    /**
+     * Updates the records of the entries used by this build. Only the entries that were written to, or that aren't
+     * known yet, are measured again.
+     */
+    private void mergeAccessed(Path cacheDir, Map<String, EntryRecord> entries) {
+        this.accessed.forEach((entry, time) -> {
+            if (Files.notExists(cacheDir.resolve(entry)))
+                return;
+
+            EntryRecord known = entries.get(entry);
+            long size = known == null || this.written.remove(entry) ? sizeOfEntry(cacheDir, entry) : known.size();
+            entries.put(entry, new EntryRecord(known == null ? time : Math.max(time, known.lastAccess()), size));
+        });
+    }
+
+    private static void writeIndex(Path indexFile, Map<String, EntryRecord> entries, Map<String, List<String>> tasks) {
+        var entriesJson = new JsonObject();
+        new TreeMap<>(entries).forEach((entry, record) -> {
+            var json = new JsonObject();
+            json.addProperty("lastAccess", record.lastAccess());
+            json.addProperty("size", record.size());
+            entriesJson.add(entry, json);
+        });
+
+        var tasksJson = new JsonObject();
+        new TreeMap<>(tasks).forEach((task, taskEntries) -> {
+            var array = new JsonArray();
+            taskEntries.forEach(array::add);
+            tasksJson.add(task, array);
+        });
+
+        var json = new JsonObject();
+        json.add("entries", entriesJson);
+        json.add("tasks", tasksJson);
+
+        Path cacheDir = indexFile.getParent();
+        try {
+            Files.createDirectories(cacheDir);
+            Path tempFile = Files.createTempFile(cacheDir, INDEX_FILE_NAME, ".tmp");
+            Files.writeString(tempFile, TestGradlePlugin.GSON.toJson(json), StandardCharsets.UTF_8);
+            Files.move(tempFile, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException exception) {
+            System.err.println("Failed to write cache index " + indexFile + ": " + exception.getMessage());
+        }
+    }
+
+    /**
+     * Adds every entry on disk that isn't in the index yet, and forgets the ones that no longer exist.
+     */
+    private static void scan(Path cacheDir, Map<String, EntryRecord> entries) {
+        Set<String> found = new HashSet<>();
+        List<Path> candidates = new ArrayList<>();
+        for (Path version : listVersionDirectories(cacheDir)) {
+            candidates.addAll(listDirectory(version));
+        }
+
+        STORES.forEach((store, depth) -> candidates.addAll(listStoreEntries(cacheDir.resolve(store), depth - 1)));
+        for (Path candidate : candidates) {
+            String entry = toEntry(cacheDir, candidate);
+            if (entry == null || !found.add(entry) || entries.containsKey(entry))
+                continue;
+
+            try {
+                entries.put(entry, new EntryRecord(Files.getLastModifiedTime(candidate).toMillis(), sizeOfEntry(cacheDir, entry)));
+            } catch (IOException exception) {
+                // deleted while it was scanned
+                found.remove(entry);
+            }
+        }
+
+        entries.keySet().retainAll(found);
+    }
+
+    private static List<Path> listStoreEntries(Path directory, int depth) {
+        List<Path> children = listDirectory(directory);
+        if (depth <= 1)
+            return children;
+
+        List<Path> entries = new ArrayList<>();
+        for (Path child : children) {
+            if (Files.isDirectory(child) && !child.getFileName().toString().startsWith(".")) {
+                entries.addAll(listStoreEntries(child, depth - 1));
+            }
+        }
+
+        return entries;
+    }
+
+    private static List<Path> listDirectory(Path directory) {
+        if (!Files.isDirectory(directory))
+            return List.of();
+
+        try (Stream<Path> children = Files.list(directory)) {
+            return children.toList();
+        } catch (IOException exception) {
+            throw new IllegalStateException("Failed to scan the cache directory " + directory + "!", exception);
+        }
+    }
+
+    /**
+     * Lists the version directories, which are told apart from the stores shared between versions by their version
+     * json. That file is tiny and identifies the directory, so it's never evicted itself.
+     */
+    private static List<Path> listVersionDirectories(Path cacheDir) {
+        return listDirectory(cacheDir).stream()
+                .filter(child -> Files.isRegularFile(child.resolve(VERSION_FILE_NAME)))
+                .toList();
+    }
+
+    /**
+     * Gets the entry a path belongs to: the child of the version directory it's in, with the hash file of a download
+     * counted as part of the download, or the entry of a store. Anything else, like the index itself, isn't an entry.
+     */
+    private static String toEntry(Path cacheDir, Path path) {
+        Path relative;
+        try {
+            relative = cacheDir.toAbsolutePath().normalize().relativize(path.toAbsolutePath().normalize());
+        } catch (IllegalArgumentException exception) {
+            return null;
+        }
+
+        if (relative.getNameCount() < 2 || relative.startsWith(".."))
+            return null;
+
+        String root = relative.getName(0).toString();
+        Integer depth = STORES.get(root);
+        if (depth != null) {
+            if (relative.getNameCount() < depth)
+                return null;
+
+            // locks and temporary files of the store are cleaned up by whoever created them
+            for (int index = 1; index < depth; index++) {
+                String name = relative.getName(index).toString();
+                if (name.startsWith(".") || name.endsWith(".tmp"))
+                    return null;
+            }
+
+            return relative.subpath(0, depth).toString().replace(File.separatorChar, '/');
+        }
+
+        if (!Files.isRegularFile(cacheDir.resolve(root).resolve(VERSION_FILE_NAME)))
+            return null;
+
+        String name = relative.getName(1).toString();
+        if (name.equals(VERSION_FILE_NAME))
+            return null;
+
+        if (name.endsWith(".sha1")) {
+            name = name.substring(0, name.length() - ".sha1".length());
+        }
+
+        // temporary files of downloads and staging directories are cleaned up by whoever created them
+        if (name.startsWith(".") || name.endsWith(".download") || name.endsWith(".tmp"))
+            return null;
+
+        return root + "/" + name;
+    }
+
+    /**
+     * Deletes the entry, unless a build is using it right now.
+     *
+     * @return whether the entry was deleted
+     */
+    private static boolean delete(Path cacheDir, String entry) {
+        Path path = cacheDir.resolve(entry);
+        try (CacheLock lock = CacheLock.tryAcquire(path)) {
+            if (lock == null) {
+                System.out.println("Not evicting " + entry + ", it is in use");
+                return false;
+            }
+
+            lock.invalidate();
+            if (Files.isDirectory(path)) {
+                FileUtil.deleteDirectory(path);
+            } else {
+                Files.deleteIfExists(path);
+            }
+
+            Files.deleteIfExists(path.resolveSibling(path.getFileName() + ".sha1"));
+            return true;
+        } catch (IOException | IllegalStateException exception) {
+            System.err.println("Failed to evict " + path + ": " + exception.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Deletes a version directory that has nothing but its version json left. Anything else in it, such as the
+     * staging directory of a build that is producing an artifact, keeps it; so does a lock that another build holds.
+     */
+    private static void deleteIfUnused(Path version) {
+        List<CacheLock> locks = new ArrayList<>();
+        try {
+            for (Path child : listDirectory(version)) {
+                String name = child.getFileName().toString();
+                if (!name.equals(VERSION_FILE_NAME) && !name.equals(FileUtil.TRASH_DIR_NAME) && !name.equals(CacheLock.LOCK_DIR_NAME))
+                    return;
+            }
+
+            for (Path artifact : CacheLock.listLockedArtifacts(version)) {
+                CacheLock lock = CacheLock.tryAcquire(artifact);
+                if (lock == null)
+                    return;
+
+                locks.add(lock);
+            }
+
+            FileUtil.deleteDirectory(version);
+        } catch (IllegalStateException exception) {
+            System.err.println("Failed to remove version directory " + version + ": " + exception.getMessage());
+        } finally {
+            locks.forEach(CacheLock::close);
+        }
+    }
+
+    private static long sizeOfEntry(Path cacheDir, String entry) {
+        Path path = cacheDir.resolve(entry);
+        return sizeOf(path) + sizeOf(path.resolveSibling(path.getFileName() + ".sha1"));
+    }
+
+    private static long sizeOf(Path path) {
+        if (Files.notExists(path))
+            return 0;
+
+        try (Stream<Path> files = Files.walk(path)) {
+            return files.filter(Files::isRegularFile).mapToLong(file -> {
+                try {
+                    return Files.size(file);
+                } catch (IOException exception) {
+                    return 0;
+                }
+            }).sum();
+        } catch (IOException exception) {
+            return 0;
+        }
+    }
+
+    /**
+     * Parses a size such as {@code 512M} or {@code 20G}. Zero, or nothing at all, means no limit.
+     */
+    public static long parseSize(String size) {
+        String trimmed = size.trim().toUpperCase(Locale.ROOT);
+        if (trimmed.isEmpty())
+            return 0;
+
+        if (trimmed.endsWith("B")) {
+            trimmed = trimmed.substring(0, trimmed.length() - 1);
+        }
+
+        int shift = switch (trimmed.isEmpty() ? ' ' : trimmed.charAt(trimmed.length() - 1)) {
+            case 'K' -> 10;
+            case 'M' -> 20;
+            case 'G' -> 30;
+            case 'T' -> 40;
+            default -> 0;
+        };
+
+        try {
+            return Long.parseLong(shift == 0 ? trimmed : trimmed.substring(0, trimmed.length() - 1).trim()) << shift;
+        } catch (NumberFormatException exception) {
+            throw new IllegalArgumentException("Invalid cache size '%s'! Expected something like 512M or 20G.".formatted(size), exception);
+        }
+    }
+
+    private static String formatSize(long bytes) {
+        return bytes >= 1 << 30 ? "%.1f GiB".formatted(bytes / (double) (1 << 30)) :
+                bytes >= 1 << 20 ? "%.1f MiB".formatted(bytes / (double) (1 << 20)) :
+                        "%.1f KiB".formatted(bytes / 1024D);
+    }
+
+    /**
+     * How expensive an entry is to get back, cheapest first.
+     */
+    private enum Tier {
+        INTERMEDIATE,
+        DOWNLOAD,
+        OUTPUT;
+
+        private static Tier of(String entry) {
+            int separator = entry.indexOf('/');
+            if (STORES.containsKey(entry.substring(0, separator)))
+                return INTERMEDIATE;
+
+            String name = entry.substring(separator + 1);
+            if (name.equals("client") || name.equals("server") || name.startsWith("remapped_"))
+                return INTERMEDIATE;
+
+            if (name.startsWith("decompiled_") || name.startsWith("recomp_"))
+                return OUTPUT;
+
+            return DOWNLOAD;
+        }
+    }
+
+    private record EntryRecord(long lastAccess, long size) {
+    }
+
+    public interface Parameters extends BuildServiceParameters {
+        DirectoryProperty getCacheDirectory();
+
+        /**
+         * The root directory of the build, which tells apart the tasks of different builds in the index.
+         */
+        DirectoryProperty getRootDirectory();
+
+        /**
+         * The size budget, such as {@code 20G}. Zero means no limit.
+         */
+        Property<String> getMaxSize();
+
+        /**
+         * Whether to evict entries at the end of the build. That only uses the index, so it's cheap.
+         */
+        Property<Boolean> getCleanOnBuildFinish();
+
+        /**
+         * Entries that are used without any task running, such as the jar on the compile classpath. Like everything
+         * else the build used, they are never evicted.
+         */
+        SetProperty<String> getProtectedEntries();
+    }
+}
@@ -0,0 +1,452 @@
+package dev.turtywurty.testgradleplugin.services;
+
+import dev.turtywurty.testgradleplugin.HashingFunction;
+import dev.turtywurty.testgradleplugin.util.SharedCacheTier;
+import org.gradle.api.file.DirectoryProperty;
+import org.gradle.api.provider.Property;
+import org.gradle.api.services.BuildService;
+import org.gradle.api.services.BuildServiceParameters;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serial;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Schedules every download of a build. Each host gets a queue that is worked on by at most
+ * {@link Parameters#getMaxConnectionsPerHost()} connections, optionally limited to
+ * {@link Parameters#getMaxBytesPerSecond()}, and the largest files are started first so that a big jar doesn't end
+ * up as the only download left at the end.
+ * <p>
+ * Requests for a URL or hash that is already being downloaded share that download instead of starting another one.
+ * <p>
+ * The number of connections a host actually gets is adjusted as the downloads go: it grows by one connection per
+ * round of successful downloads while the time to first byte stays steady and the last connection that was added
+ * made the host's throughput go up, and is halved whenever a download fails or the server answers with 429 or a 5xx.
+ * Failed downloads are retried a few times with a jittered backoff before they are reported.
+ * <p>
+ * Files that are in the shared cache directory, if one is configured, are taken from there instead of being
+ * downloaded, and downloaded files are published to it if that is enabled.
+ */
+public abstract class DownloadService implements BuildService<DownloadService.Parameters>, AutoCloseable {
+    public static final String NAME = "testGradleDownloads";
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int INITIAL_CONNECTIONS = 2;
+    private static final int MAX_ATTEMPTS = 5;
+    private static final long BASE_BACKOFF_MILLIS = 250;
+    private static final long MAX_BACKOFF_MILLIS = 10_000;
+    /**
+     * How much faster a host has to get for the connection that was added last to count as worth it.
+     */
+    private static final double PLATEAU_GAIN = 1.1;
+
+    private final AtomicInteger threadCount = new AtomicInteger();
+    private final ExecutorService executor = Executors.newCachedThreadPool(this::newThread);
+    private final ScheduledExecutorService retryScheduler = Executors.newSingleThreadScheduledExecutor(this::newThread);
+
+    private final Map<String, HostQueue> hosts = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<Path>> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicLong downloadedBytes = new AtomicLong();
+    private final AtomicInteger retries = new AtomicInteger();
+    private final SharedCacheTier sharedCache = createSharedCacheTier();
+
+    /**
+     * Queues a download of the given URL to the target path.
+     *
+     * @param sha1 the expected SHA-1 of the file, or {@code null} if it isn't known
+     * @param size the expected size, used to start the largest downloads first
+     * @return a future that completes with the target path once the file is in place
+     */
+    public CompletableFuture<Path> download(String url, @Nullable String sha1, long size, Path target) {
+        String key = sha1 != null ? sha1 : url;
+
+        var future = new CompletableFuture<Path>();
+        CompletableFuture<Path> existing = this.inFlight.putIfAbsent(key, future);
+        if (existing != null)
+            return existing.thenApply(path -> path.equals(target) ? path : copy(path, target));
+
+        future.whenComplete((path, throwable) -> this.inFlight.remove(key, future));
+
+        if (this.sharedCache.fetchFile(target, sha1, size)) {
+            future.complete(target);
+            return future;
+        }
+
+        URI uri = URI.create(url);
+        String host = uri.getHost() == null ? "" : uri.getHost().toLowerCase(Locale.ROOT);
+        this.hosts.computeIfAbsent(host, ignored -> new HostQueue())
+                .submit(new Request(uri, sha1, size, target, future, this.sequence.getAndIncrement(), 1));
+        return future;
+    }
+
+    /**
+     * Downloads the given URL and waits for it to finish.
+     */
+    public Path downloadNow(String url, @Nullable String sha1, long size, Path target) {
+        try {
+            return download(url, sha1, size, target).join();
+        } catch (CompletionException exception) {
+            if (exception.getCause() instanceof RuntimeException runtimeException)
+                throw runtimeException;
+
+            throw new IllegalStateException("Failed to download " + url + "!", exception.getCause());
+        }
+    }
+
+    public long getDownloadedBytes() {
+        return this.downloadedBytes.get();
+    }
+
+    public int getRetries() {
+        return this.retries.get();
+    }
+
+    @Override
+    public void close() {
+        this.retryScheduler.shutdownNow();
+        this.executor.shutdownNow();
+    }
+
+    private SharedCacheTier createSharedCacheTier() {
+        if (!getParameters().getCacheDirectory().isPresent() || !getParameters().getSharedCacheDirectory().isPresent())
+            return SharedCacheTier.disabled();
+
+        return SharedCacheTier.of(getParameters().getCacheDirectory().get().getAsFile().toPath(),
+                getParameters().getSharedCacheDirectory().get().getAsFile().toPath(),
+                getParameters().getPublishToSharedCache().getOrElse(false));
+    }
+
+    private Thread newThread(Runnable runnable) {
+        var thread = new Thread(runnable, "testGradle-download-" + this.threadCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    /**
+     * Downloads the request to its target.
+     *
+     * @return the time until the first byte arrived, in nanoseconds
+     */
+    private long fetch(Request request, HostQueue host) throws IOException, InterruptedException {
+        Path target = request.target();
+        Files.createDirectories(target.toAbsolutePath().getParent());
+        Path tempFile = Files.createTempFile(target.toAbsolutePath().getParent(), target.getFileName().toString(), ".download");
+
+        try {
+            var connection = (HttpURLConnection) request.uri().toURL().openConnection();
+            connection.setConnectTimeout(10_000);
+            connection.setReadTimeout(30_000);
+
+            long start = System.nanoTime();
+            int responseCode = connection.getResponseCode();
+            long firstByteNanos = System.nanoTime() - start;
+            if (responseCode != HttpURLConnection.HTTP_OK)
+                throw new HttpStatusException(request.uri(), responseCode, parseRetryAfter(connection.getHeaderField("Retry-After")));
+
+            MessageDigest digest = HashingFunction.SHA1.getMessageDigest();
+            try (InputStream input = connection.getInputStream();
+                 OutputStream output = Files.newOutputStream(tempFile)) {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int read;
+                while ((read = input.read(buffer)) != -1) {
+                    host.throttle.acquire(read);
+                    host.transferred.addAndGet(read);
+                    digest.update(buffer, 0, read);
+                    output.write(buffer, 0, read);
+                    this.downloadedBytes.addAndGet(read);
+                }
+            }
+
+            if (request.sha1() != null) {
+                String hash = HexFormat.of().formatHex(digest.digest());
+                if (!hash.equalsIgnoreCase(request.sha1()))
+                    throw new IOException("Hash mismatch for %s! Expected %s but got %s".formatted(request.uri(), request.sha1(), hash));
+            }
+
+            Files.move(tempFile, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return firstByteNanos;
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    /**
+     * Whether the failure might go away when the request is repeated. Client errors other than timeouts and rate
+     * limits will not.
+     */
+    private static boolean isRetryable(Throwable throwable) {
+        if (throwable instanceof HttpStatusException exception) {
+            int status = exception.status;
+            return status == 408 || status == 429 || status >= 500;
+        }
+
+        return throwable instanceof IOException;
+    }
+
+    /**
+     * A backoff with "equal jitter": somewhere between half and all of the exponential delay, so that requests that
+     * failed together don't all come back at the same moment.
+     */
+    private static long backoffMillis(int attempt, Throwable throwable) {
+        long delay = Math.min(MAX_BACKOFF_MILLIS, BASE_BACKOFF_MILLIS << Math.min(attempt - 1, 16));
+        delay = delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+        if (throwable instanceof HttpStatusException exception)
+            delay = Math.max(delay, Math.min(MAX_BACKOFF_MILLIS, exception.retryAfterMillis));
+
+        return delay;
+    }
+
+    private static long parseRetryAfter(@Nullable String header) {
+        if (header == null)
+            return 0;
+
+        try {
+            return TimeUnit.SECONDS.toMillis(Long.parseLong(header.trim()));
+        } catch (NumberFormatException ignored) {
+            // an HTTP date, which the jittered backoff covers well enough
+            return 0;
+        }
+    }
+
+    private static Path copy(Path source, Path target) {
+        try {
+            Files.createDirectories(target.toAbsolutePath().getParent());
+            Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING);
+            return target;
+        } catch (IOException exception) {
+            throw new IllegalStateException("Failed to copy " + source + " to " + target + "!", exception);
+        }
+    }
+
+    public interface Parameters extends BuildServiceParameters {
+        Property<Integer> getMaxConnectionsPerHost();
+
+        /**
+         * The bandwidth budget of each host, {@code 0} for no limit.
+         */
+        Property<Long> getMaxBytesPerSecond();
+
+        DirectoryProperty getCacheDirectory();
+
+        DirectoryProperty getSharedCacheDirectory();
+
+        Property<Boolean> getPublishToSharedCache();
+    }
+
+    private record Request(URI uri, @Nullable String sha1, long size, Path target, CompletableFuture<Path> future,
+                           long sequence, int attempt) {
+        // largest first, then in the order they were requested
+        private static final Comparator<Request> PRIORITY = Comparator.comparingLong(Request::size).reversed()
+                .thenComparingLong(Request::sequence);
+
+        private Request retry() {
+            return new Request(this.uri, this.sha1, this.size, this.target, this.future, this.sequence, this.attempt + 1);
+        }
+    }
+
+    private static final class HttpStatusException extends IOException {
+        @Serial
+        private static final long serialVersionUID = 1L;
+
+        private final int status;
+        private final long retryAfterMillis;
+
+        private HttpStatusException(URI uri, int status, long retryAfterMillis) {
+            super("Unexpected response code " + status + " from " + uri);
+            this.status = status;
+            this.retryAfterMillis = retryAfterMillis;
+        }
+    }
+
+    /**
+     * The downloads of one host, together with an additive increase/multiplicative decrease controller for the
+     * number of connections they use.
+     */
+    private final class HostQueue {
+        private final PriorityQueue<Request> queue = new PriorityQueue<>(Request.PRIORITY);
+        private final Throttle throttle = new Throttle(getParameters().getMaxBytesPerSecond().getOrElse(0L));
+        private final int maxConnections = Math.max(1, getParameters().getMaxConnectionsPerHost().getOrElse(8));
+        private final AtomicLong transferred = new AtomicLong();
+        private double limit = Math.min(INITIAL_CONNECTIONS, this.maxConnections);
+        private double firstByteNanos = -1;
+        private int connections;
+        // bytes per second over all connections, sampled whenever a download finishes
+        private double throughput = -1;
+        private long sampledBytes;
+        private long sampledAt = System.nanoTime();
+        // the throughput when the last connection was added, and whether adding it didn't help
+        private double throughputWhenWidened = -1;
+        private boolean plateaued;
+
+        private void submit(Request request) {
+            synchronized (this) {
+                this.queue.add(request);
+            }
+
+            fill();
+        }
+
+        /**
+         * Starts connections until the limit is reached or every queued request has one.
+         */
+        private void fill() {
+            int toStart;
+            synchronized (this) {
+                toStart = Math.min((int) this.limit - this.connections, this.queue.size());
+                if (toStart <= 0)
+                    return;
+
+                this.connections += toStart;
+            }
+
+            for (int index = 0; index < toStart; index++) {
+                executor.execute(this::drain);
+            }
+        }
+
+        private void drain() {
+            while (true) {
+                Request request;
+                synchronized (this) {
+                    // the limit may have been lowered since this connection was started
+                    request = this.connections > (int) this.limit ? null : this.queue.poll();
+                    if (request == null) {
+                        this.connections--;
+                        return;
+                    }
+                }
+
+                try {
+                    long firstByte = fetch(request, this);
+                    sharedCache.publishFile(request.target());
+                    request.future().complete(request.target());
+                    onSuccess(firstByte);
+                } catch (InterruptedException exception) {
+                    Thread.currentThread().interrupt();
+                    request.future().completeExceptionally(exception);
+                    synchronized (this) {
+                        this.connections--;
+                    }
+
+                    return;
+                } catch (Exception exception) {
+                    onFailure(request, exception);
+                }
+            }
+        }
+
+        private void onSuccess(long firstByte) {
+            synchronized (this) {
+                sampleThroughput();
+
+                // only widen while the server keeps answering as quickly as before, a growing wait means the extra
+                // connections are just queueing up on the other end
+                if (!this.plateaued && (this.firstByteNanos < 0 || firstByte <= this.firstByteNanos * 2)) {
+                    double widened = Math.min(this.maxConnections, this.limit + 1 / this.limit);
+                    if ((int) widened > (int) this.limit) {
+                        // another connection is only worth it if the last one made the host faster, otherwise the
+                        // link or the server is already saturated
+                        if (this.throughputWhenWidened >= 0 && this.throughput < this.throughputWhenWidened * PLATEAU_GAIN) {
+                            this.plateaued = true;
+                            widened = this.limit;
+                        } else {
+                            this.throughputWhenWidened = this.throughput;
+                        }
+                    }
+
+                    this.limit = widened;
+                }
+
+                this.firstByteNanos = this.firstByteNanos < 0 ? firstByte : this.firstByteNanos * 0.8 + firstByte * 0.2;
+            }
+
+            fill();
+        }
+
+        /**
+         * Folds the bytes that arrived on any connection since the last sample into the moving average.
+         */
+        private void sampleThroughput() {
+            long now = System.nanoTime();
+            long bytes = this.transferred.get();
+            long elapsed = now - this.sampledAt;
+            if (elapsed <= 0)
+                return;
+
+            double sample = (bytes - this.sampledBytes) * 1e9 / elapsed;
+            this.throughput = this.throughput < 0 ? sample : this.throughput * 0.8 + sample * 0.2;
+            this.sampledBytes = bytes;
+            this.sampledAt = now;
+        }
+
+        private void onFailure(Request request, Exception exception) {
+            synchronized (this) {
+                this.limit = Math.max(1, this.limit / 2);
+                // the throughput from before doesn't say anything about the narrower window, so probe again
+                this.throughputWhenWidened = -1;
+                this.plateaued = false;
+            }
+
+            if (request.attempt() >= MAX_ATTEMPTS || !isRetryable(exception)) {
+                request.future().completeExceptionally(exception);
+                return;
+            }
+
+            retries.incrementAndGet();
+            long delay = backoffMillis(request.attempt(), exception);
+            System.out.printf("Retrying %s in %dms (attempt %d of %d): %s%n", request.uri(), delay, request.attempt() + 1, MAX_ATTEMPTS, exception.getMessage());
+            try {
+                retryScheduler.schedule(() -> submit(request.retry()), delay, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException rejected) {
+                request.future().completeExceptionally(exception);
+            }
+        }
+    }
+
+    /**
+     * A token bucket that holds at most one second worth of bytes.
+     */
+    private static final class Throttle {
+        private final long bytesPerSecond;
+        private double available;
+        private long lastRefill = System.nanoTime();
+
+        private Throttle(long bytesPerSecond) {
+            this.bytesPerSecond = bytesPerSecond;
+            this.available = bytesPerSecond;
+        }
+
+        private void acquire(int bytes) throws InterruptedException {
+            if (this.bytesPerSecond <= 0)
+                return;
+
+            long waitNanos;
+            synchronized (this) {
+                long now = System.nanoTime();
+                this.available = Math.min(this.bytesPerSecond, this.available + (now - this.lastRefill) * this.bytesPerSecond / 1e9);
+                this.lastRefill = now;
+                this.available -= bytes;
+                waitNanos = this.available < 0 ? (long) (-this.available * 1e9 / this.bytesPerSecond) : 0;
+            }
+
+            if (waitNanos > 0)
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+}
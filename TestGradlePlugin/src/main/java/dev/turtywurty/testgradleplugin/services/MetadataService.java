@@ -0,0 +1,70 @@
+package dev.turtywurty.testgradleplugin.services;
+
+import dev.turtywurty.testgradleplugin.asset.AssetIndexHash;
+import dev.turtywurty.testgradleplugin.mappings.MappingSet;
+import dev.turtywurty.testgradleplugin.mappings.OfficialMappingsFile;
+import dev.turtywurty.testgradleplugin.piston.PistonMeta;
+import dev.turtywurty.testgradleplugin.piston.version.VersionPackage;
+import dev.turtywurty.testgradleplugin.remap.AccessTransformer;
+import org.gradle.api.services.BuildService;
+import org.gradle.api.services.BuildServiceParameters;
+
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Hands out parsed version metadata and mappings, so that the tasks of a build share one copy of each instead of
+ * parsing the same files again.
+ * <p>
+ * The cache itself is static: Gradle creates a new service for every build, but the plugin's classes stay loaded
+ * in the daemon, so an IDE that keeps running builds doesn't parse anything that hasn't changed.
+ */
+public abstract class MetadataService implements BuildService<BuildServiceParameters.None> {
+    public static final String NAME = "testGradleMetadata";
+
+    private static final ParsedFileCache CACHE = new ParsedFileCache(32);
+
+    public VersionPackage getVersionPackage(Path path) {
+        return CACHE.get(path, VersionPackage.class, VersionPackage::fromPath);
+    }
+
+    public PistonMeta getPistonMeta(Path path) {
+        return CACHE.get(path, PistonMeta.class, PistonMeta::new);
+    }
+
+    public OfficialMappingsFile getMappings(Path path) {
+        return CACHE.get(path, OfficialMappingsFile.class, OfficialMappingsFile::new);
+    }
+
+    /**
+     * Gets the official mappings with the given layers on top, unless a set with the same hash was already loaded.
+     *
+     * @param hash the hash of the set, see {@link MappingSet#hash(Path, List)}
+     */
+    public MappingSet getMappingSet(String hash, Path officialMappings, List<Path> layers) {
+        return CACHE.get(hash, MappingSet.class, () -> MappingSet.load(hash, officialMappings, layers, this::getMappings));
+    }
+
+    /**
+     * Gets the access transformer made of the given files, unless one with the same hash was already read.
+     *
+     * @param hash the hash of the files, see {@link AccessTransformer#hash(List)}
+     */
+    public AccessTransformer getAccessTransformer(String hash, List<Path> files) {
+        return CACHE.get(hash, AccessTransformer.class, () -> AccessTransformer.read(files));
+    }
+
+    /**
+     * Gets the asset index stored in the given file, unless an index with the same hash was already read.
+     *
+     * @param sha1 the SHA-1 the file was verified against
+     */
+    public AssetIndexHash getAssetIndex(String sha1, Path indexFile) {
+        return CACHE.get(sha1, AssetIndexHash.class, () -> AssetIndexHash.read(indexFile));
+    }
+
+    @Override
+    public String toString() {
+        return "MetadataService[" + CACHE + "]";
+    }
+}
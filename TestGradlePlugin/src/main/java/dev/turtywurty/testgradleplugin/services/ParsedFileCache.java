@@ -0,0 +1,121 @@
+package dev.turtywurty.testgradleplugin.services;
+
+import dev.turtywurty.testgradleplugin.HashingFunction;
+
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * A size bounded cache of parsed files. File entries are invalidated by the SHA-1 of the file, which is only computed
+ * again when the size or modification time changes. Values are softly referenced, so the garbage collector can
+ * still reclaim them when the daemon runs low on memory.
+ */
+class ParsedFileCache {
+    private final Map<Key, Entry> entries;
+    private int hits, misses;
+
+    ParsedFileCache(int maxEntries) {
+        this.entries = new LinkedHashMap<>(16, 0.75F, true) {
+            // qualified, in here Entry alone is the Map.Entry the map inherits
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, ParsedFileCache.Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    <T> T get(Path path, Class<T> type, Function<Path, T> parser) {
+        Path absolutePath = path.toAbsolutePath().normalize();
+        var key = new Key(type, absolutePath.toString());
+
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(absolutePath, BasicFileAttributes.class);
+        } catch (IOException exception) {
+            throw new IllegalStateException("Failed to read the attributes of '%s'!".formatted(absolutePath), exception);
+        }
+
+        long size = attributes.size();
+        long modified = attributes.lastModifiedTime().toMillis();
+
+        Entry entry;
+        synchronized (this) {
+            entry = this.entries.get(key);
+        }
+
+        if (entry != null && entry.size() == size && entry.modified() == modified) {
+            T value = type.cast(entry.value().get());
+            if (value != null)
+                return hit(value);
+        }
+
+        // the file was touched, but it may still have the same contents
+        String hash = HashingFunction.SHA1.hash(absolutePath);
+        if (entry != null && entry.hash().equals(hash)) {
+            T value = type.cast(entry.value().get());
+            if (value != null) {
+                put(key, new Entry(size, modified, hash, entry.value()));
+                return hit(value);
+            }
+        }
+
+        // parsed outside the lock, so that different files can be parsed at the same time
+        T value = parser.apply(absolutePath);
+        put(key, new Entry(size, modified, hash, new SoftReference<>(value)));
+        return miss(value);
+    }
+
+    /**
+     * Gets a value that is identified by the hash of its contents, such as a download with a known SHA-1.
+     */
+    <T> T get(String hash, Class<T> type, Supplier<T> loader) {
+        var key = new Key(type, hash);
+
+        Entry entry;
+        synchronized (this) {
+            entry = this.entries.get(key);
+        }
+
+        if (entry != null) {
+            T value = type.cast(entry.value().get());
+            if (value != null)
+                return hit(value);
+        }
+
+        T value = loader.get();
+        put(key, new Entry(-1, -1, hash, new SoftReference<>(value)));
+        return miss(value);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "%d entries, %d hits, %d misses".formatted(this.entries.size(), this.hits, this.misses);
+    }
+
+    private synchronized void put(Key key, Entry entry) {
+        this.entries.put(key, entry);
+    }
+
+    private synchronized <T> T hit(T value) {
+        this.hits++;
+        return value;
+    }
+
+    private synchronized <T> T miss(T value) {
+        this.misses++;
+        return value;
+    }
+
+    private record Key(Class<?> type, String key) {
+    }
+
+    private record Entry(long size, long modified, String hash, SoftReference<?> value) {
+    }
+}
@@ -0,0 +1,24 @@
+package dev.turtywurty.testgradleplugin.tasks;
+
+import dev.turtywurty.testgradleplugin.util.SharedCacheTier;
+import org.gradle.api.file.DirectoryProperty;
+import org.gradle.api.provider.Property;
+import org.gradle.workers.WorkParameters;
+
+/**
+ * Parameters of the work actions that produce cache artifacts, filled by
+ * {@link TestGradleTask#configureCacheParameters(CacheWorkParameters)}.
+ */
+public interface CacheWorkParameters extends WorkParameters {
+    DirectoryProperty getCacheDirectory();
+
+    DirectoryProperty getSharedCacheDirectory();
+
+    Property<Boolean> getPublishToSharedCache();
+
+    static SharedCacheTier getSharedCacheTier(CacheWorkParameters parameters) {
+        return SharedCacheTier.of(parameters.getCacheDirectory().get().getAsFile().toPath(),
+                parameters.getSharedCacheDirectory().isPresent() ? parameters.getSharedCacheDirectory().get().getAsFile().toPath() : null,
+                parameters.getPublishToSharedCache().getOrElse(false));
+    }
+}
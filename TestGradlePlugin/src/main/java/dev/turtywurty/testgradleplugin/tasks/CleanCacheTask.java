@@ -0,0 +1,12 @@
+package dev.turtywurty.testgradleplugin.tasks;
+
+import org.gradle.api.tasks.TaskAction;
+import org.gradle.api.tasks.UntrackedTask;
+
+@UntrackedTask(because = "It works on the whole cache directory")
+public abstract class CleanCacheTask extends DefaultTestGradleTask {
+    @TaskAction
+    public void cleanCache() {
+        getCacheService().get().clean();
+    }
+}
@@ -1,71 +1,119 @@
 package dev.turtywurty.testgradleplugin.tasks;
 
+import dev.turtywurty.testgradleplugin.HashingFunction;
 import dev.turtywurty.testgradleplugin.decompiler.VineflowerDecompiler;
 import dev.turtywurty.testgradleplugin.extensions.TestGradleExtension;
-import dev.turtywurty.testgradleplugin.piston.version.Library;
+import dev.turtywurty.testgradleplugin.util.CacheLock;
+import dev.turtywurty.testgradleplugin.util.FileUtil;
+import org.gradle.api.file.ConfigurableFileCollection;
+import org.gradle.api.file.DirectoryProperty;
+import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.provider.Property;
 import org.gradle.api.tasks.*;
+import org.gradle.workers.WorkAction;
+import org.gradle.workers.WorkQueue;
+import org.gradle.workers.WorkerExecutor;
 
-import java.io.IOException;
+import javax.inject.Inject;
+import java.io.File;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
-import java.util.Map;
+import java.util.Objects;
+import java.util.stream.Collectors;
 
 @CacheableTask
-public class  DecompileTask extends DefaultTestGradleTask {
+public abstract class DecompileTask extends DefaultTestGradleTask {
+    public DecompileTask() {
+        getOutputDirectory().convention(getVersionDirectory().zip(getSide(), (dir, side) -> dir.dir("decompiled_" + side.getFileName())));
+    }
+
+    @Input
+    @Override
+    public abstract Property<TestGradleExtension.Side> getSide();
+
     @InputFile
+    @PathSensitive(PathSensitivity.NONE)
+    public abstract RegularFileProperty getInputJar();
+
+    /**
+     * The jars the decompiler resolves references against. Only their contents matter, so moving the cache
+     * directory doesn't invalidate the decompiled sources.
+     */
     @Classpath
-    private final Path inputJar, librariesJsonPath;
+    public abstract ConfigurableFileCollection getLibraries();
 
-    private final Path outputDir;
+    @OutputDirectory
+    public abstract DirectoryProperty getOutputDirectory();
 
-    public DecompileTask() {
-        Path cacheDir = getCacheDir();
-        Path versionPath = cacheDir.resolve(getMinecraftVersion());
-
-        this.inputJar = versionPath.resolve("repackaged_" + switch (getSide()) {
-            case CLIENT -> "client";
-            case SERVER -> "server";
-            case BOTH -> "joined";
-        } + ".jar");
-        this.librariesJsonPath = versionPath.resolve("libraries.json");
-
-        this.outputDir = versionPath.resolve("decompiled_" + switch (getSide()) {
-            case CLIENT -> "client";
-            case SERVER -> "server";
-            case BOTH -> "joined";
-        });
-    }
+    /**
+     * Whether Vineflower runs in its own worker process rather than inside the Gradle daemon.
+     */
+    @Internal
+    public abstract Property<Boolean> getFork();
+
+    /**
+     * The maximum heap size of the worker process, only used when {@link #getFork()} is enabled.
+     */
+    @Internal
+    public abstract Property<String> getMaxHeapSize();
+
+    @Inject
+    protected abstract WorkerExecutor getWorkerExecutor();
 
     @TaskAction
     public void decompileClient() {
-        TestGradleExtension.Side side = getSide();
+        Path inputJar = getInputJar().get().getAsFile().toPath();
+
+        TestGradleExtension.Side side = getSide().get();
 
-        System.out.printf("Decompiling %s for version %s%n", side.name().toLowerCase(Locale.ROOT), getMinecraftVersion());
+        System.out.printf("Decompiling %s for version %s%n", side.name().toLowerCase(Locale.ROOT), getMinecraftVersion().get());
 
         if (Files.notExists(inputJar))
             throw new IllegalStateException("Jar '%s' does not exist!".formatted(inputJar));
 
-        if (Files.notExists(librariesJsonPath))
-            throw new IllegalStateException("Libraries json '%s' does not exist!".formatted(librariesJsonPath));
+        WorkQueue workQueue = getFork().get()
+                ? getWorkerExecutor().processIsolation(spec -> spec.forkOptions(options -> options.setMaxHeapSize(getMaxHeapSize().get())))
+                : getWorkerExecutor().noIsolation();
+
+        workQueue.submit(DecompileAction.class, parameters -> {
+            parameters.getInputJar().set(getInputJar());
+            parameters.getLibraries().from(getLibraries());
+            parameters.getOutputDirectory().set(getOutputDirectory());
+            configureCacheParameters(parameters);
+        });
+    }
 
-        Map<String, Path> libraryJars = new HashMap<>();
-        try {
-            Library.readLibraries(libraryJars, librariesJsonPath);
-        } catch (IOException exception) {
-            throw new IllegalStateException("Failed to read libraries json!", exception);
+    public abstract static class DecompileAction implements WorkAction<DecompileAction.Parameters> {
+        @Override
+        public void execute() {
+            Path inputJar = getParameters().getInputJar().get().getAsFile().toPath();
+            Path outputDir = getParameters().getOutputDirectory().get().getAsFile().toPath();
+            List<Path> libraryJars = getParameters().getLibraries().getFiles().stream().map(File::toPath).toList();
+
+            // library jars are named after their version, so their names identify them well enough
+            String jarKey = Objects.requireNonNullElseGet(CacheLock.readKey(inputJar), () -> HashingFunction.SHA1.hash(inputJar));
+            String librariesKey = libraryJars.stream().map(path -> path.getFileName().toString()).sorted().collect(Collectors.joining(","));
+            CacheLock.produce(outputDir, CacheLock.key("decompile", jarKey, librariesKey), CacheWorkParameters.getSharedCacheTier(getParameters()), () -> {
+                Path stagingDir = FileUtil.createStagingDirectory(outputDir);
+                try {
+                    var decompiler = new VineflowerDecompiler();
+                    decompiler.decompile(inputJar, stagingDir, libraryJars);
+                    FileUtil.swapDirectory(stagingDir, outputDir);
+                } catch (RuntimeException exception) {
+                    FileUtil.deleteDirectory(stagingDir);
+                    throw exception;
+                }
+            });
         }
 
-        var decompiler = new VineflowerDecompiler(getProject());
-        decompiler.decompile(inputJar, outputDir, libraryJars.values());
-    }
+        public interface Parameters extends CacheWorkParameters {
+            RegularFileProperty getInputJar();
 
-    public Path getInputJar() {
-        return inputJar;
-    }
+            ConfigurableFileCollection getLibraries();
 
-    public Path getLibrariesJsonPath() {
-        return librariesJsonPath;
+            DirectoryProperty getOutputDirectory();
+        }
     }
 }
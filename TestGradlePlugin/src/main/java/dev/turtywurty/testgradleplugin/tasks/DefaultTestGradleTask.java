@@ -2,6 +2,6 @@ package dev.turtywurty.testgradleplugin.tasks;
 
 import org.gradle.api.DefaultTask;
 
-public class DefaultTestGradleTask extends DefaultTask implements TestGradleTask {
+public abstract class DefaultTestGradleTask extends DefaultTask implements TestGradleTask {
 
 }
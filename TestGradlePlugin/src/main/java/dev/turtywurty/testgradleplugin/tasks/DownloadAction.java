@@ -0,0 +1,80 @@
+package dev.turtywurty.testgradleplugin.tasks;
+
+import dev.turtywurty.testgradleplugin.piston.version.Download;
+import dev.turtywurty.testgradleplugin.services.DownloadService;
+import dev.turtywurty.testgradleplugin.util.CacheLock;
+import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.provider.Property;
+import org.gradle.workers.WorkAction;
+import org.gradle.workers.WorkParameters;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Objects;
+
+/**
+ * Downloads one of the files listed in the version package, unless the hash stored next to it already matches. Run
+ * as a work item so that the client and server downloads don't wait on each other.
+ */
+public abstract class DownloadAction implements WorkAction<DownloadAction.Parameters> {
+    @Override
+    public void execute() {
+        String name = getParameters().getName().get();
+        var download = new Download(getParameters().getSha1().get(), getParameters().getSize().get(), getParameters().getUrl().get());
+        Path outputPath = getParameters().getOutputFile().get().getAsFile().toPath();
+        Path hashPath = getParameters().getHashFile().get().getAsFile().toPath();
+
+        // another build may be downloading the same file, wait for it and then use its download
+        CacheLock.runLocked(outputPath, () -> download(name, download, outputPath, hashPath));
+    }
+
+    private void download(String name, Download download, Path outputPath, Path hashPath) {
+        // Check if the hash is already downloaded
+        if (Files.exists(hashPath) && Files.exists(outputPath)) {
+            String hash = null;
+            try {
+                hash = Files.readString(hashPath);
+            } catch (IOException ignored) {
+            }
+
+            // Check if the hash matches the hash in the version manifest
+            if (Objects.equals(hash, download.sha1())) {
+                System.out.println("SKIPPING DOWNLOAD: " + name + " already downloaded!");
+                return;
+            }
+        }
+
+        try {
+            // the file itself is replaced with a rename, so readers never see it half written
+            Files.deleteIfExists(hashPath);
+
+            System.out.println(name + " hash mismatch! Re-downloading...");
+            System.out.println(name + " download: " + download.url());
+
+            getParameters().getDownloadService().get().downloadNow(download.url(), download.sha1(), download.size(), outputPath);
+
+            // only written once the file is in place, so an interrupted download is retried next time
+            Files.writeString(hashPath, download.sha1());
+            System.out.println(name + " downloaded to: " + outputPath);
+        } catch (IOException exception) {
+            throw new IllegalStateException("Failed to download " + name + "!", exception);
+        }
+    }
+
+    public interface Parameters extends WorkParameters {
+        Property<DownloadService> getDownloadService();
+
+        Property<String> getName();
+
+        Property<String> getUrl();
+
+        Property<String> getSha1();
+
+        Property<Long> getSize();
+
+        RegularFileProperty getOutputFile();
+
+        RegularFileProperty getHashFile();
+    }
+}
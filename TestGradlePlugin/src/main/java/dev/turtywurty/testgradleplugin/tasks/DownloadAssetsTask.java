@@ -1,173 +1,158 @@
 package dev.turtywurty.testgradleplugin.tasks;
 
-import com.google.gson.JsonObject;
 import dev.turtywurty.testgradleplugin.HashingFunction;
 import dev.turtywurty.testgradleplugin.OperatingSystem;
-import dev.turtywurty.testgradleplugin.TestGradlePlugin;
 import dev.turtywurty.testgradleplugin.asset.AssetIndexHash;
-import dev.turtywurty.testgradleplugin.asset.AssetObject;
+import dev.turtywurty.testgradleplugin.piston.version.AssetIndex;
 import dev.turtywurty.testgradleplugin.piston.version.VersionPackage;
+import dev.turtywurty.testgradleplugin.services.DownloadService;
+import dev.turtywurty.testgradleplugin.util.CacheLock;
+import dev.turtywurty.testgradleplugin.util.FileSeeder;
+import org.gradle.api.file.DirectoryProperty;
+import org.gradle.api.file.RegularFileProperty;
 import org.gradle.api.provider.Property;
 import org.gradle.api.tasks.Optional;
 import org.gradle.api.tasks.*;
+import org.gradle.work.DisableCachingByDefault;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.net.URI;
-import java.net.URISyntaxException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.*;
-import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 
-@CacheableTask
+@DisableCachingByDefault(because = "Downloading is faster than restoring from the cache")
 public abstract class DownloadAssetsTask extends DefaultTestGradleTask {
-    @InputFile
-    @Classpath
-    private final Path versionJsonPath;
-
-    @OutputDirectory
-    private final Path assetsPath;
-
     public DownloadAssetsTask() {
+        getAssetsDirectory().convention(getVersionDirectory().map(dir -> dir.dir("assets")));
         getAssetsUrl().convention("https://resources.download.minecraft.net/");
-        getConcurrentConnections().convention(8);
-
-        Path cacheDir = getCacheDir();
-        Path versionPath = cacheDir.resolve(getMinecraftVersion());
-        this.versionJsonPath = versionPath.resolve("version.json");
-        this.assetsPath = versionPath.resolve("assets");
     }
 
-    @Input
-    @Optional
-    public abstract Property<String> getAssetsUrl();
+    @InputFile
+    @PathSensitive(PathSensitivity.NONE)
+    public abstract RegularFileProperty getVersionJson();
+
+    @OutputDirectory
+    public abstract DirectoryProperty getAssetsDirectory();
 
     @Input
     @Optional
-    public abstract Property<Integer> getConcurrentConnections();
+    public abstract Property<String> getAssetsUrl();
 
     @TaskAction
     public void downloadAssets() {
+        // another build sharing the cache may be filling the same directory, wait for it and then reuse its work
+        CacheLock.runLocked(getAssetsDirectory().get().getAsFile().toPath(), this::syncAssets);
+    }
+
+    private void syncAssets() {
+        Path versionJsonPath = getVersionJson().get().getAsFile().toPath();
+        Path assetsPath = getAssetsDirectory().get().getAsFile().toPath();
+
         System.out.println("Downloading assets!");
 
-        VersionPackage versionPackage = VersionPackage.fromPath(versionJsonPath);
+        VersionPackage versionPackage = getMetadataService().get().getVersionPackage(versionJsonPath);
         System.out.println("Version package path: " + versionJsonPath);
 
-        String assetsUrl = versionPackage.assetIndex().url();
-        System.out.println("Assets url: " + assetsUrl);
+        AssetIndex assetIndex = versionPackage.assetIndex();
+        System.out.println("Asset index url: " + assetIndex.url());
 
-        AssetIndexHash assetIndexHash;
-        try (InputStream stream = new URI(assetsUrl).toURL().openStream()) {
-            var jsonStr = new String(stream.readAllBytes());
-            JsonObject json = TestGradlePlugin.GSON.fromJson(jsonStr, JsonObject.class);
-            assetIndexHash = AssetIndexHash.fromJson(json);
-        } catch (IOException | URISyntaxException exception) {
-            throw new RuntimeException("Failed to download asset index!", exception);
+        Path objectsPath = assetsPath.resolve("objects");
+        Path indexPath = assetsPath.resolve("indexes/%s.json".formatted(assetIndex.id()));
+        Path minecraftAssets = OperatingSystem.getMinecraftDir().resolve("assets");
+        Path minecraftObjects = minecraftAssets.resolve("objects");
+
+        // the index is kept exactly as it was downloaded, the launcher checks it against the same hash
+        DownloadService downloadService = getDownloadService().get();
+        if (Files.notExists(indexPath) || !HashingFunction.SHA1.hash(indexPath).equals(assetIndex.sha1())) {
+            downloadService.downloadNow(assetIndex.url(), assetIndex.sha1(), assetIndex.size(), indexPath);
         }
 
-        System.out.println("Asset index hash: " + assetIndexHash);
+        AssetIndexHash index = getMetadataService().get().getAssetIndex(assetIndex.sha1(), indexPath);
+        System.out.println("Asset index: " + index);
 
-        Path objectsPath = assetsPath.resolve("objects");
-        Path indexesPath = assetsPath.resolve("indexes/%s.json".formatted(versionPackage.assetIndex().id()));
-        Path minecraftAssets = OperatingSystem.getMinecraftDir().resolve("assets/objects");
         try {
             Files.createDirectories(objectsPath);
-            Files.createDirectories(indexesPath.getParent());
-
-            Map<String, AssetObject> assets = assetIndexHash.getAssets();
-            List<String> assetKeys = new ArrayList<>(assets.keySet());
-
-            // sort the assets by their key
-            Collections.sort(assetKeys);
-
-            // remove any duplicates
-            HashSet<String> assetSet = new HashSet<>(assets.size());
-            assetKeys.removeIf(key -> key == null || !assetSet.add(assets.get(key).getPath()));
-
-            final CopyOnWriteArrayList<AssetObject> failedAssets = new CopyOnWriteArrayList<>();
-
-            var indexJson = new JsonObject();
-            var objectsJson = new JsonObject();
-            try (ExecutorService executor = Executors.newFixedThreadPool(getConcurrentConnections().get())) {
-                for (String key : assetKeys) {
-                    AssetObject asset = assets.get(key);
-                    long size = asset.size();
-                    String hash = asset.hash();
-                    String path = asset.getPath();
-                    String assetUrl = getAssetsUrl().get() + asset.getPath();
-
-                    var assetJson = new JsonObject();
-                    assetJson.addProperty("hash", hash);
-                    assetJson.addProperty("size", size);
-                    objectsJson.add(key, assetJson);
-
-                    Path assetPath = objectsPath.resolve(path);
-                    Path minecraftAssetPath = minecraftAssets.resolve(asset.getPath());
-
-                    if (Files.exists(assetPath) && HashingFunction.SHA1.hash(assetPath).equals(hash)) {
-                        // System.out.println("Skipping asset " + path + " as it already exists!");
-                        continue;
-                    }
-
-                    Runnable copyHandler = () -> {
-                        System.out.println("Copying asset " + path + " from " + minecraftAssetPath + " to " + assetPath + "!");
-                        if (Files.exists(minecraftAssetPath) && HashingFunction.SHA1.hash(minecraftAssetPath).equals(hash)) {
-                            try {
-                                Files.createDirectories(assetPath.getParent());
-                                Files.copy(minecraftAssetPath, assetPath);
-                                return;
-                            } catch (IOException ignored) {
-                            }
-                        }
-
-                        System.out.println("Downloading asset " + path + " from " + assetUrl + " to " + assetPath + "!");
-                        try (InputStream stream = new URI(assetUrl).toURL().openStream()) {
-                            Files.createDirectories(assetPath.getParent());
-                            Files.write(assetPath, stream.readAllBytes());
-                        } catch (IOException | URISyntaxException exception) {
-                            System.out.println("Failed to download asset " + path + " from " + assetUrl + "!");
-                            failedAssets.add(asset);
-                        }
-                    };
+        } catch (IOException exception) {
+            throw new RuntimeException("Failed to create assets directory!", exception);
+        }
 
-                    executor.execute(copyHandler);
-                }
+        // if the launcher has the same index, it has already verified its objects against it and they don't need
+        // to be hashed again
+        Path minecraftIndexPath = minecraftAssets.resolve("indexes/%s.json".formatted(assetIndex.id()));
+        boolean trustMinecraft = Files.exists(minecraftIndexPath) && HashingFunction.SHA1.hash(minecraftIndexPath).equals(assetIndex.sha1());
+
+        List<Integer> toDownload = new ArrayList<>();
+        Map<String, Long> toSeed = new LinkedHashMap<>();
+        Map<String, Integer> seededAssets = new HashMap<>();
+        for (int asset = 0; asset < index.size(); asset++) {
+            if (index.isDuplicate(asset))
+                continue;
+
+            // everything in the objects directory was verified when it was downloaded or seeded
+            String path = index.getPath(asset);
+            long size = index.getSize(asset);
+            if (FileSeeder.hasSize(objectsPath.resolve(path), size))
+                continue;
+
+            Path minecraftAssetPath = minecraftObjects.resolve(path);
+            if (FileSeeder.hasSize(minecraftAssetPath, size) &&
+                    (trustMinecraft || index.hashEquals(asset, HashingFunction.SHA1.digest(minecraftAssetPath)))) {
+                toSeed.put(path, size);
+                seededAssets.put(path, asset);
+                continue;
             }
 
-            try {
-                indexJson.add("objects", objectsJson);
-                Files.writeString(indexesPath, TestGradlePlugin.GSON.toJson(indexJson));
-            } catch (IOException exception) {
-                throw new RuntimeException("Failed to write index json!", exception);
-            }
+            toDownload.add(asset);
+        }
+
+        FileSeeder.Result seedResult = FileSeeder.seed(minecraftObjects, objectsPath, toSeed);
+        for (String path : seedResult.failed()) {
+            toDownload.add(seededAssets.get(path));
+        }
 
-            if (!failedAssets.isEmpty()) {
-                StringBuilder errorMessage = new StringBuilder("Failed to download the following assets (Total: " + failedAssets.size() + "):\n");
-                for (AssetObject asset : failedAssets) {
-                    for (Map.Entry<String, AssetObject> entry : assets.entrySet()) {
-                        if (entry.getValue().hash().equals(asset.hash())) {
-                            errorMessage.append("Asset: ").append(entry.getKey()).append("\n");
-                            break;
+        // the download service starts the largest files first, but only among what it has been given so far
+        toDownload.sort(Comparator.comparingLong(index::getSize).reversed());
+
+        // keyed by hash, so the report doesn't have to search the index for every failure
+        Map<String, Throwable> failedAssets = new ConcurrentHashMap<>();
+        List<CompletableFuture<Path>> downloads = new ArrayList<>(toDownload.size());
+        for (int asset : toDownload) {
+            String hash = index.getHash(asset);
+            String path = index.getPath(asset);
+            downloads.add(downloadService.download(getAssetsUrl().get() + path, hash, index.getSize(asset), objectsPath.resolve(path))
+                    .whenComplete((ignored, throwable) -> {
+                        if (throwable != null) {
+                            failedAssets.put(hash, throwable instanceof CompletionException ? throwable.getCause() : throwable);
                         }
-                    }
-                }
+                    }));
+        }
 
-                errorMessage.append("\nSome assets failed to download! See above for more details! Try running the task again!");
-                throw new RuntimeException(errorMessage.toString());
-            }
-        } catch (IOException exception) {
-            throw new RuntimeException("Failed to create assets directory!", exception);
+        try {
+            CompletableFuture.allOf(downloads.toArray(CompletableFuture[]::new)).join();
+        } catch (CompletionException ignored) {
+            // reported through failedAssets
         }
-    }
 
-    public Path getVersionJsonPath() {
-        return versionJsonPath;
-    }
+        System.out.printf("Assets: %d already present, %d cloned, %d linked, %d copied, %d downloaded (%d retries so far)%n",
+                index.size() - index.getDuplicateCount() - toSeed.size() - toDownload.size() + seedResult.failed().size(),
+                seedResult.cloned(), seedResult.linked(), seedResult.copied(), toDownload.size() - failedAssets.size(),
+                downloadService.getRetries());
+
+        if (!failedAssets.isEmpty()) {
+            StringBuilder errorMessage = new StringBuilder("Failed to download the following assets (Total: " + failedAssets.size() + "):\n");
+            for (int asset : toDownload) {
+                Throwable cause = failedAssets.get(index.getHash(asset));
+                if (cause != null) {
+                    errorMessage.append("Asset: ").append(index.getName(asset))
+                            .append(" (").append(index.getHash(asset)).append("): ").append(cause.getMessage()).append("\n");
+                }
+            }
 
-    public Path getAssetsPath() {
-        return assetsPath;
+            errorMessage.append("\nThese assets still failed after being retried! Check your connection and run the task again!");
+            throw new RuntimeException(errorMessage.toString());
+        }
     }
 }
@@ -6,7 +6,13 @@ import dev.turtywurty.testgradleplugin.OperatingSystem;
 import dev.turtywurty.testgradleplugin.piston.version.Download;
 import dev.turtywurty.testgradleplugin.piston.version.Library;
 import dev.turtywurty.testgradleplugin.piston.version.VersionPackage;
+import dev.turtywurty.testgradleplugin.services.DownloadService;
+import dev.turtywurty.testgradleplugin.util.CacheLock;
+import dev.turtywurty.testgradleplugin.util.FileSeeder;
+import org.gradle.api.file.DirectoryProperty;
+import org.gradle.api.file.RegularFileProperty;
 import org.gradle.api.tasks.*;
+import org.gradle.work.DisableCachingByDefault;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.IOException;
@@ -14,31 +20,29 @@ import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+@DisableCachingByDefault(because = "Downloading is faster than restoring from the cache")
+public abstract class DownloadLibrariesTask extends DefaultTestGradleTask {
+    public DownloadLibrariesTask() {
+        getLibrariesDirectory().convention(getVersionDirectory().map(dir -> dir.dir("libraries")));
+        getLibrariesJson().convention(getVersionDirectory().map(dir -> dir.file("libraries.json")));
+    }
 
-// TODO: Cache this task by comparing the hashes of the libraries
-@CacheableTask
-public class DownloadLibrariesTask extends DefaultTestGradleTask {
     @InputFile
-    @Classpath
-    private final Path versionJsonPath;
+    @PathSensitive(PathSensitivity.NONE)
+    public abstract RegularFileProperty getVersionJson();
 
     @OutputDirectory
-    private final Path librariesPath;
+    public abstract DirectoryProperty getLibrariesDirectory();
 
     @OutputFile
-    private final Path librariesJsonPath;
-
-    public DownloadLibrariesTask() {
-        Path cacheDir = getCacheDir();
-        Path versionPath = cacheDir.resolve(getMinecraftVersion());
-
-        this.versionJsonPath = versionPath.resolve("version.json");
-        this.librariesPath = versionPath.resolve("libraries");
-        this.librariesJsonPath = versionPath.resolve("libraries.json");
-    }
+    public abstract RegularFileProperty getLibrariesJson();
 
     private static @NotNull StringBuilder getNormalizedPath(String[] split) {
         var pathBuilder = new StringBuilder();
@@ -60,24 +64,60 @@ public class DownloadLibrariesTask extends DefaultTestGradleTask {
         return pathBuilder;
     }
 
+    /**
+     * Reads the hashes of the libraries from the launcher's copy of this version, if it has one. The launcher
+     * verified its libraries against these, so a library with the same hash doesn't need to be hashed again.
+     */
+    private Map<String, String> getMinecraftLibraryHashes() {
+        String version = getMinecraftVersion().get();
+        Path versionJson = OperatingSystem.getMinecraftDir().resolve("versions/%s/%s.json".formatted(version, version));
+        if (Files.notExists(versionJson))
+            return Map.of();
+
+        Map<String, String> hashes = new HashMap<>();
+        try {
+            for (Library library : getMetadataService().get().getVersionPackage(versionJson).libraries()) {
+                if (library.artifact() != null) {
+                    hashes.put(library.name(), library.artifact().sha1());
+                }
+            }
+        } catch (RuntimeException exception) {
+            System.out.println("Failed to read the launcher's version json, its libraries will be hashed: " + exception.getMessage());
+            return Map.of();
+        }
+
+        return hashes;
+    }
+
     @TaskAction
     public void downloadLibraries() {
-        System.out.println("Downloading libraries for version " + getMinecraftVersion() + "...");
+        // another build sharing the cache may be filling the same directory, wait for it and then reuse its work
+        CacheLock.runLocked(getLibrariesDirectory().get().getAsFile().toPath(), this::syncLibraries);
+    }
+
+    private void syncLibraries() {
+        Path versionJsonPath = getVersionJson().get().getAsFile().toPath();
+        Path librariesPath = getLibrariesDirectory().get().getAsFile().toPath();
+        Path librariesJsonPath = getLibrariesJson().get().getAsFile().toPath();
 
-        VersionPackage versionPackage = VersionPackage.fromPath(versionJsonPath);
+        System.out.println("Downloading libraries for version " + getMinecraftVersion().get() + "...");
+
+        VersionPackage versionPackage = getMetadataService().get().getVersionPackage(versionJsonPath);
         System.out.println("Version package path: " + versionJsonPath);
 
         List<Library> libraries = versionPackage.libraries();
         System.out.println("Libraries: " + libraries.size());
 
+        // without the launcher there is nothing to seed from, and everything that's missing is downloaded
         Path minecraftLibrariesPath = OperatingSystem.getMinecraftDir().resolve("libraries");
-        if (Files.notExists(minecraftLibrariesPath)) {
-            throw new RuntimeException("You need a version of Minecraft installed to download libraries!");
-        }
+        System.out.println("Minecraft libraries path: " + minecraftLibrariesPath + (Files.notExists(minecraftLibrariesPath) ? " (not installed)" : ""));
 
-        System.out.println("Minecraft libraries path: " + minecraftLibrariesPath);
+        Map<String, String> trustedHashes = getMinecraftLibraryHashes();
 
         Map<String, Path> libraryJars = new HashMap<>();
+        Map<String, Download> toDownload = new LinkedHashMap<>();
+        Map<String, Long> toSeed = new LinkedHashMap<>();
+        Map<String, Library> seededLibraries = new HashMap<>();
         for (Library library : libraries) {
             java.util.Optional<List<Library.DownloadRule>> rules = library.rules();
             if (rules.isPresent()) {
@@ -112,32 +152,50 @@ public class DownloadLibrariesTask extends DefaultTestGradleTask {
             Path libraryFile = libraryPath.resolve(fileName);
             System.out.println("Library path: " + libraryFile);
 
-            if (Files.exists(libraryFile) && HashingFunction.SHA1.hash(libraryFile).equals(artifact.sha1())) {
+            libraryJars.put(library.name(), libraryFile);
+
+            // everything in the libraries directory was verified when it was downloaded or seeded
+            if (FileSeeder.hasSize(libraryFile, artifact.size())) {
                 System.out.println("Skipping library: " + library.name());
-                libraryJars.put(library.name(), libraryFile);
                 continue;
             }
 
-            Path minecraftLibraryPath = minecraftLibrariesPath.resolve(pathBuilder.toString()).resolve(fileName);
-            if (Files.exists(minecraftLibraryPath) && HashingFunction.SHA1.hash(minecraftLibraryPath).equals(artifact.sha1())) {
-                try {
-                    Files.createDirectories(libraryPath);
-                    Files.copy(minecraftLibraryPath, libraryFile);
-                } catch (IOException exception) {
-                    throw new RuntimeException("Failed to copy library " + library.name() + "!", exception);
-                }
-
-                libraryJars.put(library.name(), libraryFile);
+            String relativePath = pathBuilder + fileName;
+            Path minecraftLibraryPath = minecraftLibrariesPath.resolve(relativePath);
+            if (FileSeeder.hasSize(minecraftLibraryPath, artifact.size()) &&
+                    (artifact.sha1().equals(trustedHashes.get(library.name())) ||
+                            HashingFunction.SHA1.hash(minecraftLibraryPath).equals(artifact.sha1()))) {
+                toSeed.put(relativePath, artifact.size());
+                seededLibraries.put(relativePath, library);
                 continue;
             }
 
-            Path downloadPath = artifact.downloadToPath(libraryPath, fileName);
-            System.out.println("Downloaded to: " + downloadPath);
+            toDownload.put(relativePath, artifact);
+        }
 
-            libraryJars.put(library.name(), downloadPath);
+        FileSeeder.Result seedResult = FileSeeder.seed(minecraftLibrariesPath, librariesPath, toSeed);
+        for (String path : seedResult.failed()) {
+            toDownload.put(path, seededLibraries.get(path).artifact());
         }
 
-        System.out.println("Downloaded " + libraryJars.size() + " libraries!");
+        DownloadService downloadService = getDownloadService().get();
+        Map<String, CompletableFuture<Path>> downloads = new LinkedHashMap<>();
+        toDownload.forEach((path, artifact) -> {
+            System.out.println("Queued download of " + artifact.url());
+            downloads.put(artifact.url(), downloadService.download(artifact.url(), artifact.sha1(), artifact.size(), librariesPath.resolve(path)));
+        });
+
+        for (Map.Entry<String, CompletableFuture<Path>> entry : downloads.entrySet()) {
+            try {
+                System.out.println("Downloaded to: " + entry.getValue().join());
+            } catch (CompletionException exception) {
+                throw new RuntimeException("Failed to download library " + entry.getKey() + "!", exception.getCause());
+            }
+        }
+
+        System.out.printf("Libraries: %d already present, %d cloned, %d linked, %d copied, %d downloaded%n",
+                libraryJars.size() - toSeed.size() - toDownload.size() + seedResult.failed().size(),
+                seedResult.cloned(), seedResult.linked(), seedResult.copied(), downloads.size());
 
         JsonObject librariesObject = new JsonObject();
         libraryJars.entrySet()
@@ -156,16 +214,4 @@ public class DownloadLibrariesTask extends DefaultTestGradleTask {
             throw new RuntimeException("Failed to write libraries.json!", exception);
         }
     }
-
-    public Path getVersionJsonPath() {
-        return versionJsonPath;
-    }
-
-    public Path getLibrariesPath() {
-        return librariesPath;
-    }
-
-    public Path getLibrariesJsonPath() {
-        return librariesJsonPath;
-    }
 }
@@ -1,45 +1,88 @@
 package dev.turtywurty.testgradleplugin.tasks;
 
+import dev.turtywurty.testgradleplugin.HashingFunction;
 import dev.turtywurty.testgradleplugin.piston.PistonMeta;
 import dev.turtywurty.testgradleplugin.piston.PistonMetaVersion;
-import dev.turtywurty.testgradleplugin.piston.version.VersionPackage;
-import org.gradle.api.tasks.CacheableTask;
+import dev.turtywurty.testgradleplugin.util.SharedCacheTier;
+import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.provider.Property;
+import org.gradle.api.tasks.Internal;
 import org.gradle.api.tasks.OutputFile;
 import org.gradle.api.tasks.TaskAction;
+import org.gradle.work.DisableCachingByDefault;
 
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.Duration;
 
-@CacheableTask
-public class DownloadPistonMetaTask extends DefaultTestGradleTask {
-    @OutputFile
-    private final Path pistonFile, versionManifestFile;
+@DisableCachingByDefault(because = "Downloading is faster than restoring from the cache")
+public abstract class DownloadPistonMetaTask extends DefaultTestGradleTask {
+    /**
+     * How long the manifest is used before the server is asked whether there is a newer one.
+     */
+    public static final Duration REFRESH_INTERVAL = Duration.ofHours(1);
 
     public DownloadPistonMetaTask() {
-        Path cacheDir = getCacheDir();
-        this.pistonFile = cacheDir.resolve("version_manifest.json");
-        this.versionManifestFile = cacheDir.resolve(getMinecraftVersion()).resolve("version.json");
+        getPistonManifest().convention(getCacheDirectory().file("version_manifest.json"));
+        getVersionJson().convention(getVersionDirectory().map(dir -> dir.file("version.json")));
+        getOffline().convention(false);
+
+        // the manifest changes whenever a version is released, which nothing Gradle tracks would tell, so it's checked
+        // again once it gets old; the version json is only downloaded again when its hash changed, so the tasks after
+        // it stay up to date either way
+        getOutputs().upToDateWhen(task -> !((DownloadPistonMetaTask) task).shouldCheckManifest());
+    }
+
+    @OutputFile
+    public abstract RegularFileProperty getPistonManifest();
+
+    @OutputFile
+    public abstract RegularFileProperty getVersionJson();
+
+    /**
+     * Whether Gradle runs with {@code --offline}, in which case the cached manifest is used as it is.
+     */
+    @Internal
+    public abstract Property<Boolean> getOffline();
+
+    private boolean shouldCheckManifest() {
+        return !getOffline().get() && !PistonMeta.checkedWithin(getPistonManifest().get().getAsFile().toPath(), REFRESH_INTERVAL);
     }
 
     @TaskAction
     public void downloadPistonMeta() {
-        String version = getMinecraftVersion();
+        String version = getMinecraftVersion().get();
+        Path pistonFile = getPistonManifest().get().getAsFile().toPath();
+        Path versionManifestFile = getVersionJson().get().getAsFile().toPath();
 
-        System.out.println("Downloading Piston Meta...");
-        PistonMeta.download(this.pistonFile);
+        // a warm shared cache already has the version, which doesn't change once it's released
+        SharedCacheTier sharedCache = getSharedCacheTier();
+        if (Files.notExists(versionManifestFile) && sharedCache.fetchFile(versionManifestFile, null, 0)) {
+            if (Files.notExists(pistonFile)) {
+                sharedCache.fetchFile(pistonFile, null, 0);
+            }
 
-        var meta = new PistonMeta(this.pistonFile);
+            System.out.println("Took version " + version + " from the shared cache!");
+            return;
+        }
 
-        PistonMetaVersion metaVersion = meta.findVersion(version);
+        if (shouldCheckManifest()) {
+            PistonMeta.download(pistonFile);
+        } else if (Files.notExists(pistonFile)) {
+            throw new IllegalStateException("There is no piston meta in the cache, run the build once without --offline!");
+        }
 
-        System.out.println("Downloading Piston Meta Version...");
-        VersionPackage.download(metaVersion, this.versionManifestFile);
-    }
+        PistonMetaVersion metaVersion = getMetadataService().get().getPistonMeta(pistonFile).findVersion(version);
+        if (metaVersion == null)
+            throw new IllegalStateException("Minecraft version '%s' does not exist!".formatted(version));
 
-    public Path getPistonFile() {
-        return pistonFile;
-    }
+        if (Files.exists(versionManifestFile) && HashingFunction.SHA1.hash(versionManifestFile).equals(metaVersion.sha1())) {
+            System.out.println("SKIPPING DOWNLOAD: Version " + version + " is already downloaded!");
+            return;
+        }
 
-    public Path getVersionManifestFile() {
-        return versionManifestFile;
+        System.out.println("Downloading Piston Meta Version...");
+        getDownloadService().get().downloadNow(metaVersion.url(), metaVersion.sha1(), 0, versionManifestFile);
+        sharedCache.publishFile(pistonFile);
     }
 }
@@ -2,88 +2,50 @@ package dev.turtywurty.testgradleplugin.tasks;
 
 import dev.turtywurty.testgradleplugin.piston.version.Download;
 import dev.turtywurty.testgradleplugin.piston.version.VersionPackage;
+import org.gradle.api.file.RegularFileProperty;
 import org.gradle.api.tasks.*;
+import org.gradle.work.DisableCachingByDefault;
+import org.gradle.workers.WorkerExecutor;
 
-import java.io.IOException;
-import java.nio.file.Files;
+import javax.inject.Inject;
 import java.nio.file.Path;
 
-@CacheableTask
-public class DownloadServerMappingsTask extends DefaultTestGradleTask {
+@DisableCachingByDefault(because = "Downloading is faster than restoring from the cache")
+public abstract class DownloadServerMappingsTask extends DefaultTestGradleTask {
+    public DownloadServerMappingsTask() {
+        getServerMappings().convention(getVersionDirectory().map(dir -> dir.file("server_mappings.txt")));
+        getServerMappingsHash().convention(getVersionDirectory().map(dir -> dir.file("server_mappings.txt.sha1")));
+    }
+
     @InputFile
-    @Classpath
-    private final Path versionJsonPath;
+    @PathSensitive(PathSensitivity.NONE)
+    public abstract RegularFileProperty getVersionJson();
 
     @OutputFile
-    private final Path serverMappingsPath, serverMappingsHashPath;
+    public abstract RegularFileProperty getServerMappings();
 
-    public DownloadServerMappingsTask() {
-        Path cacheDir = getCacheDir();
-        Path versionPath = cacheDir.resolve(getMinecraftVersion());
+    @OutputFile
+    public abstract RegularFileProperty getServerMappingsHash();
 
-        this.versionJsonPath = versionPath.resolve("version.json");
-        this.serverMappingsPath = versionPath.resolve("server_mappings.txt");
-        this.serverMappingsHashPath = versionPath.resolve("server_mappings.txt.sha1");
-    }
+    @Inject
+    protected abstract WorkerExecutor getWorkerExecutor();
 
     @TaskAction
     public void downloadServerMappings() {
-        VersionPackage versionPackage = VersionPackage.fromPath(versionJsonPath);
-        System.out.println("Version package path: " + versionJsonPath);
-
-        // Check if the server mappings hash is already downloaded
-        if (Files.exists(serverMappingsHashPath) && Files.exists(serverMappingsPath)) {
-            String hash = null;
-            try {
-                hash = Files.readString(serverMappingsHashPath);
-            } catch (IOException ignored) {
-            }
-
-            if (hash != null) {
-                String mappingsHash = versionPackage.downloads().server_mappings().sha1();
-                System.out.println("Server mappings hash: " + mappingsHash);
-
-                // Check if the server mappings hash matches the hash in the version manifest
-                if (hash.equals(mappingsHash)) {
-                    System.out.println("SKIPPING DOWNLOAD: Server mappings already downloaded!");
-                    return;
-                }
-            }
-        }
-
-        try {
-            Files.deleteIfExists(serverMappingsPath);
-            Files.deleteIfExists(serverMappingsHashPath);
+        Path versionJsonPath = getVersionJson().get().getAsFile().toPath();
 
-            System.out.println("Server mappings hash mismatch! Re-downloading...");
-
-            Download serverMappingsDownload = versionPackage.downloads().server_mappings();
-            System.out.println("Server mappings download: " + serverMappingsDownload.url());
-
-            String serverMappingsHash = serverMappingsDownload.sha1();
-            System.out.println("Server mappings hash: " + serverMappingsHash);
-            Files.writeString(serverMappingsHashPath, serverMappingsHash);
-
-            Path mappingsPath = serverMappingsDownload.downloadToPath(serverMappingsHashPath.getParent(), "server_mappings.txt");
-            System.out.println("Server mappings downloaded to: " + mappingsPath);
-
-            Files.move(mappingsPath, serverMappingsPath);
-
-            System.out.println("Done!");
-        } catch (IOException exception) {
-            throw new IllegalStateException("Failed to download server mappings!", exception);
-        }
-    }
-
-    public Path getServerMappingsPath() {
-        return serverMappingsPath;
-    }
-
-    public Path getServerMappingsHashPath() {
-        return serverMappingsHashPath;
-    }
+        VersionPackage versionPackage = getMetadataService().get().getVersionPackage(versionJsonPath);
+        System.out.println("Version package path: " + versionJsonPath);
 
-    public Path getVersionJsonPath() {
-        return versionJsonPath;
+        Download download = versionPackage.downloads().server_mappings();
+        getWorkerExecutor().noIsolation().submit(DownloadAction.class, parameters -> {
+            parameters.getName().set("Server mappings");
+            parameters.getDownloadService().set(getDownloadService());
+            parameters.getUrl().set(download.url());
+            parameters.getSha1().set(download.sha1());
+            parameters.getSize().set(download.size());
+            parameters.getOutputFile().set(getServerMappings());
+            parameters.getHashFile().set(getServerMappingsHash());
+        });
     }
 }
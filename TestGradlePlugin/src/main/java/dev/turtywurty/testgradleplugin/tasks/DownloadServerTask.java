@@ -2,89 +2,50 @@ package dev.turtywurty.testgradleplugin.tasks;
 
 import dev.turtywurty.testgradleplugin.piston.version.Download;
 import dev.turtywurty.testgradleplugin.piston.version.VersionPackage;
+import org.gradle.api.file.RegularFileProperty;
 import org.gradle.api.tasks.*;
+import org.gradle.work.DisableCachingByDefault;
+import org.gradle.workers.WorkerExecutor;
 
-import java.io.IOException;
-import java.nio.file.Files;
+import javax.inject.Inject;
 import java.nio.file.Path;
-import java.util.Objects;
 
-@CacheableTask
-public class DownloadServerTask extends DefaultTestGradleTask {
+@DisableCachingByDefault(because = "Downloading is faster than restoring from the cache")
+public abstract class DownloadServerTask extends DefaultTestGradleTask {
+    public DownloadServerTask() {
+        getServerJar().convention(getVersionDirectory().map(dir -> dir.file("server.jar")));
+        getServerHash().convention(getVersionDirectory().map(dir -> dir.file("server.jar.sha1")));
+    }
+
     @InputFile
-    @Classpath
-    private final Path versionJsonPath;
+    @PathSensitive(PathSensitivity.NONE)
+    public abstract RegularFileProperty getVersionJson();
 
     @OutputFile
-    private final Path serverJarPath, serverHashPath;
+    public abstract RegularFileProperty getServerJar();
 
-    public DownloadServerTask() {
-        Path cacheDir = getCacheDir();
-        Path versionPath = cacheDir.resolve(getMinecraftVersion());
+    @OutputFile
+    public abstract RegularFileProperty getServerHash();
 
-        this.versionJsonPath = versionPath.resolve("version.json");
-        this.serverJarPath = versionPath.resolve("server.jar");
-        this.serverHashPath = versionPath.resolve("server.jar.sha1");
-    }
+    @Inject
+    protected abstract WorkerExecutor getWorkerExecutor();
 
     @TaskAction
     public void downloadServer() {
-        VersionPackage versionPackage = VersionPackage.fromPath(versionJsonPath);
-        System.out.println("Version package path: " + versionJsonPath);
-
-        // Check if the server hash is already downloaded
-        if (Files.exists(serverHashPath) && Files.exists(serverJarPath)) {
-            String hash = null;
-            try {
-                hash = Files.readString(serverHashPath);
-            } catch (IOException ignored) {
-            }
-
-            if (hash != null) {
-                String jarHash = versionPackage.downloads().server().sha1();
-                System.out.println("Server jar hash: " + jarHash);
-
-                // Check if the server jar hash matches the hash in the version manifest
-                if (Objects.equals(hash, jarHash)) {
-                    System.out.println("SKIPPING DOWNLOAD: Server jar already downloaded!");
-                    return;
-                }
-            }
-        }
-
-        try {
-            Files.deleteIfExists(serverJarPath);
-            Files.deleteIfExists(serverHashPath);
+        Path versionJsonPath = getVersionJson().get().getAsFile().toPath();
 
-            System.out.println("Server jar hash mismatch! Re-downloading...");
-
-            Download serverDownload = versionPackage.downloads().client();
-            System.out.println("Server download: " + serverDownload.url());
-
-            String serverHash = serverDownload.sha1();
-            System.out.println("Server hash: " + serverHash);
-            Files.writeString(serverHashPath, serverHash);
-
-            Path jarPath = serverDownload.downloadToPath(serverJarPath.getParent(), "server.jar");
-            System.out.println("Server jar downloaded to: " + jarPath);
-
-            Files.move(jarPath, serverJarPath);
-
-            System.out.println("Done!");
-        } catch (IOException exception) {
-            throw new IllegalStateException("Failed to download server jar!", exception);
-        }
-    }
-
-    public Path getServerJarPath() {
-        return serverJarPath;
-    }
-
-    public Path getServerHashPath() {
-        return serverHashPath;
-    }
+        VersionPackage versionPackage = getMetadataService().get().getVersionPackage(versionJsonPath);
+        System.out.println("Version package path: " + versionJsonPath);
 
-    public Path getVersionJsonPath() {
-        return versionJsonPath;
+        Download download = versionPackage.downloads().server();
+        getWorkerExecutor().noIsolation().submit(DownloadAction.class, parameters -> {
+            parameters.getName().set("Server jar");
+            parameters.getDownloadService().set(getDownloadService());
+            parameters.getUrl().set(download.url());
+            parameters.getSha1().set(download.sha1());
+            parameters.getSize().set(download.size());
+            parameters.getOutputFile().set(getServerJar());
+            parameters.getHashFile().set(getServerHash());
+        });
     }
 }
@@ -1,51 +1,76 @@
 package dev.turtywurty.testgradleplugin.tasks;
 
+import dev.turtywurty.testgradleplugin.HashingFunction;
+import dev.turtywurty.testgradleplugin.util.ArchiveExtractor;
+import dev.turtywurty.testgradleplugin.util.CacheLock;
 import dev.turtywurty.testgradleplugin.util.FileUtil;
+import org.gradle.api.file.DirectoryProperty;
+import org.gradle.api.file.RegularFileProperty;
 import org.gradle.api.tasks.InputFile;
-import org.gradle.api.tasks.Internal;
 import org.gradle.api.tasks.OutputDirectory;
+import org.gradle.api.tasks.PathSensitive;
+import org.gradle.api.tasks.PathSensitivity;
 import org.gradle.api.tasks.TaskAction;
 import org.gradle.work.DisableCachingByDefault;
+import org.gradle.workers.WorkAction;
+import org.gradle.workers.WorkerExecutor;
 
-import java.io.IOException;
+import javax.inject.Inject;
 import java.nio.file.Files;
 import java.nio.file.Path;
 
 @DisableCachingByDefault(because = "It's unnecessary")
-public class ExtractClientTask extends DefaultTestGradleTask {
-    @InputFile
-    private final Path jarPath;
+public abstract class ExtractClientTask extends DefaultTestGradleTask {
+    public ExtractClientTask() {
+        getOutputDirectory().convention(getVersionDirectory().map(dir -> dir.dir("client")));
+    }
 
-    private final Path outputDir;
+    @InputFile
+    @PathSensitive(PathSensitivity.NONE)
+    public abstract RegularFileProperty getClientJar();
 
-    public ExtractClientTask() {
-        Path cacheDir = getCacheDir();
-        Path versionPath = cacheDir.resolve(getMinecraftVersion());
+    @OutputDirectory
+    public abstract DirectoryProperty getOutputDirectory();
 
-        this.jarPath = versionPath.resolve("client.jar");
-        this.outputDir = versionPath.resolve("client");
-    }
+    @Inject
+    protected abstract WorkerExecutor getWorkerExecutor();
 
     @TaskAction
     public void extractJar() {
-        if (Files.notExists(jarPath))
+        if (Files.notExists(getClientJar().get().getAsFile().toPath()))
             throw new IllegalStateException("Client jar does not exist!");
 
-        try {
-            if (Files.notExists(outputDir))
-                Files.createDirectories(outputDir);
-            else
-                FileUtil.deleteDirectory(outputDir);
-        } catch (IOException exception) {
-            throw new IllegalStateException("Failed to create output directory!", exception);
+        getWorkerExecutor().noIsolation().submit(ExtractAction.class, parameters -> {
+            parameters.getClientJar().set(getClientJar());
+            parameters.getOutputDirectory().set(getOutputDirectory());
+            configureCacheParameters(parameters);
+        });
+    }
+
+    public abstract static class ExtractAction implements WorkAction<ExtractAction.Parameters> {
+        @Override
+        public void execute() {
+            Path jarPath = getParameters().getClientJar().get().getAsFile().toPath();
+            Path outputDir = getParameters().getOutputDirectory().get().getAsFile().toPath();
+
+            String key = CacheLock.key("extract", HashingFunction.SHA1.hash(jarPath));
+            CacheLock.produce(outputDir, key, CacheWorkParameters.getSharedCacheTier(getParameters()), () -> {
+                Path stagingDir = FileUtil.createStagingDirectory(outputDir);
+                try {
+                    ArchiveExtractor.Result result = FileUtil.extractArchive(jarPath, stagingDir);
+                    FileUtil.swapDirectory(stagingDir, outputDir);
+                    System.out.println("Extracted client jar: " + result);
+                } catch (RuntimeException exception) {
+                    FileUtil.deleteDirectory(stagingDir);
+                    throw exception;
+                }
+            });
         }
 
-        long start = System.nanoTime();
-        FileUtil.extractArchive(getProject(), jarPath, outputDir);
-        System.out.println("Extracted client jar in " + (System.nanoTime() - start) / 1_000_000_000 + " seconds!");
-    }
+        public interface Parameters extends CacheWorkParameters {
+            RegularFileProperty getClientJar();
 
-    public Path getJarPath() {
-        return jarPath;
+            DirectoryProperty getOutputDirectory();
+        }
     }
 }
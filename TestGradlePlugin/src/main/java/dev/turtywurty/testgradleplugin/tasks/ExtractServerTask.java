@@ -1,72 +1,200 @@
 package dev.turtywurty.testgradleplugin.tasks;
 
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import dev.turtywurty.testgradleplugin.HashingFunction;
+import dev.turtywurty.testgradleplugin.TestGradlePlugin;
+import dev.turtywurty.testgradleplugin.bundler.ServerBundle;
+import dev.turtywurty.testgradleplugin.piston.version.Library;
+import dev.turtywurty.testgradleplugin.services.CacheService;
+import dev.turtywurty.testgradleplugin.util.ArchiveExtractor;
+import dev.turtywurty.testgradleplugin.util.CacheLock;
 import dev.turtywurty.testgradleplugin.util.FileUtil;
+import org.gradle.api.file.DirectoryProperty;
+import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.provider.Property;
 import org.gradle.api.tasks.InputFile;
 import org.gradle.api.tasks.Internal;
+import org.gradle.api.tasks.OutputDirectory;
+import org.gradle.api.tasks.OutputFile;
+import org.gradle.api.tasks.PathSensitive;
+import org.gradle.api.tasks.PathSensitivity;
 import org.gradle.api.tasks.TaskAction;
 import org.gradle.work.DisableCachingByDefault;
+import org.gradle.workers.WorkAction;
+import org.gradle.workers.WorkerExecutor;
+import org.jetbrains.annotations.Nullable;
 
+import javax.inject.Inject;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 @DisableCachingByDefault(because = "It's unnecessary")
-public class ExtractServerTask extends DefaultTestGradleTask {
+public abstract class ExtractServerTask extends DefaultTestGradleTask {
+    public ExtractServerTask() {
+        getLibrariesJson().convention(getVersionDirectory().map(dir -> dir.file("server_libraries.json")));
+        getOutputDirectory().convention(getVersionDirectory().map(dir -> dir.dir("server")));
+        getLibraryStore().convention(getCacheDirectory().dir("bundled_libraries"));
+
+        // the libraries are kept in a store that the cache may evict them from, which the outputs don't show
+        getOutputs().upToDateWhen(task -> ExtractAction.hasLibraries(((ExtractServerTask) task).getLibrariesJson().get().getAsFile().toPath()));
+    }
+
     @InputFile
-    private final Path jarPath;
+    @PathSensitive(PathSensitivity.NONE)
+    public abstract RegularFileProperty getServerJar();
 
-    private final Path outputDir, tempOutputDir;
+    @OutputFile
+    public abstract RegularFileProperty getLibrariesJson();
 
-    public ExtractServerTask() {
-        Path cacheDir = getCacheDir();
-        Path versionPath = cacheDir.resolve(getMinecraftVersion());
+    @OutputDirectory
+    public abstract DirectoryProperty getOutputDirectory();
 
-        this.jarPath = versionPath.resolve("server.jar");
-        this.outputDir = versionPath.resolve("server");
-        this.tempOutputDir = versionPath.resolve("temp-server");
-    }
+    @Internal
+    public abstract DirectoryProperty getLibraryStore();
+
+    @Inject
+    protected abstract WorkerExecutor getWorkerExecutor();
 
     @TaskAction
     public void extractJar() {
-        if (Files.notExists(jarPath))
+        if (Files.notExists(getServerJar().get().getAsFile().toPath()))
             throw new IllegalStateException("Server jar does not exist!");
 
-        if (Files.exists(outputDir)) {
-            // delete output dir
-            FileUtil.deleteDirectory(outputDir);
-        } else {
+        getWorkerExecutor().noIsolation().submit(ExtractAction.class, parameters -> {
+            parameters.getMinecraftVersion().set(getMinecraftVersion());
+            parameters.getServerJar().set(getServerJar());
+            parameters.getOutputDirectory().set(getOutputDirectory());
+            parameters.getLibraryStore().set(getLibraryStore());
+            parameters.getLibrariesJson().set(getLibrariesJson());
+            parameters.getCacheService().set(getCacheService());
+            configureCacheParameters(parameters);
+        });
+    }
+
+    public abstract static class ExtractAction implements WorkAction<ExtractAction.Parameters> {
+        /**
+         * Where the extracted directory lists its bundled libraries, relative to the library store. Keeping the list
+         * inside the artifact makes it part of whatever is reused or shared.
+         */
+        private static final String LIBRARIES_FILE = "META-INF/testgradle/server_libraries.json";
+
+        @Override
+        public void execute() {
+            Path jarPath = getParameters().getServerJar().get().getAsFile().toPath();
+            Path outputDir = getParameters().getOutputDirectory().get().getAsFile().toPath();
+            Path libraryStore = getParameters().getLibraryStore().get().getAsFile().toPath();
+            Path librariesJson = getParameters().getLibrariesJson().get().getAsFile().toPath();
+
+            String key = CacheLock.key("extract-server", HashingFunction.SHA1.hash(jarPath));
+            CacheLock.produce(outputDir, key, CacheWorkParameters.getSharedCacheTier(getParameters()),
+                    () -> extract(jarPath, outputDir, libraryStore));
+
+            // the libraries themselves are in the store, which another machine or a cache clean may have left without them
+            Map<String, Path> libraryJars = readLibraries(outputDir.resolve(LIBRARIES_FILE), libraryStore);
+            if (libraryJars.values().stream().anyMatch(Files::notExists)) {
+                try (ServerBundle bundle = ServerBundle.open(jarPath)) {
+                    if (bundle != null) {
+                        libraryJars = bundle.extractLibraries(libraryStore);
+                        System.out.println("Extracted " + libraryJars.size() + " bundled server libraries to " + libraryStore);
+                    }
+                }
+            }
+
+            writeLibrariesJson(libraryJars, librariesJson, null);
+            getParameters().getCacheService().get().recordAccess(libraryJars.values());
+        }
+
+        private static boolean hasLibraries(Path librariesJson) {
+            if (Files.notExists(librariesJson))
+                return false;
+
             try {
-                Files.createDirectories(outputDir);
-            } catch (IOException exception) {
-                throw new IllegalStateException("Failed to create output directory!", exception);
+                Map<String, Path> libraryJars = new HashMap<>();
+                Library.readLibraries(libraryJars, librariesJson);
+                return libraryJars.values().stream().allMatch(Files::exists);
+            } catch (IOException | RuntimeException exception) {
+                return false;
             }
         }
 
-        long start = System.nanoTime();
-        FileUtil.extractArchive(getProject(), jarPath, outputDir);
+        private void extract(Path jarPath, Path outputDir, Path libraryStore) {
+            Path stagingDir = FileUtil.createStagingDirectory(outputDir);
+            try (ServerBundle bundle = ServerBundle.open(jarPath)) {
+                Map<String, Path> libraryJars = Map.of();
+                if (bundle == null) {
+                    // pre-1.18 server jars contain the classes directly
+                    ArchiveExtractor.Result result = FileUtil.extractArchive(jarPath, stagingDir);
+                    System.out.println("Extracted server jar: " + result);
+                } else {
+                    ArchiveExtractor.Result result = bundle.extractServer(getParameters().getMinecraftVersion().get(), stagingDir);
+                    System.out.println("Extracted bundled server jar: " + result);
+
+                    libraryJars = bundle.extractLibraries(libraryStore);
+                    System.out.println("Extracted " + libraryJars.size() + " bundled server libraries to " + libraryStore);
+                }
+
+                writeLibrariesJson(libraryJars, stagingDir.resolve(LIBRARIES_FILE), libraryStore);
+                FileUtil.swapDirectory(stagingDir, outputDir);
+            } catch (RuntimeException exception) {
+                FileUtil.deleteDirectory(stagingDir);
+                throw exception;
+            }
+        }
 
-        if (Files.exists(outputDir.resolve("META-INF/versions/%s/server-%s.jar"))) {
-            // clear output dir
+        private static Map<String, Path> readLibraries(Path librariesFile, Path libraryStore) {
+            Map<String, Path> libraryJars = new LinkedHashMap<>();
             try {
-                Files.createDirectories(tempOutputDir);
-            } catch (IOException exception) {
-                throw new IllegalStateException("Failed to create output directory!", exception);
+                JsonObject librariesObject = TestGradlePlugin.GSON.fromJson(Files.readString(librariesFile), JsonObject.class);
+                librariesObject.entrySet().forEach(entry ->
+                        libraryJars.put(entry.getKey(), libraryStore.resolve(entry.getValue().getAsString())));
+            } catch (IOException | JsonParseException exception) {
+                throw new IllegalStateException("Failed to read '%s'!".formatted(librariesFile), exception);
             }
 
-            // move files to temp output dir
-            FileUtil.moveFiles(outputDir, tempOutputDir);
+            return libraryJars;
+        }
 
-            start = System.nanoTime();
-            FileUtil.extractArchive(getProject(), tempOutputDir.resolve("META-INF/versions/%s/server-%s.jar"), outputDir);
+        /**
+         * @param relativeTo the directory the paths are written relative to, or {@code null} to write them as they are
+         */
+        private static void writeLibrariesJson(Map<String, Path> libraryJars, Path librariesJsonPath, @Nullable Path relativeTo) {
+            JsonObject librariesObject = new JsonObject();
+            libraryJars.entrySet()
+                    .stream()
+                    .sorted(Map.Entry.comparingByKey())
+                    .forEachOrdered(entry -> librariesObject.addProperty(entry.getKey(), relativeTo == null
+                            ? entry.getValue().toString()
+                            : relativeTo.relativize(entry.getValue()).toString().replace('\\', '/')));
 
-            // delete temp output dir
-            FileUtil.deleteDirectory(tempOutputDir);
+            try {
+                Files.createDirectories(librariesJsonPath.getParent());
+                Path tempFile = librariesJsonPath.resolveSibling(librariesJsonPath.getFileName() + ".tmp");
+                Files.writeString(tempFile, librariesObject.toString(), StandardCharsets.UTF_8);
+                Files.move(tempFile, librariesJsonPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException exception) {
+                throw new IllegalStateException("Failed to write '%s'!".formatted(librariesJsonPath), exception);
+            }
         }
 
-        System.out.println("Extracted server jar(s) in " + (System.nanoTime() - start) / 1_000_000_000 + " seconds!");
-    }
+        public interface Parameters extends CacheWorkParameters {
+            Property<String> getMinecraftVersion();
+
+            RegularFileProperty getServerJar();
 
-    public Path getJarPath() {
-        return jarPath;
+            DirectoryProperty getOutputDirectory();
+
+            DirectoryProperty getLibraryStore();
+
+            RegularFileProperty getLibrariesJson();
+
+            Property<CacheService> getCacheService();
+        }
     }
 }
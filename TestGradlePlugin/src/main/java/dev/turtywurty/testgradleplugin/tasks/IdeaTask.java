@@ -2,10 +2,12 @@ package dev.turtywurty.testgradleplugin.tasks;
 
 import dev.turtywurty.testgradleplugin.extensions.TestGradleExtension;
 import org.gradle.api.Project;
-import org.gradle.api.tasks.CacheableTask;
-import org.gradle.api.tasks.OutputFile;
+import org.gradle.api.file.DirectoryProperty;
+import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.tasks.Internal;
 import org.gradle.api.tasks.TaskAction;
 import org.gradle.tooling.model.idea.IdeaProject;
+import org.gradle.work.DisableCachingByDefault;
 
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -14,22 +16,18 @@ import java.nio.file.Path;
 import java.util.jar.JarEntry;
 import java.util.jar.JarOutputStream;
 
-@CacheableTask
-public class IdeaTask extends DefaultTestGradleTask {
-    @OutputFile
-    private final Path outputJar;
-
+@DisableCachingByDefault(because = "It writes into the project's IDE files")
+public abstract class IdeaTask extends DefaultTestGradleTask {
     public IdeaTask() {
-        Path cacheDir = getCacheDir();
-        Path versionPath = cacheDir.resolve(getMinecraftVersion());
-
-        this.outputJar = versionPath.resolve("recomp_" + switch (getSide()) {
-            case CLIENT -> "client";
-            case SERVER -> "server";
-            case BOTH -> "joined";
-        } + ".jar");
+        getRecompiledJar().convention(getVersionDirectory().zip(getSide(), (dir, side) -> dir.file("recomp_" + side.getFileName() + ".jar")));
     }
 
+    @Internal
+    public abstract RegularFileProperty getRecompiledJar();
+
+    @Internal
+    public abstract DirectoryProperty getProjectDirectory();
+
     private static void addDependency(Project project, String name, String group, String version) {
         // get idea module file
         // add dependency to it
@@ -39,13 +37,15 @@ public class IdeaTask extends DefaultTestGradleTask {
 
     @TaskAction
     public void idea() {
-        TestGradleExtension.Side side = getSide();
+        Path outputJar = getRecompiledJar().get().getAsFile().toPath();
+
+        TestGradleExtension.Side side = getSide().get();
         System.out.println("Generating idea files for side " + side.name().toLowerCase());
 
         if (Files.notExists(outputJar))
             throw new IllegalStateException("The " + side.name().toLowerCase() + " has not been recompiled yet!");
 
-        Path projectDir = getProject().getProjectDir().toPath();
+        Path projectDir = getProjectDirectory().get().getAsFile().toPath();
         Path ideaDir = projectDir.resolve(".idea");
         if (Files.notExists(ideaDir)) {
             try {
@@ -73,8 +73,4 @@ public class IdeaTask extends DefaultTestGradleTask {
             }
         }
     }
-
-    public Path getOutputJar() {
-        return outputJar;
-    }
 }
@@ -1,7 +1,9 @@
 package dev.turtywurty.testgradleplugin.tasks;
 
 import dev.turtywurty.testgradleplugin.extensions.TestGradleExtension;
+import dev.turtywurty.testgradleplugin.util.CacheLock;
 import dev.turtywurty.testgradleplugin.util.FileUtil;
+import org.gradle.api.file.DirectoryProperty;
 import org.gradle.api.tasks.*;
 
 import java.io.IOException;
@@ -10,98 +12,77 @@ import java.nio.file.Path;
 import java.util.stream.Stream;
 
 @CacheableTask
-public class MergeTask extends DefaultTestGradleTask {
-    @InputDirectory
-    @Classpath
-    private final Path clientDir, serverDir;
+public abstract class MergeTask extends DefaultTestGradleTask {
+    public MergeTask() {
+        getJoinedDirectory().convention(getVersionDirectory().map(dir -> dir.dir("remapped_joined")));
+    }
 
-    @OutputDirectory
-    private final Path joinedDir;
+    @InputDirectory
+    @PathSensitive(PathSensitivity.RELATIVE)
+    public abstract DirectoryProperty getClientDirectory();
 
-    public MergeTask() {
-        Path cacheDir = getCacheDir();
-        Path versionPath = cacheDir.resolve(getMinecraftVersion());
+    @InputDirectory
+    @PathSensitive(PathSensitivity.RELATIVE)
+    public abstract DirectoryProperty getServerDirectory();
 
-        this.clientDir = versionPath.resolve("client");
-        this.serverDir = versionPath.resolve("server");
-        this.joinedDir = versionPath.resolve("joined");
-    }
+    @OutputDirectory
+    public abstract DirectoryProperty getJoinedDirectory();
 
     @TaskAction
     public void mergeJar() {
+        Path clientDir = getClientDirectory().get().getAsFile().toPath();
+        Path serverDir = getServerDirectory().get().getAsFile().toPath();
+        Path joinedDir = getJoinedDirectory().get().getAsFile().toPath();
+
         System.out.println("Merging client and server!");
 
-        TestGradleExtension.Side side = getSide();
+        TestGradleExtension.Side side = getSide().get();
         if (side != TestGradleExtension.Side.BOTH)
             return;
 
         if (Files.notExists(clientDir))
-            throw new IllegalStateException("Client directory is missing, please run the extractClient task!");
+            throw new IllegalStateException("Client directory is missing, please run the remapClient task!");
         if (Files.notExists(serverDir))
-            throw new IllegalStateException("Server directory is missing, please run the extractServer task!");
-
-        try {
-            if (Files.exists(joinedDir)) {
-                FileUtil.deleteDirectory(joinedDir);
+            throw new IllegalStateException("Server directory is missing, please run the remapServer task!");
+
+        String key = CacheLock.key("merge", CacheLock.readKey(clientDir), CacheLock.readKey(serverDir));
+        CacheLock.produce(joinedDir, key, getSharedCacheTier(), () -> {
+            Path stagingDir = FileUtil.createStagingDirectory(joinedDir);
+            try {
+                copyMissing(clientDir, stagingDir, "client");
+                copyMissing(serverDir, stagingDir, "server");
+                FileUtil.swapDirectory(stagingDir, joinedDir);
+            } catch (RuntimeException exception) {
+                FileUtil.deleteDirectory(stagingDir);
+                throw exception;
             }
+        });
 
-            Files.createDirectories(joinedDir);
-        } catch (IOException exception) {
-            throw new IllegalStateException("Failed to create joined directory!", exception);
-        }
-
-        try (Stream<Path> clientFiles = Files.walk(clientDir)) {
-            clientFiles.forEach(clientFile -> {
-                if (Files.isDirectory(clientFile))
-                    return;
-
-                Path joinedFile = joinedDir.resolve(clientDir.relativize(clientFile));
-                if (Files.exists(joinedFile))
-                    return;
-
-                try {
-                    Files.createDirectories(joinedFile.getParent());
-                    Files.copy(clientFile, joinedFile);
-                } catch (IOException exception) {
-                    throw new IllegalStateException("Failed to copy client file!", exception);
-                }
-            });
-        } catch (IOException exception) {
-            throw new IllegalStateException("Failed to walk client directory!", exception);
-        }
+        System.out.println("Finished merging jars!");
+    }
 
-        try (Stream<Path> serverFiles = Files.walk(serverDir)) {
-            serverFiles.forEach(serverFile -> {
-                if (Files.isDirectory(serverFile))
+    /**
+     * Copies every file of the source directory that isn't in the joined directory yet.
+     */
+    private static void copyMissing(Path sourceDir, Path joinedDir, String side) {
+        try (Stream<Path> files = Files.walk(sourceDir)) {
+            files.forEach(file -> {
+                if (Files.isDirectory(file))
                     return;
 
-                Path joinedFile = joinedDir.resolve(serverDir.relativize(serverFile));
+                Path joinedFile = joinedDir.resolve(sourceDir.relativize(file));
                 if (Files.exists(joinedFile))
                     return;
 
                 try {
                     Files.createDirectories(joinedFile.getParent());
-                    Files.copy(serverFile, joinedFile);
+                    Files.copy(file, joinedFile);
                 } catch (IOException exception) {
-                    throw new IllegalStateException("Failed to copy server file!", exception);
+                    throw new IllegalStateException("Failed to copy " + side + " file!", exception);
                 }
             });
         } catch (IOException exception) {
-            throw new IllegalStateException("Failed to walk server directory!", exception);
+            throw new IllegalStateException("Failed to walk " + side + " directory!", exception);
         }
-
-        System.out.println("Finished merging jars!");
-    }
-
-    public Path getClientDir() {
-        return clientDir;
-    }
-
-    public Path getServerDir() {
-        return serverDir;
-    }
-
-    public Path getJoinedDir() {
-        return joinedDir;
     }
 }
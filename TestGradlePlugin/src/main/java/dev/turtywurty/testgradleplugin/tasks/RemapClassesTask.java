@@ -1,190 +1,138 @@
 package dev.turtywurty.testgradleplugin.tasks;
 
-import dev.turtywurty.testgradleplugin.extensions.TestGradleExtension;
-import dev.turtywurty.testgradleplugin.mappings.OfficialMappingsFile;
+import dev.turtywurty.testgradleplugin.mappings.MappingSet;
+import dev.turtywurty.testgradleplugin.remap.AccessTransformer;
+import dev.turtywurty.testgradleplugin.remap.DirectoryRemapper;
+import dev.turtywurty.testgradleplugin.services.MetadataService;
+import dev.turtywurty.testgradleplugin.util.CacheLock;
 import dev.turtywurty.testgradleplugin.util.FileUtil;
-import org.gradle.api.tasks.InputDirectory;
-import org.gradle.api.tasks.InputFiles;
-import org.gradle.api.tasks.TaskAction;
-import org.objectweb.asm.ClassReader;
-import org.objectweb.asm.ClassWriter;
-import org.objectweb.asm.commons.ClassRemapper;
-import org.objectweb.asm.commons.Remapper;
-
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.IOException;
+import org.gradle.api.file.ConfigurableFileCollection;
+import org.gradle.api.file.DirectoryProperty;
+import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.provider.Property;
+import org.gradle.api.tasks.*;
+import org.gradle.workers.WorkAction;
+import org.gradle.workers.WorkerExecutor;
+
+import javax.inject.Inject;
+import java.io.File;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ForkJoinPool;
-import java.util.stream.Stream;
-
-public class RemapClassesTask extends DefaultTestGradleTask {
+import java.util.List;
+
+/**
+ * Remaps one side. The plugin registers a task for the client and one for the server, so that both branches of the
+ * pipeline can run at the same time.
+ */
+@CacheableTask
+public abstract class RemapClassesTask extends DefaultTestGradleTask {
+    @InputFile
+    @PathSensitive(PathSensitivity.NONE)
+    public abstract RegularFileProperty getMappings();
+
+    /**
+     * Tiny mappings applied on top of the official ones, in order, such as community names or overrides.
+     */
     @InputFiles
-    private final Path clientMappingsPath;
-    @InputDirectory
-    private final Path clientDir;
-
-    private final Path remappedClientDir;
-
-    public RemapClassesTask() {
-        Path cacheDir = getCacheDir();
-        Path versionPath = cacheDir.resolve(getMinecraftVersion());
-
-        this.clientMappingsPath = versionPath.resolve("client_mappings.txt");
-        this.clientDir = versionPath.resolve("client");
-        this.remappedClientDir = versionPath.resolve("remapped_client");
+    @PathSensitive(PathSensitivity.NONE)
+    public abstract ConfigurableFileCollection getMappingLayers();
+
+    /**
+     * The order the layers are applied in, which the file collection itself isn't compared by.
+     */
+    @Input
+    public List<String> getMappingLayerOrder() {
+        return getMappingLayers().getFiles().stream().map(File::getName).toList();
     }
 
-    private static void remap(Path dir, Path remappedDir, OfficialMappingsFile mappings) {
-        try (var forkJoinPool = new ForkJoinPool(); Stream<Path> paths = Files.list(dir)) {
-            Path[] pathsArray = paths.toArray(Path[]::new);
-            Map<String, String> classMappings = new HashMap<>();
-
-            long loadStart = System.currentTimeMillis();
-            int loaded = 0;
-            for (Path file : pathsArray) {
-                if (file.getFileName().toString().endsWith(".class")) {
-                    String className = file.getFileName().toString().replace(".class", "");
-                    String mappedName = mappings.getClassMappings().get(className);
-                    if (mappedName == null) {
-                        System.out.printf("Failed to find mapping for %s%n", className);
-                        continue;
-                    }
-
-                    classMappings.put(className, mappedName);
-                    loaded++;
-                } else {
-                    Path relativized = remappedDir.resolve(dir.relativize(file));
-                    if(Files.isDirectory(file))
-                        Files.createDirectories(relativized);
-                    else {
-                        Files.createDirectories(remappedDir.resolve(dir.relativize(file.getParent())));
-                        Files.copy(file, relativized);
-                    }
-                }
-            }
-
-            System.out.printf("Loaded %d classes in %ds!%n", loaded, (System.currentTimeMillis() - loadStart) / 1000);
-
-            var remapper = new ClassReferenceRemapper(classMappings);
-
-            long remapStart = System.currentTimeMillis();
-            int remapped = 0;
-            for (Path path : pathsArray) {
-                if (!path.getFileName().toString().endsWith(".class"))
-                    continue;
-
-                // changing E:\gradle\cache\testGradle\client\a.class to E:\gradle\cache\testGradle\remapped_client\com\mojang\math\Axis.class
-                Path newPath = remappedDir.resolve(dir.relativize(path));
-                forkJoinPool.submit(() -> remapClass(path, newPath, classMappings, remapper)).get();
-                remapped++;
-            }
-
-            System.out.printf("Remapped %d classes in %ds!%n", remapped, (System.currentTimeMillis() - remapStart) / 1000);
-        } catch (IOException exception) {
-            throw new IllegalStateException("Failed to list files!", exception);
-        } catch (ExecutionException exception) {
-            throw new IllegalStateException("Failed to remap class!", exception.getCause());
-        } catch (InterruptedException exception) {
-            throw new IllegalStateException("Got interrupted!", exception);
-        }
-    }
-
-    private static void remapClass(Path path, Path newPath, Map<String, String> classMappings, Remapper remapper) {
-        String className = path.getFileName().toString().replace(".class", "");
-        String mappedName = classMappings.get(className);
-        Path mappedPackagePath = newPath.getParent()
-                .resolve(mappedName.replace(".", "/") + ".class");
-
-        classMappings.put(className, mappedName);
-
-        // System.out.printf("Remapping %s to %s%n", className, mappedName);
-        try {
-            Files.createDirectories(mappedPackagePath.getParent());
-            Files.move(path, mappedPackagePath);
-        } catch (IOException exception) {
-            throw new IllegalStateException("Failed to move file!", exception);
-        }
-
-        try (var fileInputStream = new BufferedInputStream(Files.newInputStream(mappedPackagePath))) {
-            var newBytes = writeReferences(fileInputStream, remapper);
-
-            try (var fileOutputStream = new BufferedOutputStream(Files.newOutputStream(mappedPackagePath))) {
-                fileOutputStream.write(newBytes);
-            }
-        } catch (IOException exception) {
-            throw new IllegalStateException("Failed to read file!", exception);
-        }
-    }
+    /**
+     * Access transformers applied in the same pass, in any order.
+     */
+    @InputFiles
+    @PathSensitive(PathSensitivity.NONE)
+    public abstract ConfigurableFileCollection getAccessTransformers();
 
-    private static byte[] writeReferences(BufferedInputStream fileInputStream, Remapper remapper) throws IOException {
-        var classReader = new ClassReader(fileInputStream);
-        var classWriter = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+    @InputDirectory
+    @PathSensitive(PathSensitivity.RELATIVE)
+    public abstract DirectoryProperty getInputDirectory();
 
-        var classRemapper = new ClassRemapper(classWriter, remapper);
-        classReader.accept(classRemapper, 0);
+    @OutputDirectory
+    public abstract DirectoryProperty getOutputDirectory();
 
-        return classWriter.toByteArray();
-    }
+    @Inject
+    protected abstract WorkerExecutor getWorkerExecutor();
 
     @TaskAction
     public void remapClasses() {
-        System.out.println("Remapping classes!");
-
-        TestGradleExtension.Side side = getSide();
-        if (side == TestGradleExtension.Side.CLIENT || side == TestGradleExtension.Side.BOTH) {
-            if (Files.notExists(clientMappingsPath))
-                throw new RuntimeException("client_mappings.txt is missing, please run the downloadClientMappings task!");
+        Path mappingsPath = getMappings().get().getAsFile().toPath();
+        Path inputDir = getInputDirectory().get().getAsFile().toPath();
+
+        System.out.println("Remapping " + inputDir.getFileName() + "!");
+
+        if (Files.notExists(mappingsPath))
+            throw new IllegalStateException("Mappings '%s' do not exist!".formatted(mappingsPath));
+
+        if (Files.notExists(inputDir))
+            throw new IllegalStateException("Directory '%s' does not exist!".formatted(inputDir));
+
+        getWorkerExecutor().noIsolation().submit(RemapAction.class, parameters -> {
+            parameters.getMetadataService().set(getMetadataService());
+            parameters.getMappings().set(getMappings());
+            parameters.getMappingLayers().from(getMappingLayers());
+            parameters.getAccessTransformers().from(getAccessTransformers());
+            parameters.getInputDirectory().set(getInputDirectory());
+            parameters.getOutputDirectory().set(getOutputDirectory());
+            configureCacheParameters(parameters);
+        });
+    }
 
-            if (Files.notExists(clientDir))
-                throw new RuntimeException("client is missing, please run the extractClient task!");
+    public abstract static class RemapAction implements WorkAction<RemapAction.Parameters> {
+        @Override
+        public void execute() {
+            Path mappingsPath = getParameters().getMappings().get().getAsFile().toPath();
+            Path inputDir = getParameters().getInputDirectory().get().getAsFile().toPath();
+            Path outputDir = getParameters().getOutputDirectory().get().getAsFile().toPath();
+            List<Path> layers = getParameters().getMappingLayers().getFiles().stream().map(File::toPath).toList();
+            List<Path> accessTransformers = getParameters().getAccessTransformers().getFiles().stream().map(File::toPath).toList();
+
+            String mappingsHash = MappingSet.hash(mappingsPath, layers);
+            String accessHash = AccessTransformer.hash(accessTransformers);
+            String key = CacheLock.key("remap", mappingsHash, accessHash, CacheLock.readKey(inputDir));
+            CacheLock.produce(outputDir, key, CacheWorkParameters.getSharedCacheTier(getParameters()), () -> {
+                MappingSet mappings = getParameters().getMetadataService().get().getMappingSet(mappingsHash, mappingsPath, layers);
+                if (!layers.isEmpty()) {
+                    System.out.println("Remapping with " + mappings);
+                }
 
-            if (Files.exists(remappedClientDir))
-                FileUtil.deleteDirectory(remappedClientDir);
+                AccessTransformer accessTransformer = getParameters().getMetadataService().get().getAccessTransformer(accessHash, accessTransformers);
+                if (!accessTransformer.isEmpty()) {
+                    System.out.println("Transforming with " + accessTransformer);
+                }
 
-            var clientMappings = new OfficialMappingsFile(clientMappingsPath);
-            remap(clientDir, remappedClientDir, clientMappings);
+                Path stagingDir = FileUtil.createStagingDirectory(outputDir);
+                try {
+                    DirectoryRemapper.Result result = DirectoryRemapper.remap(inputDir, stagingDir, mappings.getClassMappings(), accessTransformer);
+                    FileUtil.swapDirectory(stagingDir, outputDir);
+                    System.out.println("Remapped " + inputDir.getFileName() + ": " + result);
+                } catch (RuntimeException exception) {
+                    FileUtil.deleteDirectory(stagingDir);
+                    throw exception;
+                }
+            });
         }
 
-        // TODO: Figure out how to have optional directories and then I can uncomment this
-//        if (side == TestGradleExtension.Side.SERVER || side == TestGradleExtension.Side.BOTH) {
-//            if (Files.notExists(serverMappingsPath))
-//                throw new RuntimeException("server_mappings.txt is missing, please run the downloadServerMappings task!");
-//
-//            if (Files.notExists(serverDir))
-//                throw new RuntimeException("server is missing, please run the extractServer task!");
-//
-//            if (Files.exists(remappedServerDir))
-//                FileUtil.deleteDirectory(remappedServerDir);
-//
-//            var serverMappings = new OfficialMappingsFile(serverMappingsPath);
-//            remap(serverDir, remappedServerDir, serverMappings);
-//        }
-    }
+        public interface Parameters extends CacheWorkParameters {
+            Property<MetadataService> getMetadataService();
 
-    public Path getClientMappingsPath() {
-        return clientMappingsPath;
-    }
+            RegularFileProperty getMappings();
 
-    public Path getClientDir() {
-        return clientDir;
-    }
+            ConfigurableFileCollection getMappingLayers();
 
-    private static class ClassReferenceRemapper extends Remapper {
-        private final Map<String, String> classMappings;
+            ConfigurableFileCollection getAccessTransformers();
 
-        public ClassReferenceRemapper(Map<String, String> classMappings) {
-            this.classMappings = classMappings;
-        }
+            DirectoryProperty getInputDirectory();
 
-        @Override
-        public String map(String internalName) {
-            String updatedName = classMappings.getOrDefault(internalName, internalName);
-            return updatedName.equals(internalName) ? super.map(internalName) : updatedName.replace(".", "/");
+            DirectoryProperty getOutputDirectory();
         }
     }
 }
@@ -0,0 +1,105 @@
+package dev.turtywurty.testgradleplugin.tasks;
+
+import dev.turtywurty.testgradleplugin.mappings.MappingSet;
+import dev.turtywurty.testgradleplugin.remap.JarRemapper;
+import dev.turtywurty.testgradleplugin.services.MetadataService;
+import org.gradle.api.file.ConfigurableFileCollection;
+import org.gradle.api.file.DirectoryProperty;
+import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.provider.Property;
+import org.gradle.api.tasks.*;
+import org.gradle.workers.WorkAction;
+import org.gradle.workers.WorkParameters;
+import org.gradle.workers.WorkerExecutor;
+
+import javax.inject.Inject;
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Remaps the mod's jar from the names it was compiled against back to the obfuscated names, so that it runs on the
+ * real game. It uses the same mappings and layers as the remap tasks, inverted.
+ * <p>
+ * The classes remapped last time are kept in the task's temporary directory, so after a change only the classes
+ * that changed are remapped again.
+ */
+@CacheableTask
+public abstract class ReobfJarTask extends DefaultTestGradleTask {
+    @InputFile
+    @PathSensitive(PathSensitivity.NONE)
+    public abstract RegularFileProperty getMappings();
+
+    @InputFiles
+    @PathSensitive(PathSensitivity.NONE)
+    public abstract ConfigurableFileCollection getMappingLayers();
+
+    @Input
+    public List<String> getMappingLayerOrder() {
+        return getMappingLayers().getFiles().stream().map(File::getName).toList();
+    }
+
+    @InputFile
+    @PathSensitive(PathSensitivity.NONE)
+    public abstract RegularFileProperty getInputJar();
+
+    @OutputFile
+    public abstract RegularFileProperty getOutputJar();
+
+    @Inject
+    protected abstract WorkerExecutor getWorkerExecutor();
+
+    @TaskAction
+    public void reobfJar() {
+        Path mappingsPath = getMappings().get().getAsFile().toPath();
+        Path inputJar = getInputJar().get().getAsFile().toPath();
+
+        System.out.println("Reobfuscating " + inputJar.getFileName() + "!");
+
+        if (Files.notExists(mappingsPath))
+            throw new IllegalStateException("Mappings '%s' do not exist!".formatted(mappingsPath));
+
+        if (Files.notExists(inputJar))
+            throw new IllegalStateException("Jar '%s' does not exist!".formatted(inputJar));
+
+        getWorkerExecutor().noIsolation().submit(ReobfAction.class, parameters -> {
+            parameters.getMetadataService().set(getMetadataService());
+            parameters.getMappings().set(getMappings());
+            parameters.getMappingLayers().from(getMappingLayers());
+            parameters.getInputJar().set(getInputJar());
+            parameters.getOutputJar().set(getOutputJar());
+            parameters.getWorkDirectory().set(getTemporaryDir());
+        });
+    }
+
+    public abstract static class ReobfAction implements WorkAction<ReobfAction.Parameters> {
+        @Override
+        public void execute() {
+            Path mappingsPath = getParameters().getMappings().get().getAsFile().toPath();
+            Path inputJar = getParameters().getInputJar().get().getAsFile().toPath();
+            Path outputJar = getParameters().getOutputJar().get().getAsFile().toPath();
+            Path workDir = getParameters().getWorkDirectory().get().getAsFile().toPath();
+            List<Path> layers = getParameters().getMappingLayers().getFiles().stream().map(File::toPath).toList();
+
+            String mappingsHash = MappingSet.hash(mappingsPath, layers);
+            MappingSet mappings = getParameters().getMetadataService().get().getMappingSet(mappingsHash, mappingsPath, layers);
+            JarRemapper.Result result = JarRemapper.remap(inputJar, outputJar, mappings.getInverseClassMappings(), mappingsHash, workDir);
+            System.out.println("Reobfuscated " + inputJar.getFileName() + " into " + outputJar.getFileName() + ": " + result);
+        }
+
+        public interface Parameters extends WorkParameters {
+            Property<MetadataService> getMetadataService();
+
+            RegularFileProperty getMappings();
+
+            ConfigurableFileCollection getMappingLayers();
+
+            RegularFileProperty getInputJar();
+
+            RegularFileProperty getOutputJar();
+
+            DirectoryProperty getWorkDirectory();
+        }
+    }
+}
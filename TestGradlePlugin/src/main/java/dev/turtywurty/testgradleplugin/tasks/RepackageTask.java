@@ -1,88 +1,90 @@
 package dev.turtywurty.testgradleplugin.tasks;
 
 import dev.turtywurty.testgradleplugin.extensions.TestGradleExtension;
+import dev.turtywurty.testgradleplugin.util.CacheLock;
+import org.gradle.api.file.DirectoryProperty;
+import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.provider.Property;
 import org.gradle.api.tasks.*;
 
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.jar.JarEntry;
 import java.util.jar.JarOutputStream;
 import java.util.stream.Stream;
 
 @CacheableTask
-public class RepackageTask extends DefaultTestGradleTask {
-    @InputDirectory
-    @Classpath
-    private final Path inputDir;
-
-    @OutputFile
-    private final Path outputJar;
+public abstract class RepackageTask extends DefaultTestGradleTask {
+    // 1980-02-01, the earliest time the zip format can represent in every timezone
+    private static final long ENTRY_TIME = 315532800000L + 31L * 24 * 60 * 60 * 1000;
 
     public RepackageTask() {
-        Path cacheDir = getCacheDir();
-        Path versionPath = cacheDir.resolve(getMinecraftVersion());
+        getOutputJar().convention(getVersionDirectory().zip(getSide(), (dir, side) -> dir.file("repackaged_" + side.getFileName() + ".jar")));
+    }
 
-        TestGradleExtension.Side side = getSide();
-        this.inputDir = versionPath.resolve("remapped_" + switch (side) {
-            case CLIENT -> "client";
-            case SERVER -> "server";
-            case BOTH -> "joined";
-        });
+    @Input
+    @Override
+    public abstract Property<TestGradleExtension.Side> getSide();
 
-        this.outputJar = versionPath.resolve("repackaged_" + switch (side) {
-            case CLIENT -> "client";
-            case SERVER -> "server";
-            case BOTH -> "joined";
-        } + ".jar");
-    }
+    @InputDirectory
+    @PathSensitive(PathSensitivity.RELATIVE)
+    public abstract DirectoryProperty getInputDirectory();
+
+    @OutputFile
+    public abstract RegularFileProperty getOutputJar();
 
     @TaskAction
     public void repackage() {
-        TestGradleExtension.Side side = getSide();
+        Path inputDir = getInputDirectory().get().getAsFile().toPath();
+        Path outputJar = getOutputJar().get().getAsFile().toPath();
+
+        TestGradleExtension.Side side = getSide().get();
         if (Files.notExists(inputDir))
             throw new IllegalStateException("The " + side.name().toLowerCase() + " has not been extracted yet!");
 
-        System.out.println("Repackaging " + side.name().toLowerCase() + " for version " + getMinecraftVersion() + "...");
+        System.out.println("Repackaging " + side.name().toLowerCase() + " for version " + getMinecraftVersion().get() + "...");
 
+        String key = CacheLock.key("repackage", CacheLock.readKey(inputDir));
+        boolean repackaged = CacheLock.produce(outputJar, key, getSharedCacheTier(), () -> writeJar(inputDir, outputJar));
+        if (!repackaged)
+            return;
+
+        System.out.println("Successfully repackaged " + side.name().toLowerCase() + " for version " + getMinecraftVersion().get() + "!");
+    }
+
+    private static void writeJar(Path inputDir, Path outputJar) {
+        Path tempJar = outputJar.resolveSibling(outputJar.getFileName() + ".tmp");
         try {
-            Files.deleteIfExists(outputJar);
             Files.createDirectories(outputJar.getParent());
-            Files.createFile(outputJar);
 
-            try (var fos = new FileOutputStream(outputJar.toFile());
+            try (var fos = new FileOutputStream(tempJar.toFile());
                  var jos = new JarOutputStream(fos);
                  Stream<Path> walk = Files.walk(inputDir)) {
-                walk.filter(Files::isRegularFile).forEach(path -> {
+                // sorted entries with a fixed timestamp, so the same classes always produce the same jar
+                walk.filter(Files::isRegularFile).sorted().forEach(path -> {
                     try {
-                        var entry = new JarEntry(inputDir.relativize(path).toString());
+                        var entry = new JarEntry(inputDir.relativize(path).toString().replace('\\', '/'));
+                        entry.setTime(ENTRY_TIME);
                         jos.putNextEntry(entry);
                         jos.write(Files.readAllBytes(path));
                         jos.closeEntry();
-
-                        //System.out.println("Added " + entry.getName() + " to " + outputJar.getFileName());
                     } catch (IOException exception) {
                         throw new IllegalStateException("Failed to add " + path.getFileName() + " to " + outputJar.getFileName(), exception);
                     }
                 });
             }
+
+            Files.move(tempJar, outputJar, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
         } catch (IOException exception) {
-            throw new IllegalStateException("Failed to delete old jar!", exception);
+            throw new IllegalStateException("Failed to write " + outputJar.getFileName() + "!", exception);
+        } finally {
+            try {
+                Files.deleteIfExists(tempJar);
+            } catch (IOException ignored) {
+            }
         }
-
-        System.out.println("Successfully repackaged " + side.name().toLowerCase() + " for version " + getMinecraftVersion() + "!");
-
-        // add the recompiled jar to the classpath
-        getProject().getRepositories().flatDir(repo -> repo.dir(outputJar.getParent()));
-        getProject().getDependencies().add("implementation", getProject().files(outputJar));
-    }
-
-    public Path getInputDir() {
-        return inputDir;
-    }
-
-    public Path getOutputJar() {
-        return outputJar;
     }
 }
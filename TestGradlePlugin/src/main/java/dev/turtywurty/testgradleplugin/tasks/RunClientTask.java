@@ -1,55 +1,93 @@
 package dev.turtywurty.testgradleplugin.tasks;
 
+import dev.turtywurty.testgradleplugin.mappings.MappingSet;
 import dev.turtywurty.testgradleplugin.piston.version.Library;
 import dev.turtywurty.testgradleplugin.piston.version.VersionPackage;
+import dev.turtywurty.testgradleplugin.remap.RuntimeRemapAgent;
+import org.gradle.api.file.ConfigurableFileCollection;
+import org.gradle.api.file.DirectoryProperty;
+import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.provider.Property;
 import org.gradle.api.tasks.*;
+import org.gradle.process.ExecOperations;
+import org.gradle.work.DisableCachingByDefault;
 
+import javax.inject.Inject;
+import java.io.BufferedWriter;
+import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
 
-public class RunClientTask extends DefaultTestGradleTask {
+@DisableCachingByDefault(because = "It runs the game")
+public abstract class RunClientTask extends DefaultTestGradleTask {
     @InputFile
-    @Classpath
-    private final Path versionJsonPath, librariesJsonPath, clientJarPath;
+    @PathSensitive(PathSensitivity.NONE)
+    public abstract RegularFileProperty getVersionJson();
 
-    @InputDirectory
-    @Classpath
-    private final Path assetsDir;
+    @InputFile
+    @PathSensitive(PathSensitivity.NONE)
+    public abstract RegularFileProperty getLibrariesJson();
 
-    @OutputDirectory
-    private final Path runDir;
+    @InputFile
+    @PathSensitive(PathSensitivity.NONE)
+    public abstract RegularFileProperty getClientJar();
 
-    public RunClientTask() {
-        Path cacheDir = getCacheDir();
-        Path versionPath = cacheDir.resolve(getMinecraftVersion());
+    @Internal
+    public abstract DirectoryProperty getAssetsDirectory();
 
-        this.versionJsonPath = versionPath.resolve("version.json");
-        this.librariesJsonPath = versionPath.resolve("libraries.json");
-        this.clientJarPath = versionPath.resolve("client.jar");
-        this.assetsDir = versionPath.resolve("assets");
+    /**
+     * Whether the mod is run on the obfuscated client, with its classes remapped by an agent as they load, instead of
+     * only running the game.
+     *
+     * @see RuntimeRemapAgent
+     */
+    @Input
+    public abstract Property<Boolean> getRemapAtRuntime();
 
-        Path projectDir = getProject().getProjectDir().toPath();
-        this.runDir = projectDir.resolve("run");
-    }
+    @InputFile
+    @Optional
+    @PathSensitive(PathSensitivity.NONE)
+    public abstract RegularFileProperty getMappings();
+
+    @InputFiles
+    @PathSensitive(PathSensitivity.NONE)
+    public abstract ConfigurableFileCollection getMappingLayers();
+
+    /**
+     * The classes of the mod and its dependencies, in the names of the repackaged jar.
+     */
+    @Classpath
+    public abstract ConfigurableFileCollection getModClasspath();
+
+    @Inject
+    protected abstract ExecOperations getExecOperations();
+
+    @Internal
+    public abstract DirectoryProperty getRunDirectory();
 
     @TaskAction
     public void downloadClient() {
+        Path versionJsonPath = getVersionJson().get().getAsFile().toPath();
+        Path librariesJsonPath = getLibrariesJson().get().getAsFile().toPath();
+        Path clientJarPath = getClientJar().get().getAsFile().toPath();
+        Path assetsDir = getAssetsDirectory().get().getAsFile().toPath();
+        Path runDir = getRunDir();
+
         if (Files.notExists(versionJsonPath))
             throw new RuntimeException("Version json does not exist!");
 
-        VersionPackage versionPackage = VersionPackage.fromPath(versionJsonPath);
+        VersionPackage versionPackage = getMetadataService().get().getVersionPackage(versionJsonPath);
 
         if (Files.notExists(clientJarPath))
             throw new RuntimeException("Client jar does not exist!");
 
-        // add client jar to classpath
-        getProject().getDependencies().add("implementation", getProject().files(clientJarPath));
-
         if (Files.notExists(librariesJsonPath))
             throw new RuntimeException("Libraries json does not exist!");
 
@@ -60,11 +98,6 @@ public class RunClientTask extends DefaultTestGradleTask {
             throw new RuntimeException("Failed to read libraries json!", exception);
         }
 
-        // add libraries to classpath
-        for (Path path : libraryJars.values()) {
-            getProject().getDependencies().add("implementation", getProject().files(path));
-        }
-
         if (Files.notExists(runDir)) {
             try {
                 Files.createDirectories(runDir);
@@ -76,7 +109,10 @@ public class RunClientTask extends DefaultTestGradleTask {
         if (Files.notExists(assetsDir))
             System.err.println("Assets directory does not exist!");
 
-        getProject().javaexec(javaExecSpec -> {
+        List<String> jvmArgs = getRemapAtRuntime().get() ? prepareAgent() : List.of();
+
+        String minecraftVersion = getMinecraftVersion().get();
+        getExecOperations().javaexec(javaExecSpec -> {
             javaExecSpec.getMainClass().set(versionPackage.mainClass());
             javaExecSpec.setWorkingDir(runDir.toFile());
 
@@ -84,35 +120,68 @@ public class RunClientTask extends DefaultTestGradleTask {
                 System.out.println("Library: " + path);
             }
 
-            List<Path> classpathJars = new ArrayList<>(libraryJars.values());
-            classpathJars.add(clientJarPath);
-            javaExecSpec.setClasspath(getProject().files(classpathJars));
+            List<File> classpathJars = new ArrayList<>();
+            libraryJars.values().forEach(path -> classpathJars.add(path.toFile()));
+            classpathJars.add(clientJarPath.toFile());
+            if (getRemapAtRuntime().get()) {
+                classpathJars.addAll(getModClasspath().getFiles());
+            }
+
+            javaExecSpec.classpath(classpathJars);
+            javaExecSpec.jvmArgs(jvmArgs);
             javaExecSpec.setArgs(List.of(
                     "--accessToken", "****",
-                    "--version", getMinecraftVersion(),
+                    "--version", minecraftVersion,
                     "--assetIndex", versionPackage.assetIndex().id(),
                     "--assetsDir", assetsDir.toAbsolutePath().toString(),
                     "--userProperties", "{}"));
         });
     }
 
-    public Path getVersionJsonPath() {
-        return versionJsonPath;
-    }
-
-    public Path getLibrariesJsonPath() {
-        return librariesJsonPath;
-    }
+    /**
+     * Writes what the agent needs: the table it remaps with, which is kept in the cache directory for each set of
+     * mappings along with the classes it remapped, its configuration and the jar it's started from.
+     *
+     * @return the arguments that start the agent
+     */
+    private List<String> prepareAgent() {
+        if (!getMappings().isPresent())
+            throw new IllegalStateException("Remapping at runtime needs the mappings!");
+
+        Path mappingsPath = getMappings().get().getAsFile().toPath();
+        List<Path> layers = getMappingLayers().getFiles().stream().map(File::toPath).toList();
+        String mappingsHash = MappingSet.hash(mappingsPath, layers);
+        Path cacheDir = getCacheDir().resolve("runtime_remap").resolve(mappingsHash);
+        Path tableFile = cacheDir.resolve("classes.txt");
+        if (Files.notExists(tableFile)) {
+            MappingSet mappings = getMetadataService().get().getMappingSet(mappingsHash, mappingsPath, layers);
+            RuntimeRemapAgent.writeTable(tableFile, mappings.getInverseClassMappings());
+        }
 
-    public Path getClientJarPath() {
-        return clientJarPath;
-    }
+        // the agent adds the classes it remaps while the game runs, so the entry is measured once the build ends
+        getCacheService().get().recordAccess(List.of(cacheDir));
+
+        Path agentDir = getTemporaryDir().toPath();
+        Path agentJar = agentDir.resolve("remap-agent.jar");
+        RuntimeRemapAgent.writeAgentJar(agentJar);
+
+        var properties = new Properties();
+        properties.setProperty(RuntimeRemapAgent.MAPPINGS_PROPERTY, tableFile.toAbsolutePath().toString());
+        properties.setProperty(RuntimeRemapAgent.CACHE_PROPERTY, cacheDir.resolve("classes").toAbsolutePath().toString());
+        properties.setProperty(RuntimeRemapAgent.CLASSPATH_PROPERTY, getModClasspath().getAsPath());
+        properties.setProperty(RuntimeRemapAgent.DEBUG_PROPERTY, String.valueOf(getLogger().isInfoEnabled()));
+        Path configFile = agentDir.resolve("remap-agent.properties");
+        try (BufferedWriter writer = Files.newBufferedWriter(configFile, StandardCharsets.UTF_8)) {
+            properties.store(writer, null);
+        } catch (IOException exception) {
+            throw new RuntimeException("Failed to write the agent configuration!", exception);
+        }
 
-    public Path getAssetsDir() {
-        return assetsDir;
+        return List.of("-javaagent:" + agentJar.toAbsolutePath() + "=" + configFile.toAbsolutePath());
     }
 
+    @Internal
     public Path getRunDir() {
-        return runDir;
+        return getRunDirectory().get().getAsFile().toPath();
     }
 }
@@ -1,9 +1,12 @@
 package dev.turtywurty.testgradleplugin.tasks;
 
 import dev.turtywurty.testgradleplugin.util.FileUtil;
-import org.gradle.api.tasks.Classpath;
+import org.gradle.api.file.DirectoryProperty;
 import org.gradle.api.tasks.InputDirectory;
+import org.gradle.api.tasks.PathSensitive;
+import org.gradle.api.tasks.PathSensitivity;
 import org.gradle.api.tasks.TaskAction;
+import org.gradle.work.DisableCachingByDefault;
 
 import java.io.IOException;
 import java.nio.file.Files;
@@ -12,26 +15,18 @@ import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
-public class SourcesStatsTask extends DefaultTestGradleTask {
+@DisableCachingByDefault(because = "It only prints statistics")
+public abstract class SourcesStatsTask extends DefaultTestGradleTask {
     @InputDirectory
-    @Classpath
-    private final Path decompiledPath;
-
-    public SourcesStatsTask() {
-        Path cacheDir = getCacheDir();
-        Path versionPath = cacheDir.resolve(getMinecraftVersion());
-
-        this.decompiledPath = versionPath.resolve("decompiled_" + switch (getSide()) {
-            case CLIENT -> "client";
-            case SERVER -> "server";
-            case BOTH -> "joined";
-        });
-    }
+    @PathSensitive(PathSensitivity.RELATIVE)
+    public abstract DirectoryProperty getDecompiledDirectory();
 
     @TaskAction
     public void run() {
-        System.out.println("Version: " + getMinecraftVersion());
-        System.out.println("Side: " + getSide());
+        Path decompiledPath = getDecompiledDirectory().get().getAsFile().toPath();
+
+        System.out.println("Version: " + getMinecraftVersion().get());
+        System.out.println("Side: " + getSide().get());
 
         if (Files.notExists(decompiledPath))
             throw new IllegalStateException("Decompiled path '%s' does not exist!".formatted(decompiledPath));
@@ -92,8 +87,4 @@ public class SourcesStatsTask extends DefaultTestGradleTask {
         System.out.println("Line No Whitespace Count: " + lineNoWhitespaceCount.get());
         System.out.println("Char Count: " + charCount.get());
     }
-
-    public Path getDecompiledPath() {
-        return decompiledPath;
-    }
 }
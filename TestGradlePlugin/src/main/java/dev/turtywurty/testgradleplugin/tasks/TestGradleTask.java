@@ -1,53 +1,101 @@
 package dev.turtywurty.testgradleplugin.tasks;
 
 import dev.turtywurty.testgradleplugin.extensions.TestGradleExtension;
+import dev.turtywurty.testgradleplugin.services.CacheService;
+import dev.turtywurty.testgradleplugin.services.DownloadService;
+import dev.turtywurty.testgradleplugin.services.MetadataService;
+import dev.turtywurty.testgradleplugin.util.SharedCacheTier;
 import org.gradle.api.Task;
+import org.gradle.api.file.Directory;
+import org.gradle.api.file.DirectoryProperty;
 import org.gradle.api.provider.Property;
+import org.gradle.api.provider.Provider;
+import org.gradle.api.tasks.Input;
 import org.gradle.api.tasks.Internal;
 
 import java.nio.file.Path;
 
+/**
+ * Base interface of all the plugin's tasks. The properties are wired to the {@link TestGradleExtension} by the
+ * plugin, so tasks never need to look up the project while they execute.
+ */
 public interface TestGradleTask extends Task {
+    @Input
+    Property<String> getMinecraftVersion();
+
+    /**
+     * Only an input of the tasks whose output depends on it, which declare it again.
+     */
     @Internal
-    default TestGradleExtension getExtension() {
-        return getProject().getExtensions().getByType(TestGradleExtension.class);
-    }
+    Property<TestGradleExtension.Side> getSide();
 
     @Internal
-    default String getMinecraftVersion() {
-        Property<String> minecraftVersion = getExtension().getMinecraftVersion();
-        if (!minecraftVersion.isPresent())
-            throw new IllegalStateException("Minecraft version is not present!");
+    DirectoryProperty getCacheDirectory();
 
-        return minecraftVersion.get();
-    }
+    @Internal
+    Property<MetadataService> getMetadataService();
 
     @Internal
-    default TestGradleExtension.Side getSide() {
-        return getExtension().getSideEnum().getOrElse(TestGradleExtension.Side.BOTH);
-    }
+    Property<DownloadService> getDownloadService();
 
     @Internal
-    default String getVineflowerVersion() {
-        Property<String> vineflowerVersion = getExtension().getVineflowerVersion();
-        if (!vineflowerVersion.isPresent())
-            throw new IllegalStateException("Vineflower version is not present!");
+    Property<CacheService> getCacheService();
 
-        return vineflowerVersion.get();
-    }
+    @Internal
+    DirectoryProperty getSharedCacheDirectory();
+
+    @Internal
+    Property<Boolean> getPublishToSharedCache();
 
     @Internal
     default boolean isClient() {
-        return getSide() == TestGradleExtension.Side.CLIENT || getSide() == TestGradleExtension.Side.BOTH;
+        return getSide().get().includesClient();
     }
 
     @Internal
     default boolean isServer() {
-        return getSide() == TestGradleExtension.Side.SERVER || getSide() == TestGradleExtension.Side.BOTH;
+        return getSide().get().includesServer();
+    }
+
+    @Internal
+    default String getSideName() {
+        return getSide().get().getFileName();
     }
 
     @Internal
     default Path getCacheDir() {
-        return getProject().getGradle().getGradleUserHomeDir().toPath().resolve("caches/testGradle");
+        return getCacheDirectory().get().getAsFile().toPath();
+    }
+
+    @Internal
+    default SharedCacheTier getSharedCacheTier() {
+        return SharedCacheTier.of(getCacheDir(), getSharedCacheDirectory().isPresent() ? getSharedCacheDirectory().get().getAsFile().toPath() : null,
+                getPublishToSharedCache().getOrElse(false));
+    }
+
+    /**
+     * Copies the cache directories into the parameters of a work action, which can't reach the task.
+     */
+    default void configureCacheParameters(CacheWorkParameters parameters) {
+        parameters.getCacheDirectory().set(getCacheDirectory());
+        parameters.getSharedCacheDirectory().set(getSharedCacheDirectory());
+        parameters.getPublishToSharedCache().set(getPublishToSharedCache());
+    }
+
+    /**
+     * The directory that holds everything for the configured version. Tasks use it for the conventions of their
+     * outputs, so those follow the version and cache directory lazily.
+     */
+    @Internal
+    default Provider<Directory> getVersionDirectory() {
+        return getCacheDirectory().dir(getMinecraftVersion());
+    }
+
+    @Internal
+    default Path getVersionDir() {
+        if (!getMinecraftVersion().isPresent())
+            throw new IllegalStateException("Minecraft version is not present!");
+
+        return getCacheDir().resolve(getMinecraftVersion().get());
     }
 }
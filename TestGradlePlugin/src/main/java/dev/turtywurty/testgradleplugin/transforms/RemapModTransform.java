@@ -0,0 +1,107 @@
+package dev.turtywurty.testgradleplugin.transforms;
+
+import dev.turtywurty.testgradleplugin.HashingFunction;
+import dev.turtywurty.testgradleplugin.mappings.MappingSet;
+import dev.turtywurty.testgradleplugin.mappings.OfficialMappingsFile;
+import dev.turtywurty.testgradleplugin.remap.JarRemapper;
+import dev.turtywurty.testgradleplugin.util.FileSeeder;
+import org.gradle.api.artifacts.transform.InputArtifact;
+import org.gradle.api.artifacts.transform.TransformAction;
+import org.gradle.api.artifacts.transform.TransformOutputs;
+import org.gradle.api.artifacts.transform.TransformParameters;
+import org.gradle.api.attributes.Attribute;
+import org.gradle.api.file.ConfigurableFileCollection;
+import org.gradle.api.file.DirectoryProperty;
+import org.gradle.api.file.FileSystemLocation;
+import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.provider.ListProperty;
+import org.gradle.api.provider.Provider;
+import org.gradle.api.tasks.*;
+import org.gradle.work.DisableCachingByDefault;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+
+/**
+ * Remaps a mod the project depends on from the obfuscated names to those of the repackaged jar, with the same
+ * mappings and layers as the remap tasks.
+ * <p>
+ * The remapped jars are kept in a store in the cache directory, addressed by the hash of the jar and the hash of the
+ * mappings, so each mod is only remapped once per machine no matter how many projects or versions use it. Gradle's
+ * own transform cache is keyed by the paths of the parameters as well, so it can't share them like that.
+ */
+@DisableCachingByDefault(because = "The remapped jars are kept in the mod store")
+public abstract class RemapModTransform implements TransformAction<RemapModTransform.Parameters> {
+    public static final Attribute<Boolean> REMAPPED = Attribute.of("dev.turtywurty.testgradle.remapped", Boolean.class);
+
+    @InputArtifact
+    @PathSensitive(PathSensitivity.NONE)
+    public abstract Provider<FileSystemLocation> getInputArtifact();
+
+    @Override
+    public void transform(TransformOutputs outputs) {
+        Path inputJar = getInputArtifact().get().getAsFile().toPath();
+        if (!Files.isRegularFile(inputJar)) {
+            outputs.file(getInputArtifact());
+            return;
+        }
+
+        Path mappingsPath = getParameters().getMappings().get().getAsFile().toPath();
+        List<Path> layers = getParameters().getMappingLayers().getFiles().stream().map(File::toPath).toList();
+        String mappingsHash = MappingSet.hash(mappingsPath, layers);
+        String jarHash = HashingFunction.SHA1.hash(inputJar);
+
+        String fileName = inputJar.getFileName().toString();
+        Path stored = getParameters().getStoreDirectory().get().getAsFile().toPath()
+                .resolve(jarHash.substring(0, 2)).resolve(jarHash).resolve(mappingsHash).resolve(fileName);
+        if (Files.notExists(stored)) {
+            remap(inputJar, stored, MappingSet.load(mappingsHash, mappingsPath, layers, OfficialMappingsFile::new));
+        }
+
+        try {
+            FileSeeder.linkOrCopy(stored, outputs.file(fileName).toPath());
+        } catch (IOException exception) {
+            throw new IllegalStateException("Failed to copy the remapped '%s'!".formatted(fileName), exception);
+        }
+    }
+
+    private static void remap(Path inputJar, Path stored, MappingSet mappings) {
+        try {
+            Files.createDirectories(stored.getParent());
+            // remapping the same jar always gives the same bytes, so another build writing it as well doesn't matter
+            Path tempJar = Files.createTempFile(stored.getParent(), stored.getFileName().toString(), ".tmp");
+            try {
+                JarRemapper.Result result = JarRemapper.remap(inputJar, tempJar, mappings.getClassMappings());
+                Files.move(tempJar, stored, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                System.out.println("Remapped " + inputJar.getFileName() + ": " + result);
+            } finally {
+                Files.deleteIfExists(tempJar);
+            }
+        } catch (IOException exception) {
+            throw new IllegalStateException("Failed to remap '%s'!".formatted(inputJar), exception);
+        }
+    }
+
+    public interface Parameters extends TransformParameters {
+        @InputFile
+        @PathSensitive(PathSensitivity.NONE)
+        RegularFileProperty getMappings();
+
+        @InputFiles
+        @PathSensitive(PathSensitivity.NONE)
+        ConfigurableFileCollection getMappingLayers();
+
+        /**
+         * The order the layers are applied in, which the file collection itself isn't compared by.
+         */
+        @Input
+        ListProperty<String> getMappingLayerOrder();
+
+        @Internal
+        DirectoryProperty getStoreDirectory();
+    }
+}
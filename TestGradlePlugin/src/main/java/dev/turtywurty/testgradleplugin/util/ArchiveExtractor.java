@@ -0,0 +1,198 @@
+package dev.turtywurty.testgradleplugin.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Extracts zip archives using the central directory of a {@link ZipFile}, so that the directory structure can be
+ * created up front and the entries can be inflated in parallel.
+ */
+public class ArchiveExtractor {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    public static Result extract(Path archiveFile, Path destPath) {
+        return extract(archiveFile, destPath, Runtime.getRuntime().availableProcessors());
+    }
+
+    public static Result extract(Path archiveFile, Path destPath, int threads) {
+        long start = System.nanoTime();
+        Path root = destPath.toAbsolutePath().normalize();
+
+        List<Target> targets = new ArrayList<>();
+        Set<Path> directories = new TreeSet<>();
+        directories.add(root);
+        try (var zipFile = new ZipFile(archiveFile.toFile())) {
+            Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                Path target = resolveEntry(root, entry.getName());
+                if (entry.isDirectory()) {
+                    directories.add(target);
+                } else {
+                    directories.add(target.getParent());
+                    targets.add(new Target(entry.getName(), target, Math.max(entry.getCompressedSize(), 0)));
+                }
+            }
+        } catch (IOException exception) {
+            throw new IllegalStateException("Failed to read archive: " + archiveFile, exception);
+        }
+
+        try {
+            for (Path directory : directories) {
+                Files.createDirectories(directory);
+            }
+        } catch (IOException exception) {
+            throw new IllegalStateException("Failed to create directories for archive: " + archiveFile, exception);
+        }
+
+        List<List<Target>> buckets = partition(targets, Math.max(1, Math.min(threads, targets.size())));
+        long bytes = 0;
+        try (ExecutorService executor = Executors.newFixedThreadPool(buckets.size())) {
+            List<Future<Long>> futures = new ArrayList<>(buckets.size());
+            for (List<Target> bucket : buckets) {
+                futures.add(executor.submit(() -> extractBucket(archiveFile, bucket)));
+            }
+
+            for (Future<Long> future : futures) {
+                bytes += future.get();
+            }
+        } catch (ExecutionException exception) {
+            throw new IllegalStateException("Failed to extract archive: " + archiveFile, exception.getCause());
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while extracting archive: " + archiveFile, exception);
+        }
+
+        return new Result(targets.size(), bytes, System.nanoTime() - start);
+    }
+
+    /**
+     * Extracts a zip archive that is only available as a stream, such as a jar nested inside another jar. Entries are
+     * inflated sequentially, but each directory is only created once.
+     */
+    public static Result extract(InputStream archiveStream, Path destPath) {
+        long start = System.nanoTime();
+        Path root = destPath.toAbsolutePath().normalize();
+
+        Set<Path> directories = new HashSet<>();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int count = 0;
+        long bytes = 0;
+        try (var zipIn = new ZipInputStream(archiveStream)) {
+            ZipEntry entry;
+            while ((entry = zipIn.getNextEntry()) != null) {
+                Path target = resolveEntry(root, entry.getName());
+                if (entry.isDirectory()) {
+                    if (directories.add(target))
+                        Files.createDirectories(target);
+
+                    continue;
+                }
+
+                if (directories.add(target.getParent()))
+                    Files.createDirectories(target.getParent());
+
+                try (OutputStream output = Files.newOutputStream(target)) {
+                    int read;
+                    while ((read = zipIn.read(buffer)) != -1) {
+                        output.write(buffer, 0, read);
+                        bytes += read;
+                    }
+                }
+
+                count++;
+            }
+        } catch (IOException exception) {
+            throw new IllegalStateException("Failed to extract archive stream to: " + destPath, exception);
+        }
+
+        return new Result(count, bytes, System.nanoTime() - start);
+    }
+
+    /**
+     * Resolves an entry name against the destination, rejecting names that would escape it (zip slip).
+     */
+    public static Path resolveEntry(Path root, String entryName) {
+        Path target = root.resolve(entryName).normalize();
+        if (!target.startsWith(root))
+            throw new IllegalStateException("Archive entry '%s' is outside of the target directory!".formatted(entryName));
+
+        return target;
+    }
+
+    private static long extractBucket(Path archiveFile, List<Target> bucket) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long bytes = 0;
+        try (var zipFile = new ZipFile(archiveFile.toFile())) {
+            for (Target target : bucket) {
+                ZipEntry entry = zipFile.getEntry(target.name());
+                try (InputStream input = zipFile.getInputStream(entry);
+                     OutputStream output = Files.newOutputStream(target.path())) {
+                    int read;
+                    while ((read = input.read(buffer)) != -1) {
+                        output.write(buffer, 0, read);
+                        bytes += read;
+                    }
+                }
+            }
+        }
+
+        return bytes;
+    }
+
+    // largest entries first, each going to the bucket with the least work so far
+    private static List<List<Target>> partition(List<Target> targets, int count) {
+        List<Target> sorted = new ArrayList<>(targets);
+        sorted.sort(Comparator.comparingLong(Target::compressedSize).reversed());
+
+        List<List<Target>> buckets = new ArrayList<>(count);
+        long[] loads = new long[count];
+        for (int index = 0; index < count; index++) {
+            buckets.add(new ArrayList<>());
+        }
+
+        for (Target target : sorted) {
+            int lightest = 0;
+            for (int index = 1; index < count; index++) {
+                if (loads[index] < loads[lightest]) {
+                    lightest = index;
+                }
+            }
+
+            buckets.get(lightest).add(target);
+            // count a fixed cost per entry so that buckets of tiny files stay balanced too
+            loads[lightest] += target.compressedSize() + 512;
+        }
+
+        return buckets;
+    }
+
+    private record Target(String name, Path path, long compressedSize) {
+    }
+
+    public record Result(int entries, long bytes, long nanos) {
+        public double seconds() {
+            return nanos / 1_000_000_000D;
+        }
+
+        public double entriesPerSecond() {
+            return nanos == 0 ? entries : entries / seconds();
+        }
+
+        @Override
+        public String toString() {
+            return "%d entries (%d bytes) in %.2fs, %.0f entries/s".formatted(entries, bytes, seconds(), entriesPerSecond());
+        }
+    }
+}
@@ -0,0 +1,274 @@
+package dev.turtywurty.testgradleplugin.util;
+
+import dev.turtywurty.testgradleplugin.HashingFunction;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+/**
+ * A lock on a single artifact of the cache, such as the extracted client, that is held against other threads of
+ * this JVM and against other processes sharing the cache (other daemons, or CI jobs on the same machine).
+ * <p>
+ * Next to the lock, a completion marker records the key of the inputs the artifact was last produced from. A build
+ * that had to wait for another one to finish producing the artifact checks that marker and reuses the result instead
+ * of producing it again:
+ * <pre>{@code
+ * CacheLock.produce(outputDir, key, () -> {
+ *     Path staging = FileUtil.createStagingDirectory(outputDir);
+ *     ...
+ *     FileUtil.swapDirectory(staging, outputDir);
+ * });
+ * }</pre>
+ * Locks and markers live in a hidden {@value #LOCK_DIR_NAME} directory next to the artifact.
+ */
+public final class CacheLock implements AutoCloseable {
+    public static final String LOCK_DIR_NAME = ".locks";
+
+    // FileChannel locks are held by the whole JVM, so threads have to be kept apart separately
+    private static final Map<Path, ReentrantLock> LOCAL_LOCKS = new ConcurrentHashMap<>();
+
+    private final Path artifact;
+    private final ReentrantLock localLock;
+    private final @Nullable FileChannel channel;
+    private final @Nullable FileLock fileLock;
+
+    private CacheLock(Path artifact, ReentrantLock localLock, @Nullable FileChannel channel, @Nullable FileLock fileLock) {
+        this.artifact = artifact;
+        this.localLock = localLock;
+        this.channel = channel;
+        this.fileLock = fileLock;
+    }
+
+    /**
+     * Locks the artifact, waiting for whoever holds it now.
+     */
+    public static CacheLock acquire(Path artifact) {
+        CacheLock lock = lock(artifact, true);
+        if (lock == null)
+            throw new IllegalStateException("Failed to lock " + artifact + "!");
+
+        return lock;
+    }
+
+    /**
+     * Runs the action with the artifact locked, for work that checks and fills the artifact itself instead of
+     * producing it from a key.
+     */
+    public static void runLocked(Path artifact, Runnable action) {
+        CacheLock lock = acquire(artifact);
+        try {
+            action.run();
+        } finally {
+            lock.close();
+        }
+    }
+
+    /**
+     * Locks the artifact if nobody else holds it.
+     *
+     * @return the lock, or {@code null} if the artifact is in use
+     */
+    public static @Nullable CacheLock tryAcquire(Path artifact) {
+        return lock(artifact, false);
+    }
+
+    /**
+     * Lists the artifacts of the directory that have a lock file, whether they still exist or not.
+     */
+    public static List<Path> listLockedArtifacts(Path directory) {
+        Path lockDir = directory.resolve(LOCK_DIR_NAME);
+        if (Files.notExists(lockDir))
+            return List.of();
+
+        try (Stream<Path> lockFiles = Files.list(lockDir)) {
+            return lockFiles.map(lockFile -> lockFile.getFileName().toString())
+                    .filter(name -> name.endsWith(".lock"))
+                    .map(name -> directory.resolve(name.substring(0, name.length() - ".lock".length())))
+                    .toList();
+        } catch (IOException exception) {
+            throw new IllegalStateException("Failed to list the locks of " + directory + "!", exception);
+        }
+    }
+
+    /**
+     * Runs the producer with the artifact locked, unless the artifact was already produced from the same inputs.
+     * The producer is expected to publish the artifact atomically, by staging it and renaming it into place.
+     *
+     * @param key identifies the inputs, see {@link #key(String...)}; {@code null} if they can't be identified, in
+     *            which case the artifact is always produced
+     * @return whether the producer ran
+     */
+    public static boolean produce(Path artifact, @Nullable String key, Runnable producer) {
+        return produce(artifact, key, SharedCacheTier.disabled(), producer);
+    }
+
+    /**
+     * Like {@link #produce(Path, String, Runnable)}, but takes the artifact from the shared cache directory if it was
+     * produced there from the same inputs, and publishes it there otherwise.
+     *
+     * @return whether the producer ran
+     */
+    public static boolean produce(Path artifact, @Nullable String key, SharedCacheTier sharedCache, Runnable producer) {
+        try (CacheLock lock = acquire(artifact)) {
+            if (key != null && lock.isComplete(key)) {
+                System.out.println("Reusing " + artifact.getFileName() + ", it was already produced from the same inputs");
+                return false;
+            }
+
+            lock.invalidate();
+            if (key != null && sharedCache.fetch(artifact, key)) {
+                lock.markComplete(key);
+                return false;
+            }
+
+            producer.run();
+            if (key != null) {
+                lock.markComplete(key);
+                sharedCache.publish(artifact, key);
+            }
+
+            return true;
+        }
+    }
+
+    /**
+     * Combines the given parts into a key for {@link #produce(Path, String, Runnable)}.
+     *
+     * @return the key, or {@code null} if any of the parts is {@code null}
+     */
+    public static @Nullable String key(@Nullable String... parts) {
+        var builder = new StringBuilder();
+        for (String part : parts) {
+            if (part == null)
+                return null;
+
+            builder.append(part).append('\n');
+        }
+
+        return HashingFunction.SHA1.hash(builder.toString());
+    }
+
+    /**
+     * Gets the key the artifact was last produced from, so that the artifacts made from it can use it in their own
+     * key instead of hashing the artifact.
+     *
+     * @return the key, or {@code null} if the artifact isn't known to be complete
+     */
+    public static @Nullable String readKey(Path artifact) {
+        Path marker = markerFile(artifact);
+        try {
+            return Files.exists(artifact) && Files.exists(marker) ? Files.readString(marker, StandardCharsets.UTF_8).trim() : null;
+        } catch (IOException exception) {
+            return null;
+        }
+    }
+
+    public boolean isComplete(String key) {
+        return key.equals(readKey(this.artifact));
+    }
+
+    public void markComplete(String key) {
+        Path marker = markerFile(this.artifact);
+        try {
+            Path tempFile = marker.resolveSibling(marker.getFileName() + ".tmp");
+            Files.writeString(tempFile, key, StandardCharsets.UTF_8);
+            Files.move(tempFile, marker, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException exception) {
+            throw new IllegalStateException("Failed to mark " + this.artifact + " as complete!", exception);
+        }
+    }
+
+    /**
+     * Forgets that the artifact is complete, before it is replaced or deleted.
+     */
+    public void invalidate() {
+        try {
+            Files.deleteIfExists(markerFile(this.artifact));
+        } catch (IOException exception) {
+            throw new IllegalStateException("Failed to invalidate " + this.artifact + "!", exception);
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            if (this.fileLock != null) {
+                this.fileLock.release();
+            }
+
+            if (this.channel != null) {
+                this.channel.close();
+            }
+        } catch (IOException exception) {
+            System.err.println("Failed to release the lock of " + this.artifact + ": " + exception.getMessage());
+        } finally {
+            this.localLock.unlock();
+        }
+    }
+
+    private static @Nullable CacheLock lock(Path artifact, boolean wait) {
+        Path absolute = artifact.toAbsolutePath().normalize();
+        ReentrantLock localLock = LOCAL_LOCKS.computeIfAbsent(absolute, ignored -> new ReentrantLock());
+        if (wait) {
+            localLock.lock();
+        } else if (!localLock.tryLock()) {
+            return null;
+        }
+
+        // this thread already holds the file lock further up the stack
+        if (localLock.getHoldCount() > 1)
+            return new CacheLock(absolute, localLock, null, null);
+
+        FileChannel channel = null;
+        try {
+            Path lockFile = lockDirectory(absolute).resolve(absolute.getFileName() + ".lock");
+            Files.createDirectories(lockFile.getParent());
+            channel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+
+            FileLock fileLock = channel.tryLock();
+            if (fileLock == null) {
+                if (!wait) {
+                    channel.close();
+                    localLock.unlock();
+                    return null;
+                }
+
+                System.out.println("Waiting for another build to finish with " + absolute.getFileName() + "...");
+                fileLock = channel.lock();
+            }
+
+            return new CacheLock(absolute, localLock, channel, fileLock);
+        } catch (IOException | RuntimeException exception) {
+            try {
+                if (channel != null) {
+                    channel.close();
+                }
+            } catch (IOException ignored) {
+            }
+
+            localLock.unlock();
+            throw new IllegalStateException("Failed to lock " + absolute + "!", exception);
+        }
+    }
+
+    private static Path lockDirectory(Path artifact) {
+        return artifact.getParent().resolve(LOCK_DIR_NAME);
+    }
+
+    private static Path markerFile(Path artifact) {
+        Path absolute = artifact.toAbsolutePath().normalize();
+        return lockDirectory(absolute).resolve(absolute.getFileName() + ".complete");
+    }
+}
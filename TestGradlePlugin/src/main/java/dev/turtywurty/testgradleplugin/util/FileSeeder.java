@@ -0,0 +1,222 @@
+package dev.turtywurty.testgradleplugin.util;
+
+import dev.turtywurty.testgradleplugin.OperatingSystem;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Fills the cache with files that already exist elsewhere on the machine, such as in the launcher's installation,
+ * without storing them twice where the file system allows it. Each file is, in order of preference:
+ * <ol>
+ *     <li>cloned with a reflink, which shares the data but stays a separate file (Linux, on btrfs, XFS and the like)</li>
+ *     <li>hard linked, which is free but shares the file itself</li>
+ *     <li>copied</li>
+ * </ol>
+ * The files being seeded are content addressed and never written in place (downloads replace them with a rename),
+ * so sharing them with the launcher is safe.
+ */
+public final class FileSeeder {
+    // keeps each cp command line well below the argument limit
+    private static final int CLONE_BATCH_SIZE = 256;
+
+    private FileSeeder() {
+    }
+
+    /**
+     * Seeds the given files from the source directory into the target directory.
+     *
+     * @param files the paths relative to both directories, mapped to their expected size
+     */
+    public static Result seed(Path sourceRoot, Path targetRoot, Map<String, Long> files) {
+        if (files.isEmpty())
+            return new Result(0, 0, 0, List.of());
+
+        try {
+            Files.createDirectories(targetRoot);
+        } catch (IOException exception) {
+            throw new IllegalStateException("Failed to create directory: " + targetRoot, exception);
+        }
+
+        Map<String, Long> remaining = new LinkedHashMap<>(files);
+        boolean sameStore = isSameFileStore(sourceRoot, targetRoot);
+
+        int cloned = 0;
+        if (sameStore && OperatingSystem.determineCurrentOperatingSystem() == OperatingSystem.LINUX) {
+            cloned = cloneAll(sourceRoot, targetRoot, remaining);
+        }
+
+        int linked = 0, copied = 0;
+        List<String> failed = new ArrayList<>();
+        for (String path : remaining.keySet()) {
+            Path source = sourceRoot.resolve(path);
+            Path target = targetRoot.resolve(path);
+            try {
+                Files.createDirectories(target.getParent());
+                Files.deleteIfExists(target);
+
+                if (sameStore) {
+                    try {
+                        Files.createLink(target, source);
+                        linked++;
+                        continue;
+                    } catch (IOException | UnsupportedOperationException ignored) {
+                        // a different mount of the same file system, or links aren't supported
+                    }
+                }
+
+                Path tempFile = target.resolveSibling(target.getFileName() + ".seed");
+                Files.copy(source, tempFile, StandardCopyOption.REPLACE_EXISTING);
+                Files.move(tempFile, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                copied++;
+            } catch (IOException exception) {
+                failed.add(path);
+            }
+        }
+
+        return new Result(cloned, linked, copied, failed);
+    }
+
+    /**
+     * Hard links the target to the source if they're on the same file store, and copies it otherwise. The target is
+     * replaced with a rename either way.
+     *
+     * @return whether the file was linked
+     */
+    public static boolean linkOrCopy(Path source, Path target) throws IOException {
+        Path absoluteTarget = target.toAbsolutePath();
+        Files.createDirectories(absoluteTarget.getParent());
+        Path tempFile = absoluteTarget.resolveSibling(absoluteTarget.getFileName() + ".seed");
+        Files.deleteIfExists(tempFile);
+
+        boolean linked = false;
+        if (isSameFileStore(source.toAbsolutePath().getParent(), absoluteTarget.getParent())) {
+            try {
+                Files.createLink(tempFile, source);
+                linked = true;
+            } catch (IOException | UnsupportedOperationException ignored) {
+            }
+        }
+
+        if (!linked) {
+            Files.copy(source, tempFile, StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        Files.move(tempFile, absoluteTarget, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return linked;
+    }
+
+    /**
+     * Lists every file below the directory, mapped to its size, in the form {@link #seed(Path, Path, Map)} takes.
+     */
+    public static Map<String, Long> listFiles(Path directory) throws IOException {
+        Map<String, Long> files = new LinkedHashMap<>();
+        try (Stream<Path> walk = Files.walk(directory)) {
+            for (Path file : walk.filter(Files::isRegularFile).toList()) {
+                files.put(directory.relativize(file).toString().replace('\\', '/'), Files.size(file));
+            }
+        }
+
+        return files;
+    }
+
+    /**
+     * Checks that the file exists with the given size, which is all that is checked for files that were either
+     * verified when they were downloaded or come from a trusted index.
+     */
+    public static boolean hasSize(Path path, long size) {
+        try {
+            return Files.size(path) == size;
+        } catch (IOException exception) {
+            return false;
+        }
+    }
+
+    /**
+     * Clones the files with {@code cp --reflink=always}, since Java has no way to issue {@code FICLONE} itself.
+     * Each batch is a single process that recreates the relative paths below the target. Whatever wasn't cloned
+     * with the expected size is removed again and left in the map for the other methods.
+     *
+     * @return the number of files that were cloned
+     */
+    private static int cloneAll(Path sourceRoot, Path targetRoot, Map<String, Long> remaining) {
+        int cloned = 0;
+        List<String> paths = new ArrayList<>(remaining.keySet());
+        for (int start = 0; start < paths.size(); start += CLONE_BATCH_SIZE) {
+            List<String> batch = paths.subList(start, Math.min(paths.size(), start + CLONE_BATCH_SIZE));
+
+            List<String> command = new ArrayList<>(List.of("cp", "--reflink=always", "--parents", "-t", targetRoot.toAbsolutePath().toString()));
+            command.addAll(batch);
+            try {
+                // cp writes into existing files, which would go straight through an earlier hard link
+                for (String path : batch) {
+                    Files.deleteIfExists(targetRoot.resolve(path));
+                }
+
+                Process process = new ProcessBuilder(command)
+                        .directory(sourceRoot.toFile())
+                        .redirectErrorStream(true)
+                        .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                        .start();
+                if (!process.waitFor(5, TimeUnit.MINUTES)) {
+                    process.destroyForcibly();
+                }
+            } catch (IOException exception) {
+                // no cp on the path
+                return cloned;
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+                return cloned;
+            }
+
+            int batchCloned = 0;
+            for (String path : batch) {
+                Path target = targetRoot.resolve(path);
+                try {
+                    if (Files.exists(target) && Files.size(target) == remaining.get(path)) {
+                        remaining.remove(path);
+                        batchCloned++;
+                    } else {
+                        Files.deleteIfExists(target);
+                    }
+                } catch (IOException ignored) {
+                }
+            }
+
+            cloned += batchCloned;
+
+            // the file system doesn't support reflinks, so don't spawn any more processes
+            if (batchCloned == 0)
+                break;
+        }
+
+        return cloned;
+    }
+
+    private static boolean isSameFileStore(Path first, Path second) {
+        try {
+            return Files.getFileStore(first).equals(Files.getFileStore(second));
+        } catch (IOException exception) {
+            return false;
+        }
+    }
+
+    public record Result(int cloned, int linked, int copied, List<String> failed) {
+        public int seeded() {
+            return this.cloned + this.linked + this.copied;
+        }
+
+        @Override
+        public String toString() {
+            return "%d cloned, %d linked, %d copied, %d failed".formatted(this.cloned, this.linked, this.copied, this.failed.size());
+        }
+    }
+}
@@ -1,92 +1,351 @@
 package dev.turtywurty.testgradleplugin.util;
 
-import org.gradle.api.Project;
-
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.util.Comparator;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
+import java.io.Serial;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.*;
+import java.util.stream.Stream;
 
 public class FileUtil {
-    public static void extractArchive(Path archiveFile, Path destPath) {
-        try (var zipIn = new ZipInputStream(Files.newInputStream(archiveFile))) {
-            Files.createDirectories(destPath);
-
-            ZipEntry entry = zipIn.getNextEntry();
-            while (entry != null) {
-                Path filePath = destPath.resolve(entry.getName());
-                if (entry.isDirectory()) {
-                    Files.createDirectories(filePath);
-                } else if (Files.notExists(filePath.getParent())) {
-                    Files.createDirectories(filePath.getParent());
-                }
+    public static final int BINARY_SAMPLE_SIZE = 8192;
+
+    private static final byte TEXT = 0, BINARY = 1, CONTINUATION = 2, LEAD_2 = 3, LEAD_3 = 4, LEAD_4 = 5;
+    private static final byte[] BYTE_TYPES = createByteTypes();
+
+    private static final byte[][] BINARY_MAGIC_NUMBERS = {
+            bytes(0xCA, 0xFE, 0xBA, 0xBE), // class file
+            bytes(0x89, 'P', 'N', 'G', 0x0D, 0x0A, 0x1A, 0x0A), // PNG
+            bytes('O', 'g', 'g', 'S'), // OGG
+            bytes('P', 'K', 0x03, 0x04), // zip
+            bytes('P', 'K', 0x05, 0x06), // empty zip
+            bytes('P', 'K', 0x07, 0x08) // spanned zip
+    };
+
+    private static final byte[][] TEXT_BYTE_ORDER_MARKS = {
+            bytes(0xEF, 0xBB, 0xBF), // UTF-8
+            bytes(0xFE, 0xFF), // UTF-16 BE
+            bytes(0xFF, 0xFE) // UTF-16 LE
+    };
+
+    private static final ThreadLocal<ByteBuffer> BINARY_SAMPLE_BUFFER =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocate(BINARY_SAMPLE_SIZE));
+
+    public static final String TRASH_DIR_NAME = ".trash";
+    private static final String STAGING_INFIX = "-staging-";
+    private static final String REPLACED_INFIX = "-replaced-";
+
+    // deleting is mostly waiting on the file system, so use more threads than there are cores
+    private static final ForkJoinPool DELETE_POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors() * 2);
+
+    private static final Executor BACKGROUND_DELETER = Executors.newSingleThreadExecutor(runnable -> {
+        var thread = new Thread(runnable, "TestGradle Background Deleter");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public static ArchiveExtractor.Result extractArchive(Path archiveFile, Path destPath) {
+        return ArchiveExtractor.extract(archiveFile, destPath);
+    }
+
+    /**
+     * Deletes the directory and everything in it, bottom-up and in parallel on a work-stealing pool. Symbolic links
+     * are deleted, never followed. Every failure is collected and reported once the rest of the tree has been deleted.
+     */
+    public static void deleteDirectory(Path directory) {
+        if (Files.notExists(directory, LinkOption.NOFOLLOW_LINKS))
+            return;
+
+        Queue<IOException> failures = new ConcurrentLinkedQueue<>();
+        DELETE_POOL.invoke(new DeleteAction(directory, failures));
+        if (!failures.isEmpty()) {
+            var exception = new IllegalStateException("Failed to delete %d path(s) in directory: %s"
+                    .formatted(failures.size(), directory));
+            failures.forEach(exception::addSuppressed);
+            throw exception;
+        }
+    }
+
+    /**
+     * Renames the directory into a trash directory next to it and deletes it in the background, so the caller can
+     * recreate the directory straight away. Falls back to deleting in place if the rename is not possible.
+     */
+    public static void deleteDirectoryInBackground(Path directory) {
+        if (Files.notExists(directory, LinkOption.NOFOLLOW_LINKS))
+            return;
 
-                Files.copy(zipIn, filePath);
+        Path trashDir = directory.toAbsolutePath().getParent().resolve(TRASH_DIR_NAME);
+        Path trashed = trashDir.resolve(directory.getFileName() + "-" + UUID.randomUUID());
+        try {
+            Files.createDirectories(trashDir);
+            Files.move(directory, trashed, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException exception) {
+            deleteDirectory(directory);
+            return;
+        }
 
-                zipIn.closeEntry();
-                entry = zipIn.getNextEntry();
+        BACKGROUND_DELETER.execute(() -> emptyTrash(trashDir));
+    }
+
+    /**
+     * Empties a trash directory created by {@link #deleteDirectoryInBackground(Path)}, including anything left over
+     * from a previous daemon that exited before it finished deleting.
+     */
+    private static void emptyTrash(Path trashDir) {
+        try (Stream<Path> trashed = Files.list(trashDir)) {
+            for (Path path : trashed.toList()) {
+                try {
+                    deleteDirectory(path);
+                } catch (IllegalStateException exception) {
+                    System.err.println(exception.getMessage());
+                }
             }
+        } catch (NoSuchFileException ignored) {
+            // another deleter already emptied it
         } catch (IOException exception) {
-            throw new IllegalStateException("Failed to extract archive: " + archiveFile, exception);
+            System.err.println("Failed to empty trash directory " + trashDir + ": " + exception.getMessage());
         }
     }
 
-    public static void extractArchive(Project project, Path archiveFile, Path destPath) {
-        project.copy(copySpec -> {
-            copySpec.from(project.zipTree(archiveFile.toFile()));
-            copySpec.into(destPath.toFile());
-        });
+    /**
+     * Creates an empty staging directory next to the target, to be published with
+     * {@link #swapDirectory(Path, Path)} once it is complete.
+     */
+    public static Path createStagingDirectory(Path target) {
+        Path absolute = target.toAbsolutePath();
+        try {
+            return Files.createDirectories(absolute.getParent()
+                    .resolve("." + absolute.getFileName() + STAGING_INFIX + UUID.randomUUID()));
+        } catch (IOException exception) {
+            throw new IllegalStateException("Failed to create staging directory for: " + target, exception);
+        }
     }
 
-    public static void deleteDirectory(Path directory) {
-        try (var paths = Files.walk(directory)) {
-            paths.sorted(Comparator.reverseOrder())
-                    .forEach(path -> {
-                        try {
-                            Files.deleteIfExists(path);
-                        } catch (IOException ignored) {
-                        }
-                    });
+    /**
+     * Replaces the target directory with the staging directory. The staging directory is renamed into place, so
+     * readers never see a partially written target, and the old target is deleted in the background. If the rename
+     * fails, the old target is put back.
+     */
+    public static void swapDirectory(Path staging, Path target) {
+        Path absolute = target.toAbsolutePath();
+        Path replaced = null;
+        if (Files.exists(absolute, LinkOption.NOFOLLOW_LINKS)) {
+            replaced = absolute.resolveSibling("." + absolute.getFileName() + REPLACED_INFIX + UUID.randomUUID());
+            try {
+                Files.move(absolute, replaced, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException exception) {
+                replaced = null;
+                deleteDirectory(absolute);
+            }
+        }
+
+        try {
+            Files.move(staging, absolute, StandardCopyOption.ATOMIC_MOVE);
         } catch (IOException exception) {
-            throw new IllegalStateException("Failed to delete directory: " + directory, exception);
+            var failure = new IllegalStateException("Failed to move '%s' to '%s'!".formatted(staging, target), exception);
+            if (replaced != null) {
+                try {
+                    Files.move(replaced, absolute, StandardCopyOption.ATOMIC_MOVE);
+                } catch (IOException restoreException) {
+                    failure.addSuppressed(restoreException);
+                }
+            }
+
+            throw failure;
+        }
+
+        if (replaced != null) {
+            deleteDirectoryInBackground(replaced);
         }
     }
 
+    /**
+     * Moves everything in the input directory into the output directory. Entries that don't exist in the output are
+     * moved with a single rename (including whole directories), directories that exist in both are merged and files
+     * that exist in both are replaced.
+     */
     public static void moveFiles(Path inputDir, Path outputDir) {
-        try (var paths = Files.walk(inputDir)) {
-            paths.forEach(path -> {
-                try {
-                    Files.move(path, outputDir.resolve(inputDir.relativize(path)));
-                } catch (IOException exception) {
-                    throw new IllegalStateException("Failed to move file!", exception);
+        try {
+            if (Files.notExists(outputDir)) {
+                Files.createDirectories(outputDir.toAbsolutePath().getParent());
+                Files.move(inputDir, outputDir, StandardCopyOption.ATOMIC_MOVE);
+                return;
+            }
+        } catch (AtomicMoveNotSupportedException ignored) {
+            // different file stores, move the entries individually
+        } catch (IOException exception) {
+            throw new IllegalStateException("Failed to move files!", exception);
+        }
+
+        try (Stream<Path> paths = Files.list(inputDir)) {
+            for (Path path : paths.toList()) {
+                Path target = outputDir.resolve(path.getFileName().toString());
+                if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS) && Files.isDirectory(target, LinkOption.NOFOLLOW_LINKS)) {
+                    moveFiles(path, target);
+                } else {
+                    Files.createDirectories(outputDir);
+                    Files.move(path, target, StandardCopyOption.REPLACE_EXISTING);
                 }
-            });
+            }
+
+            Files.deleteIfExists(inputDir);
         } catch (IOException exception) {
             throw new IllegalStateException("Failed to move files!", exception);
         }
     }
 
     /**
-     * If the file consists of the bytes 0x09 (tab), 0x0A (line feed), 0x0C (form feed), 0x0D (carriage return), or 0x20 through 0x7E, then it's probably ASCII text.
+     * Checks whether the file looks like binary data by sampling at most {@link #BINARY_SAMPLE_SIZE} bytes from the
+     * start of the file.
      * <p>
-     * If the file contains any other ASCII control character, 0x00 through 0x1F excluding the three above, then it's probably binary data.
+     * Known magic numbers (class files, PNG, OGG and zip archives) are binary, and a UTF-8 or UTF-16 byte order mark
+     * means text. Otherwise, the sample is binary if it contains an ASCII control character other than 0x09 (tab),
+     * 0x0A (line feed), 0x0C (form feed) and 0x0D (carriage return), or if it is not valid UTF-8.
      */
     public static boolean isBinaryFile(Path path) {
-        try {
-            byte[] bytes = Files.readAllBytes(path);
-            for (byte b : bytes) {
-                if (b < 0x09 || b == 0x0B || b == 0x0E || b == 0x0F || b == 0x10 || b == 0x11 ||
-                        b == 0x12 || b == 0x13 || b == 0x14 || b == 0x15 || b == 0x16 ||
-                        b == 0x17 || b == 0x18 || b == 0x19 || b == 0x1A || b == 0x1B ||
-                        b == 0x1C || b == 0x1D || b == 0x1E || b == 0x1F || b == 0x7F) {
+        ByteBuffer buffer = BINARY_SAMPLE_BUFFER.get().clear();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            while (buffer.hasRemaining() && channel.read(buffer) != -1) {
+                // keep reading until the sample is full or the file ends
+            }
+        } catch (IOException exception) {
+            throw new IllegalStateException("Failed to check if file '%s' is binary!".formatted(path), exception);
+        }
+
+        return isBinary(buffer.array(), buffer.position());
+    }
+
+    private static boolean isBinary(byte[] bytes, int length) {
+        for (byte[] magic : BINARY_MAGIC_NUMBERS) {
+            if (startsWith(bytes, length, magic))
+                return true;
+        }
+
+        for (byte[] bom : TEXT_BYTE_ORDER_MARKS) {
+            if (startsWith(bytes, length, bom))
+                return false;
+        }
+
+        int continuationBytes = 0;
+        for (int index = 0; index < length; index++) {
+            byte type = BYTE_TYPES[bytes[index] & 0xFF];
+            if (continuationBytes > 0) {
+                if (type != CONTINUATION)
+                    return true;
+
+                continuationBytes--;
+                continue;
+            }
+
+            switch (type) {
+                case TEXT -> {
+                }
+                case LEAD_2 -> continuationBytes = 1;
+                case LEAD_3 -> continuationBytes = 2;
+                case LEAD_4 -> continuationBytes = 3;
+                default -> {
                     return true;
                 }
             }
+        }
+
+        // a multibyte sequence cut off by the end of the sample is still text
+        return false;
+    }
+
+    private static boolean startsWith(byte[] bytes, int length, byte[] prefix) {
+        if (length < prefix.length)
             return false;
-        } catch (IOException exception) {
-            throw new IllegalStateException("Failed to check if file '%s' is binary!".formatted(path), exception);
+
+        for (int index = 0; index < prefix.length; index++) {
+            if (bytes[index] != prefix[index])
+                return false;
+        }
+
+        return true;
+    }
+
+    private static byte[] bytes(int... values) {
+        var bytes = new byte[values.length];
+        for (int index = 0; index < values.length; index++) {
+            bytes[index] = (byte) values[index];
+        }
+
+        return bytes;
+    }
+
+    private static byte[] createByteTypes() {
+        var types = new byte[256];
+        for (int value = 0; value < 256; value++) {
+            if (value == 0x09 || value == 0x0A || value == 0x0C || value == 0x0D) {
+                types[value] = TEXT;
+            } else if (value < 0x20 || value == 0x7F) {
+                types[value] = BINARY;
+            } else if (value < 0x80) {
+                types[value] = TEXT;
+            } else if (value < 0xC0) {
+                types[value] = CONTINUATION;
+            } else if (value < 0xC2) {
+                types[value] = BINARY; // overlong encodings
+            } else if (value < 0xE0) {
+                types[value] = LEAD_2;
+            } else if (value < 0xF0) {
+                types[value] = LEAD_3;
+            } else if (value < 0xF5) {
+                types[value] = LEAD_4;
+            } else {
+                types[value] = BINARY;
+            }
+        }
+
+        return types;
+    }
+
+    private static class DeleteAction extends RecursiveAction {
+        @Serial
+        private static final long serialVersionUID = 1L;
+
+        private final transient Path path;
+        private final transient Queue<IOException> failures;
+
+        private DeleteAction(Path path, Queue<IOException> failures) {
+            this.path = path;
+            this.failures = failures;
+        }
+
+        @Override
+        protected void compute() {
+            if (Files.isDirectory(this.path, LinkOption.NOFOLLOW_LINKS)) {
+                List<DeleteAction> children = new ArrayList<>();
+                try (DirectoryStream<Path> stream = Files.newDirectoryStream(this.path)) {
+                    for (Path child : stream) {
+                        if (Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+                            children.add(new DeleteAction(child, this.failures));
+                        } else {
+                            delete(child);
+                        }
+                    }
+                } catch (IOException exception) {
+                    this.failures.add(exception);
+                }
+
+                invokeAll(children);
+            }
+
+            delete(this.path);
+        }
+
+        private void delete(Path path) {
+            try {
+                Files.deleteIfExists(path);
+            } catch (IOException exception) {
+                this.failures.add(exception);
+            }
         }
     }
 }
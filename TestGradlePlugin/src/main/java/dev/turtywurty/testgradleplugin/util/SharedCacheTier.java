@@ -0,0 +1,189 @@
+package dev.turtywurty.testgradleplugin.util;
+
+import dev.turtywurty.testgradleplugin.HashingFunction;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * A second, shared cache directory that is looked at before the local cache produces or downloads anything, such as
+ * a directory baked into a CI image or mounted from a network share. It has the same layout as the local cache, so an
+ * existing cache directory can be used as it is.
+ * <p>
+ * The shared directory is read only unless publishing is enabled, in which case whatever the local cache produces or
+ * downloads is copied back into it. Everything about the shared directory is best effort: if it is missing, busy or
+ * can't be written, the local cache carries on as if it wasn't configured.
+ */
+public final class SharedCacheTier {
+    private static final SharedCacheTier DISABLED = new SharedCacheTier(null, null, false);
+
+    private final @Nullable Path localRoot;
+    private final @Nullable Path sharedRoot;
+    private final boolean publish;
+
+    private SharedCacheTier(@Nullable Path localRoot, @Nullable Path sharedRoot, boolean publish) {
+        this.localRoot = localRoot;
+        this.sharedRoot = sharedRoot;
+        this.publish = publish;
+    }
+
+    /**
+     * @param sharedRoot the shared directory, or {@code null} if none is configured
+     */
+    public static SharedCacheTier of(Path localRoot, @Nullable Path sharedRoot, boolean publish) {
+        if (sharedRoot == null)
+            return DISABLED;
+
+        Path local = localRoot.toAbsolutePath().normalize();
+        Path shared = sharedRoot.toAbsolutePath().normalize();
+        return local.equals(shared) ? DISABLED : new SharedCacheTier(local, shared, publish);
+    }
+
+    public static SharedCacheTier disabled() {
+        return DISABLED;
+    }
+
+    public boolean isEnabled() {
+        return this.sharedRoot != null;
+    }
+
+    /**
+     * Replaces the artifact with the shared one, if the shared one was produced from the same inputs.
+     *
+     * @param key the key the artifact is produced from, see {@link CacheLock#key(String...)}
+     * @return whether the artifact was taken from the shared directory
+     */
+    public boolean fetch(Path artifact, String key) {
+        Path shared = getSharedPath(artifact);
+        if (shared == null || !key.equals(CacheLock.readKey(shared)))
+            return false;
+
+        try {
+            if (Files.isDirectory(shared)) {
+                if (!copyDirectory(shared, artifact))
+                    return false;
+            } else {
+                FileSeeder.linkOrCopy(shared, artifact);
+            }
+        } catch (IOException | RuntimeException exception) {
+            System.out.println("Failed to take " + artifact.getFileName() + " from the shared cache: " + exception.getMessage());
+            return false;
+        }
+
+        System.out.println("Took " + artifact.getFileName() + " from the shared cache");
+        return true;
+    }
+
+    /**
+     * Copies the artifact into the shared directory, if publishing is enabled and nobody else is writing it.
+     */
+    public void publish(Path artifact, String key) {
+        Path shared = getSharedPath(artifact);
+        if (!this.publish || shared == null || key.equals(CacheLock.readKey(shared)))
+            return;
+
+        try (CacheLock lock = CacheLock.tryAcquire(shared)) {
+            if (lock == null)
+                return;
+
+            lock.invalidate();
+            if (Files.isDirectory(artifact)) {
+                if (!copyDirectory(artifact, shared))
+                    return;
+            } else {
+                FileSeeder.linkOrCopy(artifact, shared);
+            }
+
+            lock.markComplete(key);
+        } catch (IOException | RuntimeException exception) {
+            System.out.println("Failed to publish " + artifact.getFileName() + " to the shared cache: " + exception.getMessage());
+        }
+    }
+
+    /**
+     * Copies a directory through a staging directory, which is removed again if the copy fails.
+     *
+     * @return whether every file was copied
+     */
+    private static boolean copyDirectory(Path source, Path target) throws IOException {
+        Path staging = FileUtil.createStagingDirectory(target);
+        try {
+            FileSeeder.Result result = FileSeeder.seed(source, staging, FileSeeder.listFiles(source));
+            if (!result.failed().isEmpty()) {
+                FileUtil.deleteDirectory(staging);
+                return false;
+            }
+
+            FileUtil.swapDirectory(staging, target);
+            return true;
+        } catch (IOException | RuntimeException exception) {
+            FileUtil.deleteDirectory(staging);
+            throw exception;
+        }
+    }
+
+    /**
+     * Takes a downloaded file from the shared directory. Files named after their hash, like assets, are trusted by
+     * their size, since they were verified when they were downloaded into the shared directory; anything else is
+     * hashed.
+     *
+     * @param sha1 the expected hash of the file, or {@code null} if it isn't known, in which case only the size is
+     *             checked
+     * @param size the expected size, or {@code 0} if it isn't known
+     * @return whether the file was taken from the shared directory
+     */
+    public boolean fetchFile(Path target, @Nullable String sha1, long size) {
+        Path shared = getSharedPath(target);
+        if (shared == null || !Files.isRegularFile(shared))
+            return false;
+
+        if (size > 0 && !FileSeeder.hasSize(shared, size))
+            return false;
+
+        if (sha1 != null && !sha1.equalsIgnoreCase(shared.getFileName().toString()) &&
+                !HashingFunction.SHA1.hash(shared).equalsIgnoreCase(sha1))
+            return false;
+
+        try {
+            FileSeeder.linkOrCopy(shared, target);
+            return true;
+        } catch (IOException exception) {
+            return false;
+        }
+    }
+
+    /**
+     * Copies a downloaded file into the shared directory, if publishing is enabled and it isn't there yet.
+     */
+    public void publishFile(Path file) {
+        Path shared = getSharedPath(file);
+        if (!this.publish || shared == null)
+            return;
+
+        try {
+            if (Files.exists(shared) && Files.size(shared) == Files.size(file))
+                return;
+
+            FileSeeder.linkOrCopy(file, shared);
+        } catch (IOException exception) {
+            System.out.println("Failed to publish " + file.getFileName() + " to the shared cache: " + exception.getMessage());
+        }
+    }
+
+    /**
+     * @return the path of the artifact in the shared directory, or {@code null} if the artifact isn't part of the
+     * local cache
+     */
+    public @Nullable Path getSharedPath(Path artifact) {
+        if (this.localRoot == null || this.sharedRoot == null)
+            return null;
+
+        Path absolute = artifact.toAbsolutePath().normalize();
+        if (!absolute.startsWith(this.localRoot) || absolute.equals(this.localRoot))
+            return null;
+
+        return this.sharedRoot.resolve(this.localRoot.relativize(absolute).toString());
+    }
+}
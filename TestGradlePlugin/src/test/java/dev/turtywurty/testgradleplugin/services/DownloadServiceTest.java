@@ -0,0 +1,215 @@
+package dev.turtywurty.testgradleplugin.services;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import dev.turtywurty.testgradleplugin.HashingFunction;
+import org.gradle.api.Project;
+import org.gradle.testfixtures.ProjectBuilder;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs the download service against a local server, to check how it schedules and retries the requests.
+ */
+class DownloadServiceTest {
+    private static final long TIMEOUT_SECONDS = 10;
+
+    @TempDir
+    Path tempDir;
+
+    private HttpServer server;
+    private DownloadService service;
+    private final Map<String, AtomicInteger> hits = new ConcurrentHashMap<>();
+    private final List<String> order = new CopyOnWriteArrayList<>();
+
+    @AfterEach
+    void tearDown() {
+        if (this.service != null) {
+            this.service.close();
+        }
+
+        if (this.server != null) {
+            this.server.stop(0);
+        }
+    }
+
+    @Test
+    void sharesDownloadsOfTheSameUrlOrHash() throws Exception {
+        var release = new CountDownLatch(1);
+        startServer((exchange, path) -> {
+            await(release);
+            respond(exchange, 200, path);
+        });
+        startService(8);
+
+        CompletableFuture<Path> first = this.service.download(url("/a"), null, 1, this.tempDir.resolve("first/a"));
+        CompletableFuture<Path> second = this.service.download(url("/a"), null, 1, this.tempDir.resolve("second/a"));
+        // the same hash is the same file, wherever it comes from
+        String sha1 = HashingFunction.SHA1.hash("/b".getBytes(StandardCharsets.UTF_8));
+        CompletableFuture<Path> third = this.service.download(url("/b"), sha1, 1, this.tempDir.resolve("third/b"));
+        CompletableFuture<Path> fourth = this.service.download(url("/c"), sha1, 1, this.tempDir.resolve("fourth/c"));
+
+        release.countDown();
+        assertEquals("/a", Files.readString(first.get(TIMEOUT_SECONDS, TimeUnit.SECONDS)));
+        assertEquals("/a", Files.readString(second.get(TIMEOUT_SECONDS, TimeUnit.SECONDS)));
+        assertEquals("/b", Files.readString(third.get(TIMEOUT_SECONDS, TimeUnit.SECONDS)));
+        assertEquals("/b", Files.readString(fourth.get(TIMEOUT_SECONDS, TimeUnit.SECONDS)));
+        assertEquals(1, hits("/a"));
+        assertEquals(1, hits("/b"));
+        assertEquals(0, hits("/c"));
+    }
+
+    @Test
+    void startsTheLargestDownloadsFirst() throws Exception {
+        var reached = new CountDownLatch(1);
+        var release = new CountDownLatch(1);
+        startServer((exchange, path) -> {
+            if (path.equals("/gate")) {
+                reached.countDown();
+                await(release);
+            }
+
+            respond(exchange, 200, path);
+        });
+        startService(1);
+
+        // the only connection is busy with the gate until everything else is queued
+        CompletableFuture<Path> gate = this.service.download(url("/gate"), null, 1, this.tempDir.resolve("gate"));
+        await(reached);
+        CompletableFuture<Path> small = this.service.download(url("/small"), null, 10, this.tempDir.resolve("small"));
+        CompletableFuture<Path> large = this.service.download(url("/large"), null, 1000, this.tempDir.resolve("large"));
+        CompletableFuture<Path> medium = this.service.download(url("/medium"), null, 100, this.tempDir.resolve("medium"));
+        release.countDown();
+
+        CompletableFuture.allOf(gate, small, large, medium).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertEquals(List.of("/gate", "/large", "/medium", "/small"), this.order);
+    }
+
+    @Test
+    void keepsToTheConnectionLimitOfAHost() throws Exception {
+        var active = new AtomicInteger();
+        var maxActive = new AtomicInteger();
+        startServer((exchange, path) -> {
+            maxActive.accumulateAndGet(active.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+            } finally {
+                active.decrementAndGet();
+            }
+
+            respond(exchange, 200, path);
+        });
+        startService(3);
+
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[30];
+        for (int index = 0; index < futures.length; index++) {
+            futures[index] = this.service.download(url("/" + index), null, 1, this.tempDir.resolve(String.valueOf(index)));
+        }
+
+        CompletableFuture.allOf(futures).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertEquals(30, this.order.size());
+        assertTrue(maxActive.get() <= 3, "Used " + maxActive.get() + " connections");
+    }
+
+    @Test
+    void retriesServerErrorsAfterTheirRetryAfter() throws Exception {
+        startServer((exchange, path) -> {
+            if (hits(path) == 1) {
+                exchange.getResponseHeaders().add("Retry-After", "1");
+                respond(exchange, 503, "busy");
+            } else if (path.equals("/flaky") && hits(path) == 2) {
+                respond(exchange, 500, "broken");
+            } else {
+                respond(exchange, 200, path);
+            }
+        });
+        startService(8);
+
+        long start = System.nanoTime();
+        Path file = this.service.download(url("/flaky"), null, 1, this.tempDir.resolve("flaky"))
+                .get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertEquals("/flaky", Files.readString(file));
+        assertEquals(3, hits("/flaky"));
+        assertEquals(2, this.service.getRetries());
+        assertTrue(System.nanoTime() - start >= TimeUnit.SECONDS.toNanos(1), "Retried before the Retry-After was up");
+    }
+
+    @Test
+    void doesNotRetryClientErrors() throws Exception {
+        startServer((exchange, path) -> respond(exchange, 404, "missing"));
+        startService(8);
+
+        CompletableFuture<Path> future = this.service.download(url("/missing"), null, 1, this.tempDir.resolve("missing"));
+        assertThrows(ExecutionException.class, () -> future.get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(1, hits("/missing"));
+        assertEquals(0, this.service.getRetries());
+    }
+
+    private void startServer(Handler handler) throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        this.server.setExecutor(Executors.newCachedThreadPool());
+        this.server.createContext("/", exchange -> {
+            String path = exchange.getRequestURI().getPath();
+            this.hits.computeIfAbsent(path, ignored -> new AtomicInteger()).incrementAndGet();
+            this.order.add(path);
+            handler.handle(exchange, path);
+        });
+        this.server.start();
+    }
+
+    private void startService(int maxConnectionsPerHost) {
+        Project project = ProjectBuilder.builder().withProjectDir(this.tempDir.resolve("project").toFile()).build();
+        this.service = project.getGradle().getSharedServices()
+                .registerIfAbsent(DownloadService.NAME, DownloadService.class, spec ->
+                        spec.getParameters().getMaxConnectionsPerHost().set(maxConnectionsPerHost))
+                .get();
+    }
+
+    private String url(String path) {
+        return "http://" + this.server.getAddress().getHostString() + ":" + this.server.getAddress().getPort() + path;
+    }
+
+    private int hits(String path) {
+        AtomicInteger count = this.hits.get(path);
+        return count == null ? 0 : count.get();
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream output = exchange.getResponseBody()) {
+            output.write(bytes);
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            if (!latch.await(TIMEOUT_SECONDS, TimeUnit.SECONDS))
+                throw new IllegalStateException("Timed out waiting for the test!");
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @FunctionalInterface
+    private interface Handler {
+        void handle(HttpExchange exchange, String path) throws IOException;
+    }
+}